@@ -22,6 +22,7 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.DisplayMode;
 import java.awt.FlowLayout;
+import java.awt.Font;
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
 import java.awt.HeadlessException;
@@ -29,26 +30,35 @@ import java.awt.Point;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.awt.event.MouseListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.net.UnknownHostException;
 import java.security.AccessControlException;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JApplet;
 import javax.swing.JButton;
 import javax.swing.JComponent;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
@@ -58,23 +68,37 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.JViewport;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.text.BadLocationException;
 
-import org.nlsaugment.driver.KeysetCharacterMap;
+import org.nlsaugment.driver.ChordMacros;
+import org.nlsaugment.driver.KeysetConfig;
+import org.nlsaugment.driver.KeysetDeviceManager;
+import org.nlsaugment.driver.KeysetDispatcher;
 import org.nlsaugment.driver.KeysetDriver;
-import org.nlsaugment.driver.KeysetNotFoundException;
+import org.nlsaugment.driver.Keymap;
 import org.nlsaugment.event.KeysetAdapter;
 import org.nlsaugment.event.KeysetEvent;
-import org.nlsaugment.event.KeysetListener;
+import org.nlsaugment.net.telnet.TelnetCommandEvent;
 import org.nlsaugment.net.telnet.TelnetConstants;
+import org.nlsaugment.net.telnet.TelnetEvent;
 import org.nlsaugment.net.telnet.TelnetEventException;
+import org.nlsaugment.net.telnet.TelnetFlowControlOption;
 import org.nlsaugment.net.telnet.TelnetInputStream;
+import org.nlsaugment.net.telnet.TelnetLatencyProbe;
+import org.nlsaugment.net.telnet.TelnetLinemodeOption;
 import org.nlsaugment.net.telnet.TelnetOption;
 import org.nlsaugment.net.telnet.TelnetSocket;
+import org.nlsaugment.net.telnet.TelnetWindowSizeOption;
 import org.nlsaugment.swing.FormattedNumberField;
 import org.nlsaugment.swing.ParameterDialog;
+import org.nlsaugment.swing.ScrollbackBuffer;
+import org.nlsaugment.swing.ScrollbackIndex;
+import org.nlsaugment.swing.ScrollbackView;
 import org.nlsaugment.swing.TerminalPane;
 
 /**
@@ -89,13 +113,25 @@ public class AugTerm extends JApplet {
 
 	private final static int DEFAULT_TERMINAL_ROWS = 24;
 	private final static int DEFAULT_TERMINAL_COLUMNS = 80;
+	private final static int DEFAULT_SCROLLBACK_LINES = 1000;
+	private final static int DEFAULT_SCROLLBACK_FILE_LINES = 100000;
   private final static String AUGTERM_VERSION = "0.21";
+	private final static long LATENCY_PROBE_INTERVAL = 5000;
+	private final static int STATUS_UPDATE_INTERVAL = 1000;
+	// Time for the window size to settle before the terminal is resized
+	private final static int RESIZE_DELAY = 250;
+	// Round trip time (microseconds) below which predicted echo is not drawn
+	private final static long PREDICT_RTT_THRESHOLD = 30000;
 
 	private final static String[][] paramInfo = {
 			{ "host",		"name or IP address",		"server host" },
 			{ "port",		"TCP port number (23)",		"server TCP port" },
 			{ "rows",		"integer (24)",				"number of rows in terminal" },
-			{ "columns",	"integer (80)",			"number of columns in terminal" }
+			{ "columns",	"integer (80)",			"number of columns in terminal" },
+			{ "scrollback",	"integer (1000)",		"lines of scrollback kept in memory, 0 for none" },
+			{ "scrollbackfile",	"file name",		"file for additional scrollback lines" },
+			{ "scrollbackfilelines",	"integer (100000)",	"lines of scrollback kept in the file" },
+			{ "snapshotfile",	"file name",		"file for the screen, saved on disconnect and shown on startup" }
 	};
 
 	private Hashtable<String, String> appParams = null;
@@ -105,14 +141,21 @@ public class AugTerm extends JApplet {
 	private JFrame tframe;
 	private JScrollPane spane;
 	private TerminalPane tpane;
+	private ScrollbackView scrollbackView;
+	private Timer resizeTimer;
+	private Dimension viewSize;  // view size matching the terminal size
+	private KeysetDeviceManager keysets;
+	private SessionSearch search;
 	private JMenuBar menuBar;
 	private JMenu telnetMenu;
 	private JMenu termMenu;
 	private JPanel statusPanel;
 	private JLabel statusConnect;
+	private JLabel statusLatency;
+	private Timer statusTimer;
 
 	private KeyListener keyListener;
-	private MouseListener mouseListener;
+	private MouseAdapter mouseListener;
 
 	// These are maintained in tpane coordinates, which have the top line
 	// at address 0, while VAT-0 has the bottom line at address 0.
@@ -129,15 +172,66 @@ public class AugTerm extends JApplet {
 	private boolean keyWithMouseButton;
 	private int mouseMask;
 
+	// The column following the echo of the last line sent by the line
+	// editor, or -1.  The cursor is owned by the reader, which moves it there
+	// before interpreting the next byte it receives.
+	private final AtomicInteger lineEndColumn = new AtomicInteger(-1);
+
 	private static final int MOUSE_LEFT = 4;
 	private static final int MOUSE_MIDDLE = 2;
 	private static final int MOUSE_RIGHT = 1;
 
 	private static final byte[] mouseCodes = { 000, 004, 030, 002, 001, 033, 027, 000 };
 
+	// The pointer moved by a keyset's stick, in tpane coordinates, or null if
+	// the mouse was used last.  Moved only on the event dispatch thread, at
+	// POINTER_INTERVAL, however often the stick reports.
+	private volatile Point keysetPointer;
+	private double pointerX;
+	private double pointerY;
+	private Point pointerCell;
+	private volatile int stickX;  // deflection of the stick, from the keyset listener
+	private volatile int stickY;
+	private volatile boolean pointerMoving;
+	private Timer pointerTimer;
+
+	private static final int POINTER_INTERVAL = 20;  // milliseconds
+	private static final double POINTER_SPEED = 600;  // pixels per second at full deflection
+
+	// Replaced as a whole when another keymap is loaded
+	private volatile Keymap keymap = Keymap.getDefault();
+	private volatile ChordMacros macros = null;
+	private Timer macroTimer;
+	private final ChordMacros.Output macroOutput = new ChordMacros.Output() {
+		public void chord(int chord, long nanoTime) {
+			sendKey(chord, keymap.getChar(chord), nanoTime);
+		}
+
+		public void expansion(byte[] text, long nanoTime) {
+			sendText(text, nanoTime);
+		}
+
+		public void action(int action, long nanoTime) {
+			abortOutput(action == ChordMacros.ACTION_INTERRUPT);
+		}
+	};
+
+	private final LatencyTracer tracer = new LatencyTracer();
+	private OutputThrottle throttle;
+	private EchoPredictor predictor;
+	private LineEditor lineEditor;
+	private TelnetOption echoOption;
+	private TelnetOption binaryOption;
+	private TelnetOption sgaOption;
+	private TelnetOption eorOption;
+	private TelnetLinemodeOption linemodeOption;
+
 	private AugtermListener listener = null;
 	private TelnetSocket socket = null;
 	private String lastHost = null;
+	private File snapshotFile = null;
+	// The screen shown on startup, whose state the first session continues
+	private ScreenSnapshot restoredSnapshot = null;
 	private int lastPort = TelnetConstants.TELNET_PORT;
 
 	public AugTerm() throws HeadlessException {
@@ -273,6 +367,18 @@ public class AugTerm extends JApplet {
 
 		telnetMenu.add(mitem);
 
+		mitem = new JMenuItem("Interrupt Process");
+		mitem.setActionCommand("telnet.interrupt");
+		mitem.addActionListener(listener);
+
+		telnetMenu.add(mitem);
+
+		mitem = new JMenuItem("Abort Output");
+		mitem.setActionCommand("telnet.abortoutput");
+		mitem.addActionListener(listener);
+
+		telnetMenu.add(mitem);
+
 		mitem = new JMenuItem("Exit");
 		mitem.setActionCommand("telnet.exit");
 		mitem.addActionListener(listener);
@@ -289,6 +395,57 @@ public class AugTerm extends JApplet {
 
 		termMenu.add(mitem);
 
+		mitem = new JMenuItem("Find...");
+		mitem.setActionCommand("term.find");
+		mitem.addActionListener(listener);
+
+		termMenu.add(mitem);
+
+		mitem = new JMenuItem("Find Next");
+		mitem.setActionCommand("term.findnext");
+		mitem.addActionListener(listener);
+
+		termMenu.add(mitem);
+
+		final JCheckBoxMenuItem predictItem = new JCheckBoxMenuItem("Predictive Echo");
+		predictItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				predictor.setEnabled(predictItem.isSelected());
+			}
+		});
+
+		termMenu.add(predictItem);
+
+		mitem = new JMenuItem("Latency Statistics...");
+		mitem.setActionCommand("term.latency");
+		mitem.addActionListener(listener);
+
+		termMenu.add(mitem);
+
+		mitem = new JMenuItem("Dump Keyset History...");
+		mitem.setActionCommand("term.keysethistory");
+		mitem.addActionListener(listener);
+
+		termMenu.add(mitem);
+
+		mitem = new JMenuItem("Load Keymap...");
+		mitem.setActionCommand("term.loadkeymap");
+		mitem.addActionListener(listener);
+
+		termMenu.add(mitem);
+
+		mitem = new JMenuItem("Default Keymap");
+		mitem.setActionCommand("term.defaultkeymap");
+		mitem.addActionListener(listener);
+
+		termMenu.add(mitem);
+
+		mitem = new JMenuItem("Load Chord Macros...");
+		mitem.setActionCommand("term.loadmacros");
+		mitem.addActionListener(listener);
+
+		termMenu.add(mitem);
+
 		menuBar.add(termMenu);
 		tframe.setJMenuBar(menuBar);
 
@@ -312,6 +469,15 @@ public class AugTerm extends JApplet {
 			}
 		}
 		tpane = new TerminalPane(rows, columns);
+		throttle = new OutputThrottle(tpane);
+		tpane.setPaintObserver(new TerminalPane.PaintObserver() {
+			public void painted(long when) {
+				tracer.painted(when);
+				throttle.painted(when);
+			}
+		});
+		predictor = new EchoPredictor(tpane);
+		lineEditor = new LineEditor(tpane);
 
 		// Limit the terminal pane to be 80% of the current screen dimensions
 		Dimension d = tpane.getPreferredSize();
@@ -329,9 +495,29 @@ public class AugTerm extends JApplet {
 			tpane.setPreferredSize(d);
 		}
 
-		spane = new JScrollPane(tpane,
+		// The scrollback history is shown above the terminal screen
+		JPanel termPanel = new JPanel();
+		termPanel.setLayout(new BoxLayout(termPanel, BoxLayout.Y_AXIS));
+		ScrollbackBuffer scrollback = makeScrollback();
+		ScrollbackIndex scrollbackIndex = null;
+		if (scrollback != null) {
+			tpane.setScrollback(scrollback);
+			scrollbackView = new ScrollbackView(scrollback, tpane);
+			scrollbackView.setAlignmentX(JComponent.LEFT_ALIGNMENT);
+			termPanel.add(scrollbackView);
+			scrollbackIndex = new ScrollbackIndex(scrollback);
+		}
+		search = new SessionSearch(tpane, scrollbackView, scrollbackIndex);
+		loadSnapshot();
+		tpane.setAlignmentX(JComponent.LEFT_ALIGNMENT);
+		termPanel.add(tpane);
+
+		spane = new JScrollPane(termPanel,
 				JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
 				JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+		if (scrollbackView != null) {
+			spane.getVerticalScrollBar().setUnitIncrement(scrollbackView.getRowHeight());
+		}
 
 		// Make the scroll pane wide enough to include the vertical scroll bar,
 		// whether it is currently showing or not.
@@ -351,14 +537,177 @@ public class AugTerm extends JApplet {
 		statusConnect = new JLabel("Not connected");
 		statusPanel.add(statusConnect);
 
+		statusPanel.add(Box.createHorizontalGlue());
+		statusLatency = new JLabel("");
+		statusPanel.add(statusLatency);
+		statusPanel.add(Box.createRigidArea(new Dimension(16, 0)));
+
+		statusTimer = new Timer(STATUS_UPDATE_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				updateLatencyStatus();
+				predictor.expire(System.nanoTime());
+			}
+		});
+
 		statusPanel.setBackground(new Color(200, 200, 255));
 
 		tframe.add(statusPanel, BorderLayout.SOUTH);
 
 		tframe.pack();
+		trackResize();
 		tframe.setVisible(true);
 	}
 
+  /**
+   * Follow changes in the size of the window. Once the size has settled,
+   * the terminal gains or loses as many rows and columns as fit in the change
+   * in the size of the view, so the -rows and -columns parameters still give
+   * the initial size.
+   */
+  private void trackResize() {
+    JViewport view = spane.getViewport();
+    viewSize = view.getExtentSize();
+    resizeTimer = new Timer(RESIZE_DELAY, new ActionListener() {
+      public void actionPerformed(ActionEvent event) {
+        resizeTerminal();
+      }
+    });
+    resizeTimer.setRepeats(false);
+    view.addComponentListener(new ComponentAdapter() {
+      @Override
+      public void componentResized(ComponentEvent event) {
+        // A drag produces a stream of these; only the last one counts
+        resizeTimer.restart();
+      }
+    });
+  }
+
+  /**
+   * Resize the terminal to follow the size of the view, and tell the host.
+   */
+  private void resizeTerminal() {
+    Dimension size = spane.getViewport().getExtentSize();
+    Dimension cell = tpane.getCellSize();
+    int dr = (size.height - viewSize.height) / cell.height;
+    int dc = (size.width - viewSize.width) / cell.width;
+    int rows = Math.max(tpane.getRows() + dr, 1);
+    int columns = Math.max(tpane.getColumns() + dc, 1);
+    if ((rows == tpane.getRows()) && (columns == tpane.getColumns())) {
+      return;
+    }
+    // Keep the part of a cell left over for the next change
+    viewSize.height += (rows - tpane.getRows()) * cell.height;
+    viewSize.width += (columns - tpane.getColumns()) * cell.width;
+    int oldRows = tpane.getRows();
+    tpane.setPreferredSize(null);
+    tpane.setTerminalSize(rows, columns);
+    screenResized(oldRows, rows, columns);
+    if (scrollbackView != null) {
+      scrollbackView.revalidate();
+    }
+    TelnetSocket s = socket;
+    if (s != null) {
+      try {
+        s.setWindowSize(columns, rows);
+      } catch (IOException iox) {
+        System.err.println(iox);
+      }
+    }
+  }
+
+  /**
+   * Keep the emulation state within a resized screen. A TTY window which
+   * reached the bottom of the screen still does.
+   */
+  private void screenResized(int oldRows, int rows, int columns) {
+    if ((ttyBottom >= oldRows - 1) || (ttyBottom >= rows)) {
+      ttyBottom = rows - 1;
+    }
+    ttyTop = Math.min(ttyTop, ttyBottom);
+    cwp.x = Math.min(cwp.x, columns);
+    cwp.y = Math.min(cwp.y, rows - 1);
+    ttypos.x = Math.min(ttypos.x, columns);
+    ttypos.y = Math.min(ttypos.y, rows - 1);
+    if ((bugpos != null) && ((bugpos.x >= columns) || (bugpos.y >= rows))) {
+      bugpos = null;
+    }
+    predictor.discard();
+  }
+
+	private ScrollbackBuffer makeScrollback() {
+		int lines = getIntParameter("scrollback", DEFAULT_SCROLLBACK_LINES);
+		if (lines <= 0) {
+			return null;
+		}
+		String fileName = getParameter("scrollbackfile");
+		if (fileName != null) {
+			int fileLines = getIntParameter("scrollbackfilelines", DEFAULT_SCROLLBACK_FILE_LINES);
+			try {
+				return new ScrollbackBuffer(lines, new File(fileName), fileLines);
+			} catch (IOException iox) {
+				System.err.println("Unable to use scrollback file " + fileName + ": " + iox);
+			} catch (IllegalArgumentException iae) {
+				System.err.println(iae.getMessage());
+			} catch (AccessControlException ace) {
+				System.err.println("Scrollback file denied by applet security manager.");
+			}
+		}
+		return new ScrollbackBuffer(lines);
+	}
+
+	/**
+	 * Show the screen saved in the snapshot file, if there is one, so that it
+	 * is seen while the first session connects.
+	 */
+	private void loadSnapshot() {
+		String fileName = getParameter("snapshotfile");
+		if (fileName == null) {
+			return;
+		}
+		try {
+			snapshotFile = new File(fileName);
+			if (snapshotFile.exists()) {
+				ScreenSnapshot snapshot = ScreenSnapshot.read(snapshotFile);
+				snapshot.restore(tpane);
+				restoredSnapshot = snapshot;
+			}
+		} catch (IOException iox) {
+			System.err.println("Unable to restore screen from " + fileName + ": " + iox);
+		} catch (BadLocationException ble) {
+			System.err.println(ble);
+		} catch (AccessControlException ace) {
+			snapshotFile = null;
+			System.err.println("Snapshot file denied by applet security manager.");
+		}
+	}
+
+	private int getIntParameter(String pName, int defaultValue) {
+		String s = getParameter(pName);
+		if (s != null) {
+			try {
+				return Integer.parseInt(s);
+			} catch (NumberFormatException nfe) {
+				System.err.println("Invalid integer value for parameter: " + pName);
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Set the emulation state saved with a restored screen.  The keys are not
+	 * sent with coordinates until the new session asks for it.
+	 */
+	private void restoreEmulation(ScreenSnapshot snapshot) {
+		cwp = snapshot.getCursor();
+		ttypos = snapshot.getTtyPosition();
+		bugpos = snapshot.getBugPosition();
+		ttyTop = snapshot.getTtyTop();
+		ttyBottom = snapshot.getTtyBottom();
+		positioned = (snapshot.getModes() & ScreenSnapshot.MODE_POSITIONED) != 0;
+		reverseMode = (snapshot.getModes() & ScreenSnapshot.MODE_REVERSE) != 0;
+		screenResized(snapshot.getRows(), tpane.getRows(), tpane.getColumns());
+	}
+
 	private void resetEmulation() {
 		ttyTop = 0;
 		ttyBottom = tpane.getRows() - 1;
@@ -367,6 +716,7 @@ public class AugTerm extends JApplet {
 		coordMode = false;
 		mouseReleasing = false;
 		keyWithMouseButton = false;
+		lineEndColumn.set(-1);
 		cwp = new Point(0, 0);
 		ttypos = new Point(0, 0);
 		bugpos = null;
@@ -437,6 +787,18 @@ public class AugTerm extends JApplet {
 
 	private final class TelnetReader extends Thread {
 
+		// Time at which the byte currently being interpreted was received
+		private long receiveTime;
+
+		// Decodes characters received in binary mode
+		private final Utf8Decoder utf8 = new Utf8Decoder();
+
+		// Lines scrolled while the display is behind
+		private final ScrollBatch batch = new ScrollBatch(tpane);
+
+		// The host sends GA at the end of its output
+		private boolean goAheadSeen = false;
+
 		@Override
 		public void interrupt() {
 			// TODO Auto-generated method stub
@@ -449,23 +811,59 @@ public class AugTerm extends JApplet {
 			while (socket != null) {
 				try {
 					TelnetInputStream in = socket.getInputStream();
+
+					// Drop the batched lines if the output has been aborted,
+					// or show them before waiting for more input
+					if (in.isDiscarding()) {
+						batch.discard();
+					} else if (batch.isActive() && (in.available() == 0)) {
+						batch.flush();
+						screenChanged();
+					}
 					int inch = in.read();
+					receiveTime = System.nanoTime();
 
 					// Check end-of-stream
 					if (inch == -1)
 						break;
 
+					// Leave the cursor after a line sent by the line editor
+					int lineEnd = lineEndColumn.getAndSet(-1);
+					if (lineEnd > cwp.x) {
+						cwp.x = lineEnd;
+					}
+
+					if (isFramed()) {
+						tpane.beginFrame();
+					}
+
 					// Ignore pad characters
 					if (inch == 0177)
 						continue;
 
+					// Decode UTF-8 in binary mode.  Otherwise bytes above
+					// 0177 are not part of the character set, and ignored.
+					if ((inch >= 0200) || utf8.isPending()) {
+						if ((binaryOption == null) || !binaryOption.isEnabledRemotely()) {
+							utf8.reset();
+							if (inch >= 0200)
+								continue;
+						} else if (inch >= 0200) {
+							int ch = utf8.decode(inch);
+							if (ch >= 0) {
+								putPrintable((char) ch);
+							}
+							continue;
+						} else {
+							// A sequence cut short by an ASCII byte
+							utf8.reset();
+							putPrintable(Utf8Decoder.REPLACEMENT);
+						}
+					}
+
 					// Check for printable characters
 					if (inch >= 040) {
-						if (cwp.x < tpane.getColumns()) {
-							char[] ch = Character.toChars(inch);
-							tpane.putChar(cwp.y, cwp.x, ch[0], reverseMode);
-							++cwp.x;
-						}
+						putPrintable((char) inch);
 					} else {
 						switch (inch) {
 						case 000:
@@ -474,24 +872,34 @@ public class AugTerm extends JApplet {
 							Toolkit.getDefaultToolkit().beep();
 							break;
 						case 010:
+							predictor.controlReceived();
 							// Should this backspace to the previous line
 							if (cwp.x > 0) {
 								--cwp.x;
 							}
 							break;
 						case 012:
+							predictor.controlReceived();
 							if (positioned) {
 								++cwp.x;
 							} else {
 								++cwp.y;
 								if (cwp.y >= tpane.getRows()) {
-									tpane.scrollUp(0, 0, tpane.getRows() - 1, tpane
-											.getColumns() - 1, 1);
+									predictor.discard();
 									cwp.y = tpane.getRows() - 1;
+									if (batch.isActive() || throttle.isBehind()) {
+										// Scroll once for many lines
+										batch.lineFeed();
+									} else {
+										tpane.scrollUp(0, 0, tpane.getRows() - 1, tpane
+												.getColumns() - 1, 1);
+										screenChanged();
+									}
 								}
 							}
 							break;
 						case 015:
+							predictor.controlReceived();
 							if (positioned) {
 								++cwp.x;
 							} else {
@@ -500,12 +908,24 @@ public class AugTerm extends JApplet {
 							break;
 						case 033:
 							// Begin protocol string
+							batch.flush();
 							doCommand(socket);
 							break;
 						}
 					}
 				} catch (TelnetEventException tee) {
-					// System.err.println(tee);
+					// A data mark ends a SYNCH: the lines batched before it
+					// are not shown
+					TelnetEvent event = tee.getEvent();
+					if (event instanceof TelnetCommandEvent) {
+						byte command = ((TelnetCommandEvent) event).getCommand();
+						if (command == TelnetConstants.DM) {
+							batch.discard();
+						} else if ((command == TelnetConstants.EOR)
+								|| (command == TelnetConstants.GA)) {
+							endOfOutput(command == TelnetConstants.GA);
+						}
+					}
 				} catch (IOException iox) {
 
 				} catch (BadLocationException ble) {
@@ -513,6 +933,14 @@ public class AugTerm extends JApplet {
 				}
 			}
 
+			// Show any lines batched before the end of the stream
+			try {
+				batch.flush();
+			} catch (BadLocationException ble) {
+				System.err.println(ble);
+			}
+			tpane.endFrame();
+
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
 					listener.actionPerformed(new ActionEvent(
@@ -565,6 +993,7 @@ public class AugTerm extends JApplet {
 					for (int i = 0; i < n; ++i) {
 						sb.append(' ');
 					}
+					predictor.discard();
 					try {
 						SwingUtilities.invokeAndWait(new Runnable() {
 
@@ -580,10 +1009,12 @@ public class AugTerm extends JApplet {
 					} catch (InterruptedException iex) {
 					} catch (InvocationTargetException ite) {
 					}
+					screenChanged();
 					command = true;
 					break;
 				case 044:
 					// Delete selected line
+					predictor.discard();
 					try {
 						SwingUtilities.invokeAndWait(new Runnable() {
 							public void run() {
@@ -596,10 +1027,12 @@ public class AugTerm extends JApplet {
 					} catch (InterruptedException iex) {
 					} catch (InvocationTargetException ite) {
 					}
+					screenChanged();
 					command = true;
 					break;
 				case 045:
 					// Insert line
+					predictor.discard();
 					try {
 						SwingUtilities.invokeAndWait(new Runnable() {
 							public void run() {
@@ -613,6 +1046,7 @@ public class AugTerm extends JApplet {
 					} catch (InterruptedException iex) {
 					} catch (InvocationTargetException ite) {
 					}
+					screenChanged();
 					command = true;
 					break;
 				case 046:
@@ -630,6 +1064,7 @@ public class AugTerm extends JApplet {
 					} catch (InterruptedException iex) {
 					} catch (InvocationTargetException ite) {
 					}
+					screenChanged();
 					command = true;
 					break;
 				case 047:
@@ -649,10 +1084,12 @@ public class AugTerm extends JApplet {
 						} catch (InvocationTargetException ite) {
 						}
 					}
+					screenChanged();
 					command = true;
 					break;
 				case 050:
 					// Clear screen
+					predictor.discard();
 					try {
 						SwingUtilities.invokeAndWait(new Runnable() {
 							public void run() {
@@ -662,10 +1099,12 @@ public class AugTerm extends JApplet {
 					} catch (InterruptedException iex) {
 					} catch (InvocationTargetException ite) {
 					}
+					screenChanged();
 					command = true;
 					break;
 				case 051:
 					// Reset
+					predictor.discard();
 					try {
 						SwingUtilities.invokeAndWait(new Runnable() {
 							public void run() {
@@ -679,6 +1118,7 @@ public class AugTerm extends JApplet {
 					} catch (InterruptedException iex) {
 					} catch (InvocationTargetException ite) {
 					}
+					screenChanged();
 					command = true;
 					break;
 				case 052:
@@ -694,14 +1134,15 @@ public class AugTerm extends JApplet {
 					break;
 				case 055:
 					// Interrogate
-					OutputStream out = socket.getOutputStream();
-					out.write(034);
-					out.write(046);
-					sendX(out, tpane.getColumns() - 1);
-					sendX(out, tpane.getRows() - 1);
-					out.write(046);
-					out.write(040);
-					out.write(041);
+					ByteArrayOutputStream report = new ByteArrayOutputStream();
+					report.write(034);
+					report.write(046);
+					sendX(report, tpane.getColumns() - 1);
+					sendX(report, tpane.getRows() - 1);
+					report.write(046);
+					report.write(040);
+					report.write(041);
+					report.writeTo(socket.getOutputStream());
 					command = true;
 					break;
 				case 056:
@@ -722,6 +1163,7 @@ public class AugTerm extends JApplet {
 				case 061:
 					// Coordinate mode on
 					coordMode = true;
+					predictor.cancel();
 					command = true;
 					break;
 				case 063:
@@ -736,6 +1178,7 @@ public class AugTerm extends JApplet {
 					final int top = readY(in);
 					final int bottom = readY(in);
 					final int nlines = readX(in);
+					predictor.discard();
 					try {
 						SwingUtilities.invokeAndWait(new Runnable() {
 							public void run() {
@@ -753,6 +1196,7 @@ public class AugTerm extends JApplet {
 					} catch (InterruptedException iex) {
 					} catch (InvocationTargetException ite) {
 					}
+					screenChanged();
 					command = true;
 					break;
 				default:
@@ -762,6 +1206,57 @@ public class AugTerm extends JApplet {
 			}
 		}
 
+		private void putPrintable(char ch) throws BadLocationException {
+			if (cwp.x < tpane.getColumns()) {
+				if (batch.isActive()) {
+					if (cwp.y == tpane.getRows() - 1) {
+						batch.put(cwp.x, ch, reverseMode);
+						++cwp.x;
+						return;
+					}
+					batch.flush();
+				}
+				predictor.received(cwp.y, cwp.x, ch);
+				tpane.putChar(cwp.y, cwp.x, ch, reverseMode);
+				++cwp.x;
+				screenChanged();
+			}
+		}
+
+		/**
+		 * The host has marked the end of its output with EOR or GA: show the
+		 * screen it has drawn as one frame.
+		 */
+		private void endOfOutput(boolean goAhead) {
+			if (goAhead) {
+				goAheadSeen = true;
+			}
+			try {
+				if (batch.isActive()) {
+					batch.flush();
+					screenChanged();
+				}
+			} catch (BadLocationException ble) {
+				System.err.println(ble);
+			}
+			tpane.endFrame();
+		}
+
+		// Return true if the host marks the end of its output, so that the
+		// changes it makes are shown in frames.  A frame is opened by the
+		// first byte received after the end of the last one.
+		private boolean isFramed() {
+			if ((eorOption != null) && eorOption.isEnabledRemotely()) {
+				return true;
+			}
+			return goAheadSeen && (sgaOption != null) && !sgaOption.isEnabledRemotely();
+		}
+
+		private void screenChanged() {
+			tracer.screenChanged(receiveTime);
+			throttle.changed();
+		}
+
 		private int readX(TelnetInputStream in) throws TelnetEventException, IOException {
 			int inch = in.read();
 			if (inch == 036) {
@@ -807,79 +1302,296 @@ public class AugTerm extends JApplet {
 		sendX(out, y);
 	}
 
-	private void sendKey(final char ch) {
+	/**
+	 * Send a key typed on the keyboard to the host, translating it according to
+	 * the current mouse buttons and coordinate mode.
+	 *
+	 * @param ch		the key.
+	 * @param inputTime	the <code>System.nanoTime()</code> at which the input
+	 * 					producing the key was received, for latency tracing.
+	 */
+	private void sendKey(final char ch, final long inputTime) {
+		sendKey((mouseMask != 0) ? keymap.getChord(ch) : 0, ch, inputTime);
+	}
+
+	/**
+	 * Send a key to the host, translating it according to the current mouse
+	 * buttons and coordinate mode.
+	 *
+	 * @param chord		the chord which types the key, used to look up its
+	 * 					translation in the keymap, or 0 if it has none.
+	 * @param ch		the key, or <code>CHAR_UNDEFINED</code> if the chord
+	 * 					does not type a single character.
+	 * @param inputTime	the <code>System.nanoTime()</code> at which the input
+	 * 					producing the key was received, for latency tracing.
+	 */
+	private void sendKey(final int chord, final char ch, final long inputTime) {
 		int ich = (int) ch;
 		try {
 			OutputStream out = socket.getOutputStream();
-			if (mouseMask != 0) {
+			TelnetLinemodeOption lm = linemodeOption;
+			if ((lm != null) && lm.isEditing()) {
+				if (!coordMode && (mouseMask == 0)
+						&& (ch != KeysetEvent.CHAR_UNDEFINED)) {
+					editKey(out, lm, ch, inputTime);
+					return;
+				}
+				// Coordinates, mouse chords and sequences are still sent a
+				// key at a time, after the line being edited
+				forwardLine(out, KeysetEvent.CHAR_UNDEFINED, inputTime);
+			}
+			// The whole key is sent in one write, since Nagle is off
+			ByteArrayOutputStream report = new ByteArrayOutputStream();
+			if ((mouseMask != 0) && (mouseMask < 6) && (chord != 0)) {
+				keyWithMouseButton = true;
+				report.write(keymap.getSequence(mouseMask, chord));
+			} else if (mouseMask != 0) {
 				keyWithMouseButton = true;
 				switch (mouseMask) {
 				case 1:
+				case 5:
 					// Suppress key
 					break;
-				case 2:
-					if (KeysetCharacterMap.CASE0.indexOf(ch) > 0) {
-						ich = KeysetCharacterMap.CASE1.charAt(KeysetCharacterMap.CASE0.indexOf(ch));
-					}
-					out.write(ich);
-					break;
 				case 3:
 					if (Character.isLetter(ch)) {
 						ich &= 037;
 					}
-					out.write(ich);
-					break;
-				case 4:
-					if (KeysetCharacterMap.CASE0.indexOf(ch) > 0) {
-						ich = KeysetCharacterMap.CASE2.charAt(KeysetCharacterMap.CASE0.indexOf(ch));
-					}
-					out.write(ich);
-					break;
-				case 5:
-					// Suppress key
+					report.write(ich);
 					break;
 				case 6:
 				case 7:
-					out.write(034);
-					out.write(043);
-					out.write(mouseMask + 0100);
+					if (ch == KeysetEvent.CHAR_UNDEFINED) {
+						break;
+					}
+					report.write(034);
+					report.write(043);
+					report.write(mouseMask + 0100);
 					Point rowcolPos = tpane
 					.translate(mousePos);
-					sendX(out, rowcolPos.x);
-					sendY(out, rowcolPos.y);
-					out.write(ich);
+					sendX(report, rowcolPos.x);
+					sendY(report, rowcolPos.y);
+					report.write(ich);
+					break;
+				default:
+					report.write(ich);
 					break;
 				}
+			} else if (ch == KeysetEvent.CHAR_UNDEFINED) {
+				// A chord which types a sequence
+				report.write(keymap.getSequence(0, chord));
 			} else {
 				if (ich == 012) {
 					// "Enter" is "OK" in coordinate mode
 					if (coordMode) {
-						out.write(034);
-						out.write(042);
-						Point rowcolPos = tpane.getMousePosition();
+						report.write(034);
+						report.write(042);
+						Point rowcolPos = keysetPointer;
+						if (rowcolPos == null) {
+							rowcolPos = tpane.getMousePosition();
+						}
 						if (rowcolPos == null) {
 							rowcolPos = new Point(0, 0);
 						} else {
 							rowcolPos = tpane.translate(rowcolPos);
 						}
-						sendX(out, rowcolPos.x);
-						sendY(out, rowcolPos.y);
-						out.write(004);
+						sendX(report, rowcolPos.x);
+						sendY(report, rowcolPos.y);
+						report.write(004);
 					} else {
-						out.write(ich);
+						report.write(ich);
 					}
 				} else {
-					out.write(ich);
+					report.write(ich);
 					if (ich == 015) {
-						out.write((byte)012);
+						report.write((byte)012);
 					}
 				}
 			}
+			report.writeTo(out);
+			tracer.keySent(inputTime, System.nanoTime());
+			if ((mouseMask == 0) && (ch != KeysetEvent.CHAR_UNDEFINED)) {
+				predictEcho(ch);
+			}
 		} catch (IOException iox) {
 			System.err.println(iox);
 		}
 	}
 
+	/**
+	 * Edit the line being typed with a key, while the host has LINEMODE in
+	 * edit mode, and send the line when the key finishes it.
+	 *
+	 * @param out		the output stream to the host.
+	 * @param lm		the LINEMODE option.
+	 * @param ch		the key.
+	 * @param inputTime	the <code>System.nanoTime()</code> at which the input
+	 * 					producing the key was received, for latency tracing.
+	 * @throws IOException	if the line cannot be sent.
+	 */
+	private void editKey(OutputStream out, TelnetLinemodeOption lm, char ch,
+			long inputTime) throws IOException {
+		// The host does not echo an edited line, unless it says it will
+		boolean echo = (echoOption == null) || !echoOption.isEnabledRemotely();
+		// A new line follows the echo of the last one, even if the reader
+		// has not moved the cursor after it yet
+		int column = Math.max(cwp.x, lineEndColumn.get());
+		switch (lineEditor.key(ch, lm, cwp.y, column, echo)) {
+		case LineEditor.FORWARD:
+			forwardLine(out, ch, inputTime);
+			break;
+		case LineEditor.INTERRUPT:
+			abortOutput(true);
+			break;
+		case LineEditor.ABORT_OUTPUT:
+			abortOutput(false);
+			break;
+		}
+	}
+
+	/**
+	 * Send the line being edited, ended by the key which finished it, in a
+	 * single write, and have the reader leave the cursor after its echo.
+	 *
+	 * @param out		the output stream to the host.
+	 * @param ch		the key, or <code>CHAR_UNDEFINED</code> for none.
+	 * @param inputTime	the <code>System.nanoTime()</code> at which the input
+	 * 					producing the key was received, for latency tracing.
+	 * @throws IOException	if the line cannot be sent.
+	 */
+	private void forwardLine(OutputStream out, char ch, long inputTime)
+			throws IOException {
+		if (lineEditor.isEmpty() && (ch == KeysetEvent.CHAR_UNDEFINED)) {
+			return;
+		}
+		lineEndColumn.set(lineEditor.getEndColumn());
+		out.write(lineEditor.takeLine(ch));
+		tracer.keySent(inputTime, System.nanoTime());
+	}
+
+	/**
+	 * Return the mask bit of the button of a mouse event, or 0 for another
+	 * button.
+	 */
+	private static int mouseButton(MouseEvent event) {
+		if (SwingUtilities.isLeftMouseButton(event)) {
+			return MOUSE_LEFT;
+		} else if (SwingUtilities.isMiddleMouseButton(event)) {
+			return MOUSE_MIDDLE;
+		} else if (SwingUtilities.isRightMouseButton(event)) {
+			return MOUSE_RIGHT;
+		}
+		return 0;
+	}
+
+	/**
+	 * Handle a mouse button being pressed, on the mouse or on a keyset.
+	 *
+	 * @param button	<code>MOUSE_LEFT</code>, <code>MOUSE_MIDDLE</code> or
+	 * 					<code>MOUSE_RIGHT</code>.
+	 * @param pos		the position of the mouse in the terminal pane.
+	 */
+	private void mouseButtonPressed(int button, Point pos) {
+		if (!mouseReleasing) {
+			mousePos = pos;
+			mouseMask |= button;
+		}
+	}
+
+	/**
+	 * Handle a mouse button being released, on the mouse or on a keyset.
+	 * Releasing the first of the buttons sends their code if no key was typed
+	 * while they were held.
+	 *
+	 * @param button	<code>MOUSE_LEFT</code>, <code>MOUSE_MIDDLE</code> or
+	 * 					<code>MOUSE_RIGHT</code>.
+	 */
+	private void mouseButtonReleased(int button) {
+		if (!mouseReleasing) {
+			mouseReleasing = true;
+			if ((socket != null)
+					&& (mouseCodes[mouseMask] != 0)) {
+				try {
+					ByteArrayOutputStream report = new ByteArrayOutputStream();
+					if (coordMode) {
+						Point rowcolPos = tpane.translate(mousePos);
+						if (keyWithMouseButton) {
+							keyWithMouseButton = false;
+							switch (mouseMask) {
+							case 1:
+							case 5:
+								report.write(034);
+								report.write(042);
+								sendX(report, rowcolPos.x);
+								sendY(report, rowcolPos.y);
+								report.write(mouseCodes[mouseMask]);
+								break;
+							case 2:
+							case 3:
+							case 4:
+								break;
+							case 6:
+							case 7:
+								report.write(034);
+								report.write(043);
+								report.write(0100);
+								sendX(report, rowcolPos.x);
+								sendY(report, rowcolPos.y);
+								break;
+							}
+						} else {
+							switch (mouseMask) {
+							case 1:
+							case 2:
+							case 3:
+							case 4:
+							case 5:
+								report.write(034);
+								report.write(042);
+								sendX(report, rowcolPos.x);
+								sendY(report, rowcolPos.y);
+								report.write(mouseCodes[mouseMask]);
+								break;
+							case 6:
+								report.write(027);
+								break;
+							case 7:
+								break;
+							}
+						}
+					}
+					report.writeTo(socket.getOutputStream());
+				} catch (IOException iox) {
+
+				}
+			}
+		}
+		mouseMask &= ~button;
+		if (mouseMask == 0) {
+			mouseReleasing = false;
+		}
+	}
+
+	/**
+	 * Predict the host's echo of a key, if the terminal is in TTY mode and the
+	 * host is echoing.
+	 *
+	 * @param ch	the key which was sent.
+	 */
+	private void predictEcho(char ch) {
+		if (!predictor.isEnabled()) {
+			return;
+		}
+		if (coordMode || (echoOption == null) || !echoOption.isEnabledRemotely()
+				|| (cwp.y < ttyTop) || (cwp.y > ttyBottom)) {
+			predictor.cancel();
+			return;
+		}
+		TelnetLatencyProbe probe = socket.getLatencyProbe();
+		boolean show = (probe == null) || (probe.getSampleCount() == 0)
+				|| (probe.getSmoothedRtt() >= PREDICT_RTT_THRESHOLD);
+		predictor.keySent(cwp.y, cwp.x, ch, show);
+	}
+
 	private void connectHost(String host, int port) {
 		try {
 			statusConnect.setText("Connecting to " + host);
@@ -888,13 +1600,48 @@ public class AugTerm extends JApplet {
 			lastPort = port;
 			TelnetOption echoopt = new TelnetOption(1, "ECHO",
 					true, true);
+			echoOption = echoopt;
 			TelnetOption sgaopt = new TelnetOption(3,
 					"SUPPRESS-GO-AHEAD", true, true);
+			sgaOption = sgaopt;
 			socket.addOption(echoopt);
 			socket.addOption(sgaopt);
+			socket.addOption(new TelnetWindowSizeOption(tpane.getColumns(),
+					tpane.getRows()));
+			// Only the host sends in binary mode, so that it can send UTF-8
+			TelnetOption binaryopt = new TelnetOption(
+					TelnetConstants.OPTION_TRANSMIT_BINARY, "TRANSMIT-BINARY",
+					false, true);
+			binaryOption = binaryopt;
+			socket.addOption(binaryopt);
+			TelnetFlowControlOption flowopt = new TelnetFlowControlOption();
+			socket.addOption(flowopt);
+			throttle.connect(socket, flowopt);
+			socket.announceOption("NAWS");
+			socket.announceOption("TOGGLE-FLOW-CONTROL");
+			socket.askOption("TRANSMIT-BINARY");
+			// The host marks the end of each response with IAC EOR
+			TelnetOption eoropt = new TelnetOption(
+					TelnetConstants.OPTION_END_OF_RECORD, "END-OF-RECORD",
+					false, true);
+			eorOption = eoropt;
+			socket.addOption(eoropt);
+			socket.askOption("END-OF-RECORD");
+			// Lines are edited locally if the host puts LINEMODE in edit mode
+			TelnetLinemodeOption linemodeopt = new TelnetLinemodeOption();
+			linemodeOption = linemodeopt;
+			socket.addOption(linemodeopt);
+			socket.announceOption("LINEMODE");
 			statusConnect.setText("Connected: " + host);
+			socket.startLatencyProbe(LATENCY_PROBE_INTERVAL);
+			statusTimer.start();
 
 			resetEmulation();
+			if (restoredSnapshot != null) {
+				// Carry on from the restored screen until the host redraws it
+				restoreEmulation(restoredSnapshot);
+				restoredSnapshot = null;
+			}
 			Thread rdr = new TelnetReader();
 			rdr.start();
 			keyListener = new KeyAdapter() {
@@ -903,27 +1650,14 @@ public class AugTerm extends JApplet {
 				public void keyTyped(KeyEvent event) {
 				    if (socket != null) {
 						char ch = event.getKeyChar();
-            sendKey(ch);
+            expireMacros();
+            sendKey(ch, System.nanoTime());
           }
         }
       };
 
-      KeysetDriver kd = KeysetDriver.getInstance();
-      KeysetListener keysetListener = new KeysetAdapter() {
-        @Override
-        public void keyTyped(KeysetEvent event) {
-          if (socket != null) {
-            char ch = event.getKeyChar();
-            sendKey(ch);
-          }
-        }
-      };
-      try {
-        kd.register(keysetListener);
-        kd.start();
-      } catch (KeysetNotFoundException e) {
-        statusConnect.setText("Connect: " + host + " -- Chord keyset is not connected.");
-      }
+      startKeysets();
+      updateKeysetStatus();
 
       tpane.addKeyListener(keyListener);
 
@@ -936,98 +1670,24 @@ public class AugTerm extends JApplet {
 
 				@Override
 				public void mousePressed(MouseEvent event) {
-					if (!mouseReleasing) {
-						mousePos = event.getPoint();
-						if (SwingUtilities.isLeftMouseButton(event)) {
-							mouseMask |= MOUSE_LEFT;
-						} else if (SwingUtilities
-								.isMiddleMouseButton(event)) {
-							mouseMask |= MOUSE_MIDDLE;
-						} else if (SwingUtilities
-								.isRightMouseButton(event)) {
-							mouseMask |= MOUSE_RIGHT;
-						}
-					}
+					forgetKeysetPointer();
+					mouseButtonPressed(mouseButton(event), event.getPoint());
 				}
 
 				@Override
-				public void mouseReleased(MouseEvent event) {
-					if (!mouseReleasing) {
-						mouseReleasing = true;
-						if ((socket != null)
-								&& (mouseCodes[mouseMask] != 0)) {
-							try {
-								OutputStream out = socket
-										.getOutputStream();
-								if (coordMode) {
-									Point rowcolPos = tpane.translate(mousePos);
-									if (keyWithMouseButton) {
-										keyWithMouseButton = false;
-										switch (mouseMask) {
-										case 1:
-										case 5:
-											out.write(034);
-											out.write(042);
-											sendX(out, rowcolPos.x);
-											sendY(out, rowcolPos.y);
-											out.write(mouseCodes[mouseMask]);
-											break;
-										case 2:
-										case 3:
-										case 4:
-											break;
-										case 6:
-										case 7:
-											out.write(034);
-											out.write(043);
-											out.write(0100);
-											sendX(out, rowcolPos.x);
-											sendY(out, rowcolPos.y);
-											break;
-										}
-									} else {
-										switch (mouseMask) {
-										case 1:
-										case 2:
-										case 3:
-										case 4:
-										case 5:
-											out.write(034);
-											out.write(042);
-											sendX(out, rowcolPos.x);
-											sendY(out, rowcolPos.y);
-											out.write(mouseCodes[mouseMask]);
-											break;
-										case 6:
-											out.write(027);
-											break;
-										case 7:
-											break;
-										}
-									}
-								}
-							} catch (IOException iox) {
+				public void mouseMoved(MouseEvent event) {
+					forgetKeysetPointer();
+				}
 
-							}
-						}
-					}
-					if (SwingUtilities.isLeftMouseButton(event)) {
-						mouseMask &= ~MOUSE_LEFT;
-					} else if (SwingUtilities
-							.isMiddleMouseButton(event)) {
-						mouseMask &= ~MOUSE_MIDDLE;
-					} else if (SwingUtilities
-							.isRightMouseButton(event)) {
-						mouseMask &= ~MOUSE_RIGHT;
-					}
-					if (mouseMask == 0) {
-						mouseReleasing = false;
-					}
+				@Override
+				public void mouseReleased(MouseEvent event) {
+					mouseButtonReleased(mouseButton(event));
 				}
 
 			};
 
 			tpane.addMouseListener(mouseListener);
+			tpane.addMouseMotionListener(mouseListener);
 
 		} catch (AccessControlException ace) {
 			JOptionPane
@@ -1055,6 +1715,11 @@ public class AugTerm extends JApplet {
     if (socket != null) {
       tpane.removeKeyListener(keyListener);
       tpane.removeMouseListener(mouseListener);
+      tpane.removeMouseMotionListener(mouseListener);
+      forgetKeysetPointer();
+      throttle.disconnect();
+      lineEditor.discard();
+      saveSnapshot();
       try {
         socket.close();
       } catch (IOException iox) {
@@ -1063,10 +1728,428 @@ public class AugTerm extends JApplet {
       socket = null;
       statusConnect.setText("Not connected");
     }
+    statusTimer.stop();
+    statusLatency.setText("");
+  }
+
+	private void updateLatencyStatus() {
+		TelnetSocket s = socket;
+		TelnetLatencyProbe probe = (s == null) ? null : s.getLatencyProbe();
+		if ((probe == null) || (probe.getSampleCount() == 0)) {
+			statusLatency.setText("");
+			return;
+		}
+		long rtt = probe.getSmoothedRtt();
+		String how = (probe.getMode() == TelnetLatencyProbe.MODE_TIMING_MARK) ? "TM" : "AYT";
+		statusLatency.setText("RTT " + (rtt / 1000) + "." + ((rtt / 100) % 10)
+				+ " ms \u00b1" + (probe.getRttVariance() / 1000) + " (" + how + ")");
+	}
+
+  private void showLatency() {
+    StringWriter sw = new StringWriter();
+    tracer.dump(new PrintWriter(sw));
+    JTextArea text = new JTextArea(sw.toString());
+    text.setEditable(false);
+    text.setFont(new Font(tpane.getFontFamily(), Font.PLAIN, 12));
+    JOptionPane.showMessageDialog(tframe, text, "Keystroke Latency",
+        JOptionPane.INFORMATION_MESSAGE);
+  }
+
+  /**
+   * Start watching for keysets, the first time this is called.
+   */
+  private void startKeysets() {
+    if (keysets != null) {
+      return;
+    }
+    KeysetConfig config = KeysetConfig.load();
+    String file = config.getProperty("keyset.keymap", null);
+    if (file != null) {
+      loadKeymap(new File(file));
+    }
+    file = config.getProperty("keyset.macros", null);
+    if (file != null) {
+      loadMacros(new File(file));
+    }
+    keysets = new KeysetDeviceManager(config);
+    // Registered once; keys typed while disconnected are dropped.  The
+    // mouse buttons and chords are handled on the event dispatch thread,
+    // in the order they were typed, like those of the mouse and keyboard.
+    keysets.register(new KeysetAdapter() {
+      @Override
+      public void keyPressed(KeysetEvent event) {
+        final int button = keysetMouseButton(event.getKeyCode());
+        if (button != 0) {
+          SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+              Point pos = keysetPointer;
+              if (pos == null) {
+                pos = tpane.getMousePosition();
+              }
+              mouseButtonPressed(button, (pos != null) ? pos : (mousePos != null) ? mousePos : new Point(0, 0));
+            }
+          });
+        }
+      }
+
+      @Override
+      public void pointerMoved(KeysetEvent event) {
+        stickX = event.getPointerX();
+        stickY = event.getPointerY();
+        if (!pointerMoving) {
+          // At most one task is queued until the stick is centered again
+          pointerMoving = true;
+          SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+              startPointer();
+            }
+          });
+        }
+      }
+
+      @Override
+      public void keyReleased(KeysetEvent event) {
+        final int button = keysetMouseButton(event.getKeyCode());
+        if (button != 0) {
+          SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+              mouseButtonReleased(button);
+            }
+          });
+        }
+      }
+
+      @Override
+      public void keyTyped(KeysetEvent event) {
+        final int chord = event.getChord();
+        final long nanoTime = event.getNanoTime();
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            if (socket != null) {
+              typeChord(chord, nanoTime);
+            }
+          }
+        });
+      }
+    });
+    // Keep the device thread reading while the events are handled
+    keysets.setAsynchronous(true, KeysetDispatcher.WAIT_BLOCKING);
+    keysets.addDeviceListener(new KeysetDeviceManager.DeviceListener() {
+      public void deviceAttached(String device) {
+        keysetStatusChanged();
+      }
+
+      public void deviceDetached(String device) {
+        keysetStatusChanged();
+      }
+    });
+    try {
+      keysets.start();
+    } catch (IOException iox) {
+      System.err.println("Unable to watch for keysets: " + iox);
+    }
+  }
+
+  private void keysetStatusChanged() {
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        updateKeysetStatus();
+      }
+    });
+  }
+
+  private void updateKeysetStatus() {
+    if (socket == null) {
+      return;
+    }
+    if (keysets.getAttachedDevices().isEmpty()) {
+      statusConnect.setText("Connected: " + lastHost + " -- Chord keyset is not connected.");
+    } else {
+      statusConnect.setText("Connected: " + lastHost);
+    }
+  }
+
+  private void dumpKeysetHistory() {
+    JFileChooser chooser = new JFileChooser();
+    chooser.setSelectedFile(new File("keyset-history.js"));
+    if (chooser.showSaveDialog(tframe) != JFileChooser.APPROVE_OPTION) {
+      return;
+    }
+    File file = chooser.getSelectedFile();
+    KeysetDriver driver = null;
+    if (keysets != null) {
+      List<String> devices = keysets.getAttachedDevices();
+      if (!devices.isEmpty()) {
+        driver = keysets.getDriver(devices.get(0));
+      }
+    }
+    if (driver == null) {
+      JOptionPane.showMessageDialog(tframe, "No keyset is connected.",
+          "Keyset History", JOptionPane.INFORMATION_MESSAGE);
+      return;
+    }
+    try {
+      int n = driver.getHistory().dump(file);
+      JOptionPane.showMessageDialog(tframe, n + " records written to " + file,
+          "Keyset History", JOptionPane.INFORMATION_MESSAGE);
+    } catch (IOException iox) {
+      JOptionPane.showMessageDialog(tframe, "Unable to write " + file + ": " + iox,
+          "Keyset History", JOptionPane.ERROR_MESSAGE);
+    }
+  }
+
+  private void chooseKeymap() {
+    JFileChooser chooser = new JFileChooser();
+    if (chooser.showOpenDialog(tframe) == JFileChooser.APPROVE_OPTION) {
+      loadKeymap(chooser.getSelectedFile());
+    }
+  }
+
+  /**
+   * Load a keymap and use it from the next key on, keeping the current keymap
+   * if it cannot be loaded.
+   */
+  private void loadKeymap(File file) {
+    try {
+      keymap = Keymap.load(file);
+    } catch (IOException iox) {
+      JOptionPane.showMessageDialog(tframe, "Unable to load keymap " + file + ": " + iox.getMessage(),
+          "Keymap", JOptionPane.ERROR_MESSAGE);
+    }
+  }
+
+  private void chooseMacros() {
+    JFileChooser chooser = new JFileChooser();
+    if (chooser.showOpenDialog(tframe) == JFileChooser.APPROVE_OPTION) {
+      loadMacros(chooser.getSelectedFile());
+    }
+  }
+
+  /**
+   * Load chord macros, whose sequences are named by characters of the current
+   * keymap, and use them from the next chord on.
+   */
+  private void loadMacros(File file) {
+    try {
+      ChordMacros m = ChordMacros.load(file, keymap);
+      expireMacros();
+      macros = m;
+    } catch (IOException iox) {
+      JOptionPane.showMessageDialog(tframe, "Unable to load macros " + file + ": " + iox.getMessage(),
+          "Chord Macros", JOptionPane.ERROR_MESSAGE);
+    }
+  }
+
+  /**
+   * Return the mask bit of a mouse button on a keyset, or 0 for a key.
+   */
+  private static int keysetMouseButton(int keyCode) {
+    switch (keyCode) {
+    case KeysetEvent.MOUSE_LEFT:
+      return MOUSE_LEFT;
+    case KeysetEvent.MOUSE_MIDDLE:
+      return MOUSE_MIDDLE;
+    case KeysetEvent.MOUSE_RIGHT:
+      return MOUSE_RIGHT;
+    default:
+      return 0;
+    }
+  }
+
+  /**
+   * Start moving the keyset pointer, on the event dispatch thread.
+   */
+  private void startPointer() {
+    if (pointerTimer == null) {
+      pointerTimer = new Timer(POINTER_INTERVAL, new ActionListener() {
+        public void actionPerformed(ActionEvent event) {
+          movePointer();
+        }
+      });
+    }
+    if (keysetPointer == null) {
+      Point pos = tpane.getMousePosition();
+      if (pos == null) {
+        pos = (mousePos != null) ? mousePos : new Point(tpane.getWidth() / 2, tpane.getHeight() / 2);
+      }
+      pointerX = pos.x;
+      pointerY = pos.y;
+    }
+    pointerTimer.start();
+  }
+
+  /**
+   * Move the keyset pointer by one interval's worth of the deflection of the
+   * stick. This sends nothing to the host: the position is reported by the
+   * mouse buttons, as it is for the mouse, so a stick held over to one side
+   * costs no more than one that is still.
+   */
+  private void movePointer() {
+    int x = stickX;
+    int y = stickY;
+    if ((x == 0) && (y == 0)) {
+      pointerMoving = false;
+      x = stickX;
+      y = stickY;
+      if ((x == 0) && (y == 0)) {
+        pointerTimer.stop();
+        return;
+      }
+      pointerMoving = true;  // moved again while stopping
+    }
+    // Quadratic, for fine control near the center
+    double scale = POINTER_SPEED * POINTER_INTERVAL / 1000.0
+        / ((double) KeysetEvent.POINTER_MAX * KeysetEvent.POINTER_MAX);
+    pointerX = Math.max(0, Math.min(tpane.getWidth() - 1, pointerX + x * Math.abs(x) * scale));
+    pointerY = Math.max(0, Math.min(tpane.getHeight() - 1, pointerY + y * Math.abs(y) * scale));
+    Point pos = new Point((int) pointerX, (int) pointerY);
+    keysetPointer = pos;
+    Point cell = tpane.translate(pos);
+    if (!cell.equals(pointerCell)) {
+      pointerCell = cell;
+      try {
+        tpane.setPointerHighlight(cell.y, cell.x);
+      } catch (BadLocationException e) {
+        tpane.clearPointerHighlight();
+      }
+    }
+  }
+
+  /**
+   * Go back to using the mouse pointer, when the mouse is used.
+   */
+  private void forgetKeysetPointer() {
+    if (keysetPointer != null) {
+      keysetPointer = null;
+      pointerCell = null;
+      tpane.clearPointerHighlight();
+    }
+  }
+
+  /**
+   * Send a chord typed on a keyset, expanding macros if it is typed with no
+   * mouse buttons.
+   */
+  private void typeChord(int chord, long nanoTime) {
+    ChordMacros m = macros;
+    if ((m == null) || (mouseMask != 0)) {
+      expireMacros();
+      sendKey(chord, keymap.getChar(chord), nanoTime);
+      return;
+    }
+    m.chordTyped(chord, nanoTime, macroOutput);
+    if (m.isPending()) {
+      if (macroTimer == null) {
+        macroTimer = new Timer((int) m.getTimeout(), new ActionListener() {
+          public void actionPerformed(ActionEvent event) {
+            expireMacros();
+          }
+        });
+        macroTimer.setRepeats(false);
+      }
+      macroTimer.setInitialDelay((int) m.getTimeout());
+      macroTimer.restart();
+    }
+  }
+
+  /**
+   * Send any chords held by the macros while waiting for a longer sequence.
+   */
+  private void expireMacros() {
+    ChordMacros m = macros;
+    if ((m != null) && (socket != null)) {
+      m.expire(macroOutput);
+    }
+  }
+
+  /**
+   * Send the text of a macro in a single write.  While the host has LINEMODE
+   * in edit mode the text is instead edited into the line being typed, as if
+   * its characters were typed one at a time, so that it is not sent ahead of
+   * the line.
+   */
+  private void sendText(byte[] text, long inputTime) {
+    try {
+      OutputStream out = socket.getOutputStream();
+      TelnetLinemodeOption lm = linemodeOption;
+      if ((lm != null) && lm.isEditing()) {
+        for (int i = 0; i < text.length; ++i) {
+          // A return is already sent with a line feed
+          if ((text[i] == '\n') && (i > 0) && (text[i - 1] == '\r')) {
+            continue;
+          }
+          editKey(out, lm, (char) (text[i] & 0xff), inputTime);
+        }
+        return;
+      }
+      out.write(text);
+      tracer.keySent(inputTime, System.nanoTime());
+      for (byte b : text) {
+        predictEcho((char) (b & 0xff));
+      }
+    } catch (IOException iox) {
+      System.err.println(iox);
+    }
+  }
+
+  /**
+   * Interrupt the host's process or abort its output, with a SYNCH so that
+   * the host discards the output it has not sent yet. The output already on
+   * its way is discarded as it arrives, rather than painted.
+   */
+  private void abortOutput(boolean interrupt) {
+    TelnetSocket s = socket;
+    if (s == null) {
+      return;
+    }
+    expireMacros();
+    predictor.discard();
+    try {
+      s.sendSynch(interrupt ? TelnetConstants.IP : TelnetConstants.AO);
+    } catch (IOException iox) {
+      System.err.println(iox);
+    }
+  }
+
+  private void find() {
+    String s = (String) JOptionPane.showInputDialog(tframe, "Find:", "Find",
+        JOptionPane.PLAIN_MESSAGE, null, null, search.getQuery());
+    if ((s != null) && !search.find(s)) {
+      JOptionPane.showMessageDialog(tframe, "Not found: " + s, "Find",
+          JOptionPane.INFORMATION_MESSAGE);
+    }
+  }
+
+  /**
+   * Save the screen and its emulation state to the snapshot file, if there
+   * is one.
+   */
+  private void saveSnapshot() {
+    if (snapshotFile == null) {
+      return;
+    }
+    try {
+      ScreenSnapshot snapshot = new ScreenSnapshot(tpane);
+      snapshot.setCursor(cwp);
+      snapshot.setTtyPosition(ttypos);
+      snapshot.setBugPosition(bugpos);
+      snapshot.setTtyWindow(ttyTop, ttyBottom);
+      snapshot.setModes(((positioned) ? ScreenSnapshot.MODE_POSITIONED : 0)
+          | ((reverseMode) ? ScreenSnapshot.MODE_REVERSE : 0)
+          | ((coordMode) ? ScreenSnapshot.MODE_COORDINATE : 0));
+      snapshot.write(snapshotFile);
+    } catch (IOException iox) {
+      System.err.println("Unable to save screen to " + snapshotFile + ": " + iox);
+    } catch (BadLocationException ble) {
+      System.err.println(ble);
+    }
   }
 
   private void exit() {
     disconnect();
+    if (keysets != null) {
+      keysets.stop();
+    }
     System.exit(0);
   }
 
@@ -1093,6 +2176,10 @@ public class AugTerm extends JApplet {
 					int portno = ((Number) port.getValue()).intValue();
 					connectHost(host.getText(), portno);
 				}
+			} else if (command.equals("telnet.interrupt")) {
+				abortOutput(true);
+			} else if (command.equals("telnet.abortoutput")) {
+				abortOutput(false);
 			} else if (command.equals("telnet.disconnect")) {
         disconnect();
       } else if (command.equals("telnet.exit")) {
@@ -1100,6 +2187,24 @@ public class AugTerm extends JApplet {
 			} else if (command.equals("term.clear")) {
 				tpane.clear();
 				resetEmulation();
+			} else if (command.equals("term.latency")) {
+				showLatency();
+			} else if (command.equals("term.keysethistory")) {
+				dumpKeysetHistory();
+			} else if (command.equals("term.loadkeymap")) {
+				chooseKeymap();
+			} else if (command.equals("term.defaultkeymap")) {
+				keymap = Keymap.getDefault();
+			} else if (command.equals("term.loadmacros")) {
+				chooseMacros();
+			} else if (command.equals("term.find")) {
+				find();
+			} else if (command.equals("term.findnext")) {
+				if (search.getQuery() == null) {
+					find();
+				} else {
+					search.findNext();
+				}
 			}
 		}
 	}
@@ -0,0 +1,269 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.augterm;
+
+import javax.swing.text.BadLocationException;
+
+import org.nlsaugment.swing.TerminalPane;
+
+/**
+ * Provides speculative local echo, to hide the round trip time of a slow
+ * connection.  When a printable key is sent while the host is echoing, the
+ * key is drawn immediately at the position where the echo is expected, using
+ * the <code>TerminalPane</code> predicted-character attribute.  When the echo
+ * arrives at that position the prediction is confirmed, and the host's
+ * character replaces it.  If anything else arrives, all outstanding
+ * predictions are rolled back, restoring the characters they covered.
+ * <p>
+ * After several consecutive failures, predictions stop being drawn.  They
+ * are still tracked, and drawing resumes once enough of them in a row would
+ * have been correct.
+ */
+public class EchoPredictor {
+
+	// Consecutive failures which suspend drawing
+	private static final int MAX_FAILURES = 3;
+
+	// Consecutive confirmations, while suspended, which resume drawing
+	private static final int RESUME_CONFIRMS = 4;
+
+	// A prediction with no echo after this long has failed
+	private static final long PREDICTION_TIMEOUT = 2L * 1000 * 1000 * 1000;
+
+	private static final int MAX_PREDICTIONS = 128;
+
+	private final TerminalPane tpane;
+
+	// Outstanding predictions, oldest first
+	private final int[] predRow = new int[MAX_PREDICTIONS];
+	private final int[] predColumn = new int[MAX_PREDICTIONS];
+	private final char[] predChar = new char[MAX_PREDICTIONS];
+	private final char[] oldChar = new char[MAX_PREDICTIONS];
+	private final boolean[] oldReverse = new boolean[MAX_PREDICTIONS];
+	private final boolean[] drawn = new boolean[MAX_PREDICTIONS];
+	private final long[] predTime = new long[MAX_PREDICTIONS];
+	private int head = 0;
+	private int count = 0;
+
+	private boolean enabled = false;
+	private boolean suspended = false;
+	private boolean blocked = false;
+	private long blockedTime = 0;
+	private int failures = 0;
+	private int confirms = 0;
+
+	public EchoPredictor(TerminalPane tpane) {
+		super();
+		this.tpane = tpane;
+	}
+
+	/**
+	 * Enable or disable predictive echo.  It is disabled by default.
+	 *
+	 * @param enable	<code>true</code> to enable predictive echo.
+	 */
+	public synchronized void setEnabled(boolean enable) {
+		if (!enable) {
+			rollback();
+		}
+		enabled = enable;
+		suspended = false;
+		blocked = false;
+		failures = 0;
+		confirms = 0;
+	}
+
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Return whether drawing of predictions is suspended because they have
+	 * been failing.
+	 *
+	 * @return	<code>true</code> if suspended.
+	 */
+	public synchronized boolean isSuspended() {
+		return suspended;
+	}
+
+	/**
+	 * Predict the echo of a key which has just been sent.  The caller is
+	 * responsible for deciding that the terminal is in a state where the host
+	 * is expected to echo the key at <code>(row, column)</code>, ignoring any
+	 * outstanding predictions.
+	 *
+	 * @param row		the row of the host's cursor.
+	 * @param column	the column of the host's cursor.
+	 * @param ch		the key.
+	 * @param show		<code>false</code> to track the prediction without
+	 * 					drawing it, such as when the link is fast enough that
+	 * 					drawing it would only cause flicker.
+	 */
+	public synchronized void keySent(int row, int column, char ch, boolean show) {
+		if (!enabled) {
+			return;
+		}
+		long now = System.nanoTime();
+		expire(now);
+		if ((ch < ' ') || (ch > '\176')) {
+			// Can't predict the effect of a control character, or anything
+			// typed after it until the host has acted on it
+			blocked = true;
+			blockedTime = now;
+			return;
+		}
+		if (blocked) {
+			if ((count > 0) || ((now - blockedTime) < PREDICTION_TIMEOUT)) {
+				return;
+			}
+			blocked = false;
+		}
+
+		// Typed ahead of the host?
+		if (count > 0) {
+			int last = (head + count - 1) % MAX_PREDICTIONS;
+			if (predRow[last] != row) {
+				return;
+			}
+			column = Math.max(column, predColumn[last] + 1);
+		}
+		if ((column >= tpane.getColumns()) || (count == MAX_PREDICTIONS)) {
+			return;
+		}
+
+		int slot = (head + count) % MAX_PREDICTIONS;
+		predRow[slot] = row;
+		predColumn[slot] = column;
+		predChar[slot] = ch;
+		predTime[slot] = now;
+		drawn[slot] = false;
+		if (show && !suspended) {
+			try {
+				oldChar[slot] = tpane.getCharAt(row, column);
+				oldReverse[slot] = tpane.isReverseAt(row, column);
+				tpane.putPredictedChar(row, column, ch);
+				drawn[slot] = true;
+			} catch (BadLocationException ble) {
+				return;
+			}
+		}
+		++count;
+	}
+
+	/**
+	 * Check a printable character received from the host against the oldest
+	 * outstanding prediction.  This must be called before the character is
+	 * written to the terminal.
+	 *
+	 * @param row		the row at which the character will be written.
+	 * @param column	the column at which the character will be written.
+	 * @param ch		the character.
+	 */
+	public synchronized void received(int row, int column, char ch) {
+		if (count == 0) {
+			return;
+		}
+		if ((predRow[head] == row) && (predColumn[head] == column)
+				&& (predChar[head] == ch)) {
+			// Confirmed; the caller's write replaces the prediction
+			drawn[head] = false;
+			head = (head + 1) % MAX_PREDICTIONS;
+			--count;
+			failures = 0;
+			if (suspended && (++confirms >= RESUME_CONFIRMS)) {
+				suspended = false;
+				confirms = 0;
+			}
+		} else {
+			rollback();
+			fail();
+		}
+	}
+
+	/**
+	 * Note that the host has sent a control character, such as a carriage
+	 * return or backspace.  Once the host has caught up with all outstanding
+	 * predictions, this allows predictions to resume after the user has typed
+	 * a control character.
+	 */
+	public synchronized void controlReceived() {
+		if (count == 0) {
+			blocked = false;
+		}
+	}
+
+	/**
+	 * Discard all outstanding predictions, without restoring the characters
+	 * they covered.  This is used when the host has changed the screen in a
+	 * way that invalidates the saved characters, such as clearing or
+	 * scrolling it.  Outstanding predictions count as a failure.
+	 */
+	public synchronized void discard() {
+		if (count > 0) {
+			count = 0;
+			fail();
+		}
+	}
+
+	/**
+	 * Roll back all outstanding predictions, restoring the characters they
+	 * covered.  Outstanding predictions count as a failure.
+	 */
+	public synchronized void cancel() {
+		if (count > 0) {
+			rollback();
+			fail();
+		}
+	}
+
+	/**
+	 * Roll back any predictions which have been outstanding too long.
+	 *
+	 * @param now	the current <code>System.nanoTime()</code>.
+	 */
+	public synchronized void expire(long now) {
+		if ((count > 0) && ((now - predTime[head]) > PREDICTION_TIMEOUT)) {
+			rollback();
+			fail();
+		}
+	}
+
+	private void fail() {
+		confirms = 0;
+		if (++failures >= MAX_FAILURES) {
+			suspended = true;
+		}
+	}
+
+	// Restore the covered characters, newest first
+	private void rollback() {
+		for (int i = count - 1; i >= 0; --i) {
+			int slot = (head + i) % MAX_PREDICTIONS;
+			if (drawn[slot]) {
+				try {
+					tpane.putChar(predRow[slot], predColumn[slot], oldChar[slot],
+							oldReverse[slot]);
+				} catch (BadLocationException ble) {
+				}
+				drawn[slot] = false;
+			}
+		}
+		count = 0;
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.augterm;
+
+import java.io.PrintWriter;
+
+/**
+ * A fixed-size histogram of latency values, in the style of an HDR histogram.
+ * Values are recorded in microseconds.  Small values (below the sub-bucket
+ * count) are recorded exactly; larger values fall into logarithmic buckets,
+ * each of which is divided into linear sub-buckets, so the relative error of
+ * any recorded value is bounded by the sub-bucket resolution (about 1.5% with
+ * the default of 128 sub-buckets).  Recording never allocates.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+	private static final double[] dumpPercentiles = {
+		50.0, 75.0, 90.0, 95.0, 99.0, 99.9, 100.0
+	};
+
+	private final String name;
+	private final long highestTrackable;
+	private final long[] counts;
+	private long totalCount;
+	private long totalValue;
+	private long minValue;
+	private long maxValue;
+
+	/**
+	 * Constructs a histogram which can track values from zero through
+	 * <code>highestTrackable</code> microseconds.  Larger values are recorded
+	 * as <code>highestTrackable</code>.
+	 *
+	 * @param name				a name used when the histogram is dumped.
+	 * @param highestTrackable	the largest value that is tracked, in microseconds.
+	 */
+	public LatencyHistogram(String name, long highestTrackable) {
+		super();
+		if (highestTrackable < SUB_BUCKET_COUNT) {
+			throw new IllegalArgumentException("highestTrackable too small: " + highestTrackable);
+		}
+		this.name = name;
+		this.highestTrackable = highestTrackable;
+		this.counts = new long[indexOf(highestTrackable) + 1];
+		reset();
+	}
+
+	/**
+	 * Return the name of this histogram.
+	 *
+	 * @return	the name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Record a single value.
+	 *
+	 * @param value	the value, in microseconds.  Negative values are recorded as zero.
+	 */
+	public synchronized void record(long value) {
+		if (value < 0) {
+			value = 0;
+		} else if (value > highestTrackable) {
+			value = highestTrackable;
+		}
+		++counts[indexOf(value)];
+		++totalCount;
+		totalValue += value;
+		if (value < minValue) {
+			minValue = value;
+		}
+		if (value > maxValue) {
+			maxValue = value;
+		}
+	}
+
+	/**
+	 * Discard all recorded values.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < counts.length; ++i) {
+			counts[i] = 0;
+		}
+		totalCount = 0;
+		totalValue = 0;
+		minValue = Long.MAX_VALUE;
+		maxValue = 0;
+	}
+
+	/**
+	 * Return the number of values recorded.
+	 *
+	 * @return	the count of recorded values.
+	 */
+	public synchronized long getCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Return the smallest value recorded, or zero if no values have been recorded.
+	 *
+	 * @return	the minimum value, in microseconds.
+	 */
+	public synchronized long getMin() {
+		return (totalCount == 0) ? 0 : minValue;
+	}
+
+	/**
+	 * Return the largest value recorded.
+	 *
+	 * @return	the maximum value, in microseconds.
+	 */
+	public synchronized long getMax() {
+		return maxValue;
+	}
+
+	/**
+	 * Return the mean of the recorded values, or zero if no values have been
+	 * recorded.
+	 *
+	 * @return	the mean value, in microseconds.
+	 */
+	public synchronized double getMean() {
+		return (totalCount == 0) ? 0.0 : ((double) totalValue / totalCount);
+	}
+
+	/**
+	 * Return the value at a given percentile.  The result is the highest value
+	 * that is equivalent (within the histogram resolution) to the recorded value
+	 * at that percentile.
+	 *
+	 * @param percentile	the percentile, in the range [0..100].
+	 * @return	the value at the percentile, in microseconds.
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (totalCount == 0) {
+			return 0;
+		}
+		double p = Math.min(Math.max(percentile, 0.0), 100.0);
+		long target = (long) Math.ceil((p / 100.0) * totalCount);
+		if (target < 1) {
+			target = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(highestValueAt(i), maxValue);
+			}
+		}
+		return maxValue;
+	}
+
+	/**
+	 * Write a summary of this histogram, including a table of common
+	 * percentiles, to a <code>PrintWriter</code>.
+	 *
+	 * @param out	the writer to receive the summary.
+	 */
+	public synchronized void dump(PrintWriter out) {
+		out.println(name + ": count=" + totalCount + ", min=" + format(getMin())
+				+ ", mean=" + format((long) getMean()) + ", max=" + format(maxValue));
+		if (totalCount > 0) {
+			for (double p : dumpPercentiles) {
+				out.println("  " + pad(Double.toString(p), 6) + "%  "
+						+ format(getValueAtPercentile(p)));
+			}
+		}
+	}
+
+	private static String format(long micros) {
+		if (micros < 10000) {
+			return micros + "us";
+		}
+		return (micros / 1000) + "." + ((micros / 100) % 10) + "ms";
+	}
+
+	private static String pad(String s, int width) {
+		StringBuilder sb = new StringBuilder(width);
+		for (int i = s.length(); i < width; ++i) {
+			sb.append(' ');
+		}
+		return sb.append(s).toString();
+	}
+
+	// Values below SUB_BUCKET_COUNT have their own slot.  Above that, each power
+	// of two range is divided into SUB_BUCKET_HALF linear slots.
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift);
+		return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (sub - SUB_BUCKET_HALF);
+	}
+
+	private static long highestValueAt(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+		long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
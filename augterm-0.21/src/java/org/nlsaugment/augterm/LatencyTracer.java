@@ -0,0 +1,198 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.augterm;
+
+import java.io.PrintWriter;
+
+import org.nlsaugment.swing.TerminalPane;
+
+/**
+ * Traces the latency from a keystroke (on the keyboard or the chord keyset)
+ * to the echo of that keystroke appearing on the screen.  Each outbound key
+ * is stamped with the time of the input that produced it and the time it was
+ * sent.  The next screen change caused by received data is matched against
+ * the oldest outstanding key, and the sample is completed by the next paint
+ * of the terminal.  All times are taken from <code>System.nanoTime()</code>.
+ * <p>
+ * The tracer keeps four histograms: the total keystroke-to-echo time, and
+ * its breakdown into input&rarr;send, network round trip (send&rarr;receive),
+ * and receive&rarr;paint.
+ */
+public class LatencyTracer implements TerminalPane.PaintObserver {
+
+	// Largest latency tracked by the histograms: one minute, in microseconds
+	private static final long MAX_LATENCY = 60L * 1000 * 1000;
+
+	// Keys that have not been echoed after this long are discarded
+	private static final long KEY_TIMEOUT = 5L * 1000 * 1000 * 1000;
+
+	private static final int MAX_PENDING = 64;
+
+	private final LatencyHistogram total = new LatencyHistogram("keystroke to echo", MAX_LATENCY);
+	private final LatencyHistogram inputToSend = new LatencyHistogram("input to send", MAX_LATENCY);
+	private final LatencyHistogram roundTrip = new LatencyHistogram("network round trip", MAX_LATENCY);
+	private final LatencyHistogram receiveToPaint = new LatencyHistogram("receive to paint", MAX_LATENCY);
+
+	// Keys which have been sent but not yet echoed, oldest first
+	private final long[] sentInput = new long[MAX_PENDING];
+	private final long[] sentTime = new long[MAX_PENDING];
+	private int sentHead = 0;
+	private int sentCount = 0;
+
+	// Keys whose echo has been received but not yet painted
+	private final long[] echoInput = new long[MAX_PENDING];
+	private final long[] echoSent = new long[MAX_PENDING];
+	private final long[] echoReceived = new long[MAX_PENDING];
+	private int echoCount = 0;
+
+	private volatile boolean enabled = true;
+
+	public LatencyTracer() {
+		super();
+	}
+
+	/**
+	 * Enable or disable tracing.  Tracing is enabled by default.  Disabling
+	 * tracing discards any keys that are outstanding.
+	 *
+	 * @param enable	<code>true</code> to enable tracing.
+	 */
+	public synchronized void setEnabled(boolean enable) {
+		enabled = enable;
+		if (!enable) {
+			sentCount = 0;
+			echoCount = 0;
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Note that a key has been sent to the host.
+	 *
+	 * @param inputTime	the time at which the input which produced the key was
+	 * 					received, such as the first key press of a keyset chord.
+	 * @param sendTime	the time at which the key was written to the connection.
+	 */
+	public synchronized void keySent(long inputTime, long sendTime) {
+		if (!enabled) {
+			return;
+		}
+		expire(sendTime);
+		if (sentCount == MAX_PENDING) {
+			// Drop the oldest key
+			sentHead = (sentHead + 1) % MAX_PENDING;
+			--sentCount;
+		}
+		int slot = (sentHead + sentCount) % MAX_PENDING;
+		sentInput[slot] = inputTime;
+		sentTime[slot] = sendTime;
+		++sentCount;
+	}
+
+	/**
+	 * Note that the screen has been changed by data received from the host.
+	 * If a key is outstanding, the change is taken to be the echo of the oldest
+	 * one.
+	 *
+	 * @param receiveTime	the time at which the data causing the change was
+	 * 						received.
+	 */
+	public synchronized void screenChanged(long receiveTime) {
+		if (!enabled || (sentCount == 0)) {
+			return;
+		}
+		expire(receiveTime);
+		if ((sentCount == 0) || (sentTime[sentHead] > receiveTime)
+				|| (echoCount == MAX_PENDING)) {
+			return;
+		}
+		echoInput[echoCount] = sentInput[sentHead];
+		echoSent[echoCount] = sentTime[sentHead];
+		echoReceived[echoCount] = receiveTime;
+		++echoCount;
+		sentHead = (sentHead + 1) % MAX_PENDING;
+		--sentCount;
+	}
+
+	/**
+	 * Note that the terminal has been painted.  This completes the samples for
+	 * all keys whose echo has been received.
+	 *
+	 * @param paintTime	the time at which painting completed.
+	 */
+	public synchronized void painted(long paintTime) {
+		for (int i = 0; i < echoCount; ++i) {
+			inputToSend.record((echoSent[i] - echoInput[i]) / 1000);
+			roundTrip.record((echoReceived[i] - echoSent[i]) / 1000);
+			receiveToPaint.record((paintTime - echoReceived[i]) / 1000);
+			total.record((paintTime - echoInput[i]) / 1000);
+		}
+		echoCount = 0;
+	}
+
+	public LatencyHistogram getTotal() {
+		return total;
+	}
+
+	public LatencyHistogram getInputToSend() {
+		return inputToSend;
+	}
+
+	public LatencyHistogram getRoundTrip() {
+		return roundTrip;
+	}
+
+	public LatencyHistogram getReceiveToPaint() {
+		return receiveToPaint;
+	}
+
+	/**
+	 * Discard all recorded samples.
+	 */
+	public synchronized void reset() {
+		total.reset();
+		inputToSend.reset();
+		roundTrip.reset();
+		receiveToPaint.reset();
+		sentCount = 0;
+		echoCount = 0;
+	}
+
+	/**
+	 * Write all of the histograms to a <code>PrintWriter</code>.
+	 *
+	 * @param out	the writer to receive the histograms.
+	 */
+	public void dump(PrintWriter out) {
+		total.dump(out);
+		inputToSend.dump(out);
+		roundTrip.dump(out);
+		receiveToPaint.dump(out);
+		out.flush();
+	}
+
+	private void expire(long now) {
+		while ((sentCount > 0) && ((now - sentTime[sentHead]) > KEY_TIMEOUT)) {
+			sentHead = (sentHead + 1) % MAX_PENDING;
+			--sentCount;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.augterm;
+
+import javax.swing.text.BadLocationException;
+
+import org.nlsaugment.event.KeysetEvent;
+import org.nlsaugment.net.telnet.TelnetLinemodeOption;
+import org.nlsaugment.swing.TerminalPane;
+
+/**
+ * Edits a line locally while the Telnet LINEMODE option is in edit mode, so
+ * that the line is sent to the host in one write when it is finished,
+ * instead of one key at a time.  Printable keys are added to the line, and
+ * echoed at the cursor if the host is not echoing.  The special characters
+ * set by the host erase the last character, the last word, or the whole
+ * line, and quote the next key.  A return, a line feed, a character in the
+ * host's forward mask, or any other control character finishes the line,
+ * as does filling the row on which it is echoed.
+ * <p>
+ * A line is only edited on one row of the screen, starting at the cursor
+ * position when its first key is typed.  It is used only by the event
+ * dispatch thread, to which the chords of the keyset are also posted.
+ */
+public class LineEditor {
+
+	/**
+	 * <code>key</code> result: the key was added to the line or edited it.
+	 */
+	public static final int EDITED = 0;
+	/**
+	 * <code>key</code> result: the line is finished, and is to be taken with
+	 * {@link #takeLine(char)}.
+	 */
+	public static final int FORWARD = 1;
+	/**
+	 * <code>key</code> result: the line was discarded, and the host is to be
+	 * interrupted.
+	 */
+	public static final int INTERRUPT = 2;
+	/**
+	 * <code>key</code> result: the host's output is to be aborted.
+	 */
+	public static final int ABORT_OUTPUT = 3;
+
+	private static final int MAX_LINE = 1024;
+
+	private final TerminalPane tpane;
+
+	private final char[] line = new char[MAX_LINE];
+	private int length = 0;
+	private int row;
+	private int column;
+	private boolean echo;
+	private boolean literalNext = false;
+
+	public LineEditor(TerminalPane tpane) {
+		this.tpane = tpane;
+	}
+
+	/**
+	 * Return <code>true</code> if no line is being edited.
+	 *
+	 * @return	<code>true</code> if the line is empty.
+	 */
+	public boolean isEmpty() {
+		return (length == 0) && !literalNext;
+	}
+
+	/**
+	 * Return the column following the echo of the line.
+	 *
+	 * @return	the column at which the cursor is left by the line.
+	 */
+	public int getEndColumn() {
+		return column + ((echo) ? length : 0);
+	}
+
+	/**
+	 * Edit the line with a typed key.
+	 *
+	 * @param ch		the key.
+	 * @param opt		the LINEMODE option, whose special characters are used.
+	 * @param row		the cursor row, where a new line is echoed.
+	 * @param column	the cursor column, where a new line is echoed.
+	 * @param echo		<code>true</code> if a new line is to be echoed.
+	 * @return	<code>EDITED</code>, <code>FORWARD</code>,
+	 * 			<code>INTERRUPT</code> or <code>ABORT_OUTPUT</code>.
+	 */
+	public int key(char ch, TelnetLinemodeOption opt, int row, int column,
+			boolean echo) {
+		if (isEmpty()) {
+			this.row = row;
+			this.column = column;
+			this.echo = echo;
+		}
+		if (literalNext) {
+			literalNext = false;
+			return add(ch);
+		}
+		int function = opt.getFunction(ch);
+		switch (function) {
+		case TelnetLinemodeOption.SLC_EC:
+			erase(1);
+			return EDITED;
+		case TelnetLinemodeOption.SLC_EW:
+			int n = 0;
+			while ((n < length) && (line[length - n - 1] == ' ')) {
+				++n;
+			}
+			while ((n < length) && (line[length - n - 1] != ' ')) {
+				++n;
+			}
+			erase(n);
+			return EDITED;
+		case TelnetLinemodeOption.SLC_EL:
+			erase(length);
+			return EDITED;
+		case TelnetLinemodeOption.SLC_LNEXT:
+			literalNext = true;
+			return EDITED;
+		case TelnetLinemodeOption.SLC_IP:
+			if (opt.isTrappingSignals()) {
+				erase(length);
+				return INTERRUPT;
+			}
+			break;
+		case TelnetLinemodeOption.SLC_AO:
+			if (opt.isTrappingSignals()) {
+				return ABORT_OUTPUT;
+			}
+			break;
+		case TelnetLinemodeOption.SLC_FORW1:
+		case TelnetLinemodeOption.SLC_FORW2:
+			return FORWARD;
+		}
+		if ((ch < 040) && (ch != '\t')) {
+			return FORWARD;
+		}
+		if (opt.isForwardChar(ch)) {
+			return FORWARD;
+		}
+		return add(ch);
+	}
+
+	/**
+	 * Take the finished line to be sent, ending it with the key which
+	 * finished it, and empty the line.  A return is sent as return and line
+	 * feed.
+	 *
+	 * @param ch	the key, or <code>CHAR_UNDEFINED</code> for none.
+	 * @return	the bytes of the line.
+	 */
+	public byte[] takeLine(char ch) {
+		int n = length;
+		if (ch == '\r') {
+			n += 2;
+		} else if (ch != KeysetEvent.CHAR_UNDEFINED) {
+			++n;
+		}
+		byte[] bytes = new byte[n];
+		for (int i = 0; i < length; ++i) {
+			bytes[i] = (byte) line[i];
+		}
+		if (n > length) {
+			bytes[length] = (byte) ch;
+			if (ch == '\r') {
+				bytes[length + 1] = '\n';
+			}
+		}
+		length = 0;
+		literalNext = false;
+		return bytes;
+	}
+
+	/**
+	 * Discard the line, without erasing its echo, when the connection is
+	 * closed or the screen is cleared.
+	 */
+	public void discard() {
+		length = 0;
+		literalNext = false;
+	}
+
+	// Add a character to the line, or finish the line with it if its row
+	// is full
+	private int add(char ch) {
+		int limit = Math.min(MAX_LINE, tpane.getColumns() - column);
+		if (length >= limit) {
+			return FORWARD;
+		}
+		if (echo) {
+			try {
+				tpane.putChar(row, column + length, ch, false);
+			} catch (BadLocationException ble) {
+			}
+		}
+		line[length++] = ch;
+		return EDITED;
+	}
+
+	// Erase characters from the end of the line, and their echo
+	private void erase(int n) {
+		for (int i = Math.min(n, length); i > 0; --i) {
+			--length;
+			if (echo) {
+				try {
+					tpane.putChar(row, column + length, ' ', false);
+				} catch (BadLocationException ble) {
+				}
+			}
+		}
+	}
+}
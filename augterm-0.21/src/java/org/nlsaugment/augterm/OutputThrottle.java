@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.augterm;
+
+import java.awt.Component;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.nlsaugment.net.telnet.TelnetFlowControlOption;
+import org.nlsaugment.net.telnet.TelnetSocket;
+import org.nlsaugment.swing.TerminalPane;
+
+/**
+ * Applies back pressure to the host when the display falls behind its
+ * output.  The reader counts each change it makes to the screen, and each
+ * paint of the terminal marks the changes made so far as displayed.  The
+ * changes not yet displayed are the render backlog:
+ * <ul>
+ * <li>Above <code>BATCH_WATER</code> the reader is behind, and batches the
+ * lines of a scrolling screen rather than scrolling once for each line.</li>
+ * <li>Above <code>HIGH_WATER</code> XOFF is sent, to stop the host's output
+ * if it has enabled TOGGLE-FLOW-CONTROL and left flow control on.</li>
+ * <li>XON is sent to restart the output once the display has caught up, when
+ * the backlog found by a paint is below <code>LOW_WATER</code>.  Until then
+ * the display is painted again after each paint, so that the backlog is
+ * measured again even if nothing more arrives.</li>
+ * </ul>
+ * The reader does not queue what it receives, so while output is stopped
+ * the data in transit is bounded by the socket buffers, and the rest waits
+ * at the host.
+ */
+public class OutputThrottle implements TerminalPane.PaintObserver {
+
+	// Backlog, in screen changes, at which scrolling is batched
+	static final int BATCH_WATER = 1024;
+
+	// Backlog at which output is stopped
+	static final int HIGH_WATER = 16384;
+
+	// Backlog below which stopped output is restarted
+	static final int LOW_WATER = 256;
+
+	private final Component display;
+	private OutputStream out = null;
+	private TelnetFlowControlOption option = null;
+	private long changes = 0;
+	private long paintedChanges = 0;
+	private boolean stopped = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param display	the component which displays the changes.
+	 */
+	public OutputThrottle(Component display) {
+		super();
+		this.display = display;
+	}
+
+	/**
+	 * Start throttling the output of a new connection.
+	 *
+	 * @param socket	the connection.
+	 * @param option	its TOGGLE-FLOW-CONTROL option.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public synchronized void connect(TelnetSocket socket, TelnetFlowControlOption option)
+			throws IOException {
+		this.out = socket.getOutputStream();
+		this.option = option;
+		changes = 0;
+		paintedChanges = 0;
+		stopped = false;
+	}
+
+	/**
+	 * Stop throttling when the connection is closed.
+	 */
+	public synchronized void disconnect() {
+		out = null;
+		option = null;
+		stopped = false;
+	}
+
+	/**
+	 * Note that the reader has changed the screen, and stop the host's
+	 * output if the backlog has reached the high watermark.
+	 */
+	public synchronized void changed() {
+		++changes;
+		if (!stopped && (changes - paintedChanges >= HIGH_WATER)
+				&& (option != null) && option.isFlowControlOn()) {
+			stopped = send(TelnetFlowControlOption.XOFF);
+		}
+	}
+
+	/**
+	 * Return <code>true</code> if the display is far enough behind that the
+	 * reader should batch the lines of a scrolling screen.
+	 *
+	 * @return	<code>true</code> if the reader is behind.
+	 */
+	public synchronized boolean isBehind() {
+		return changes - paintedChanges >= BATCH_WATER;
+	}
+
+	/**
+	 * Return <code>true</code> if XOFF has been sent and not yet followed by
+	 * XON.
+	 *
+	 * @return	<code>true</code> if the host's output is stopped.
+	 */
+	public synchronized boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Mark the changes made so far as displayed.  If the host's output was
+	 * stopped, restart it if the backlog which this paint displayed was below
+	 * the low watermark, and otherwise paint again to measure it again.
+	 *
+	 * @param when	the time at which painting completed.
+	 */
+	public synchronized void painted(long when) {
+		long backlog = changes - paintedChanges;
+		paintedChanges = changes;
+		if (stopped) {
+			// If the host has since turned flow control off, it is not
+			// waiting for XON
+			if ((option == null) || !option.isFlowControlOn()) {
+				stopped = false;
+			} else if (backlog >= LOW_WATER) {
+				display.repaint();
+			} else if (send(TelnetFlowControlOption.XON)) {
+				stopped = false;
+			}
+		}
+	}
+
+	private boolean send(byte ch) {
+		if (out == null) {
+			return false;
+		}
+		try {
+			out.write(ch);
+			out.flush();
+			return true;
+		} catch (IOException iox) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.augterm;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import javax.swing.text.BadLocationException;
+
+import org.nlsaugment.swing.ScrollbackBuffer;
+import org.nlsaugment.swing.TerminalPane;
+
+/**
+ * A copy of the terminal screen and the emulation state which goes with it,
+ * kept in a file so that the last screen of a session can be shown again as
+ * soon as the terminal is restarted, while a new session is connected and
+ * the host redraws it.
+ * <p>
+ * The file holds a fixed size header followed by the characters of the
+ * screen, two bytes each, and then their attributes, one byte each, row by
+ * row.  It is written to a temporary file which then replaces the old one,
+ * so that a crash while writing never leaves a partial snapshot, and it is
+ * memory-mapped when it is read back.
+ */
+public class ScreenSnapshot {
+
+	/**
+	 * Mode bit: characters are written at a position set by the host.
+	 */
+	public static final int MODE_POSITIONED = 1;
+	/**
+	 * Mode bit: characters are written in reverse video.
+	 */
+	public static final int MODE_REVERSE = 2;
+	/**
+	 * Mode bit: keys are sent with coordinates.
+	 */
+	public static final int MODE_COORDINATE = 4;
+
+	// "AUGS"
+	private static final int MAGIC = 0x41554753;
+	private static final int VERSION = 1;
+
+	// Header layout: magic (4), version (2), rows (2), columns (2),
+	// modes (2), cursor, TTY position and bug position (2 + 2 each),
+	// TTY window top and bottom (2 each)
+	private static final int HEADER_SIZE = 28;
+
+	// A larger screen is taken to be a damaged file
+	private static final int MAX_SIZE = 1024;
+
+	private final int rows;
+	private final int columns;
+	private final char[][] text;
+	private final byte[][] attr;
+
+	private Point cursor = new Point(0, 0);
+	private Point ttyPosition = new Point(0, 0);
+	private Point bugPosition = null;
+	private int ttyTop = 0;
+	private int ttyBottom = 0;
+	private int modes = 0;
+
+	/**
+	 * Constructor for a snapshot of the current contents of a terminal.  The
+	 * emulation state is set separately.
+	 *
+	 * @param tpane		the terminal.
+	 * @throws BadLocationException	if the terminal cannot be read.
+	 */
+	public ScreenSnapshot(TerminalPane tpane) throws BadLocationException {
+		this(tpane.getRows(), tpane.getColumns());
+		for (int i = 0; i < rows; ++i) {
+			tpane.getRowText(i).getChars(0, columns, text[i], 0);
+			tpane.getRowAttributes(i, attr[i]);
+		}
+		ttyBottom = rows - 1;
+	}
+
+	private ScreenSnapshot(int rows, int columns) {
+		this.rows = rows;
+		this.columns = columns;
+		this.text = new char[rows][columns];
+		this.attr = new byte[rows][columns];
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public Point getCursor() {
+		return new Point(cursor);
+	}
+
+	public void setCursor(Point cursor) {
+		this.cursor = new Point(cursor);
+	}
+
+	public Point getTtyPosition() {
+		return new Point(ttyPosition);
+	}
+
+	public void setTtyPosition(Point ttyPosition) {
+		this.ttyPosition = new Point(ttyPosition);
+	}
+
+	/**
+	 * Return the position of the bug selection.
+	 *
+	 * @return	the position, or <code>null</code> if there is no bug.
+	 */
+	public Point getBugPosition() {
+		return (bugPosition == null) ? null : new Point(bugPosition);
+	}
+
+	public void setBugPosition(Point bugPosition) {
+		this.bugPosition = (bugPosition == null) ? null : new Point(bugPosition);
+	}
+
+	public int getTtyTop() {
+		return ttyTop;
+	}
+
+	public int getTtyBottom() {
+		return ttyBottom;
+	}
+
+	/**
+	 * Set the rows of the TTY window.
+	 *
+	 * @param top		the row address of the top of the window.
+	 * @param bottom	the row address of the bottom of the window.
+	 */
+	public void setTtyWindow(int top, int bottom) {
+		this.ttyTop = top;
+		this.ttyBottom = bottom;
+	}
+
+	/**
+	 * Return the emulation modes.
+	 *
+	 * @return	a combination of the <code>MODE_</code> bits.
+	 */
+	public int getModes() {
+		return modes;
+	}
+
+	public void setModes(int modes) {
+		this.modes = modes;
+	}
+
+	/**
+	 * Write the characters of the snapshot to a terminal, one string for
+	 * each run of an attribute.  If the terminal is a different size, the
+	 * part of the snapshot which fits is written, at the top left.
+	 *
+	 * @param tpane		the terminal.
+	 * @throws BadLocationException	if the terminal cannot be written.
+	 */
+	public void restore(TerminalPane tpane) throws BadLocationException {
+		int n = Math.min(rows, tpane.getRows());
+		int len = Math.min(columns, tpane.getColumns());
+		for (int i = 0; i < n; ++i) {
+			char[] t = text[i];
+			byte[] a = attr[i];
+			int start = 0;
+			while (start < len) {
+				int end = start + 1;
+				while ((end < len) && (a[end] == a[start])) {
+					++end;
+				}
+				tpane.putString(i, start, new String(t, start, end - start),
+						a[start] == ScrollbackBuffer.ATTR_REVERSE);
+				start = end;
+			}
+		}
+	}
+
+	/**
+	 * Write the snapshot to a file, replacing it as a whole.  The snapshot is
+	 * written and synced to a temporary file beside it, which is then renamed.
+	 *
+	 * @param file	the file.
+	 * @throws IOException	if the file cannot be written.
+	 */
+	public void write(File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + rows * columns * 3);
+		buffer.putInt(MAGIC);
+		buffer.putShort((short) VERSION);
+		buffer.putShort((short) rows);
+		buffer.putShort((short) columns);
+		buffer.putShort((short) modes);
+		putPoint(buffer, cursor);
+		putPoint(buffer, ttyPosition);
+		putPoint(buffer, bugPosition);
+		buffer.putShort((short) ttyTop);
+		buffer.putShort((short) ttyBottom);
+		for (int i = 0; i < rows; ++i) {
+			buffer.asCharBuffer().put(text[i]);
+			buffer.position(buffer.position() + columns * 2);
+		}
+		for (int i = 0; i < rows; ++i) {
+			buffer.put(attr[i]);
+		}
+		buffer.flip();
+
+		File temp = new File(file.getPath() + ".tmp");
+		boolean ok = false;
+		try {
+			FileChannel channel = new FileOutputStream(temp).getChannel();
+			try {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException amx) {
+				Files.move(temp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			ok = true;
+		} finally {
+			if (!ok) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Read a snapshot from a file written by {@link #write(File)}.
+	 *
+	 * @param file	the file.
+	 * @return	the snapshot.
+	 * @throws IOException	if the file cannot be read, or does not hold a
+	 * snapshot.
+	 */
+	public static ScreenSnapshot read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			if (size < HEADER_SIZE) {
+				throw new IOException("Not a screen snapshot: " + file);
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, size);
+			int rows = (buffer.getShort(6) & 0xffff);
+			int columns = (buffer.getShort(8) & 0xffff);
+			if ((buffer.getInt(0) != MAGIC) || (buffer.getShort(4) != VERSION)
+					|| (rows == 0) || (rows > MAX_SIZE)
+					|| (columns == 0) || (columns > MAX_SIZE)
+					|| (size != HEADER_SIZE + (long) rows * columns * 3)) {
+				throw new IOException("Not a screen snapshot: " + file);
+			}
+			ScreenSnapshot snapshot = new ScreenSnapshot(rows, columns);
+			buffer.position(10);
+			snapshot.modes = buffer.getShort();
+			Point cursor = getPoint(buffer);
+			Point ttyPosition = getPoint(buffer);
+			if (cursor != null) {
+				snapshot.cursor = cursor;
+			}
+			if (ttyPosition != null) {
+				snapshot.ttyPosition = ttyPosition;
+			}
+			snapshot.bugPosition = getPoint(buffer);
+			snapshot.ttyTop = buffer.getShort();
+			snapshot.ttyBottom = buffer.getShort();
+			for (int i = 0; i < rows; ++i) {
+				buffer.asCharBuffer().get(snapshot.text[i]);
+				buffer.position(buffer.position() + columns * 2);
+			}
+			for (int i = 0; i < rows; ++i) {
+				buffer.get(snapshot.attr[i]);
+			}
+			return snapshot;
+		} finally {
+			raf.close();
+		}
+	}
+
+	// A point is a column and a row; a missing point is -1, -1
+	private static void putPoint(ByteBuffer buffer, Point p) {
+		buffer.putShort((short) ((p == null) ? -1 : p.x));
+		buffer.putShort((short) ((p == null) ? -1 : p.y));
+	}
+
+	private static Point getPoint(ByteBuffer buffer) {
+		int x = buffer.getShort();
+		int y = buffer.getShort();
+		return ((x < 0) || (y < 0)) ? null : new Point(x, y);
+	}
+}
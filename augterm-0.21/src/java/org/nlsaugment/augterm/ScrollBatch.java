@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.augterm;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+import javax.swing.text.BadLocationException;
+
+import org.nlsaugment.swing.ScrollbackBuffer;
+import org.nlsaugment.swing.TerminalPane;
+
+/**
+ * Collects the lines of a scrolling screen while the display is behind the
+ * host's output, so that the terminal is scrolled once for many lines instead
+ * of once for each line.  While a batch is active, each line feed at the
+ * bottom of the screen starts a new row in the batch instead of scrolling the
+ * terminal, and characters written to the bottom row are written to the
+ * newest row of the batch.  When the batch is flushed the terminal is
+ * scrolled by the number of rows in the batch, and the rows are written
+ * below; the screens which would have been displayed in between are never
+ * drawn.
+ * <p>
+ * A batch holds at most one screen of rows, and is flushed when it is full,
+ * before any other change to the screen, and whenever the reader has no more
+ * input waiting.  It is used only by the reader thread.
+ */
+public class ScrollBatch {
+
+	private final TerminalPane tpane;
+
+	// The rows of the batch, oldest first, with their attributes
+	private char[][] text = new char[0][];
+	private byte[][] attr = new byte[0][];
+	private int count = 0;
+
+	public ScrollBatch(TerminalPane tpane) {
+		this.tpane = tpane;
+	}
+
+	/**
+	 * Return <code>true</code> if the batch has any rows.
+	 *
+	 * @return	<code>true</code> if the batch is active.
+	 */
+	public boolean isActive() {
+		return count > 0;
+	}
+
+	/**
+	 * Scroll the screen up by one line, adding a blank row to the batch.
+	 *
+	 * @throws BadLocationException	if the terminal cannot be scrolled.
+	 */
+	public void lineFeed() throws BadLocationException {
+		int rows = tpane.getRows();
+		int columns = tpane.getColumns();
+		boolean resized = (text.length != rows)
+				|| ((rows > 0) && (text[0].length != columns));
+		if ((count >= rows) || ((count > 0) && resized)) {
+			flush();
+		}
+		if (resized) {
+			text = new char[rows][columns];
+			attr = new byte[rows][columns];
+		}
+		Arrays.fill(text[count], ' ');
+		Arrays.fill(attr[count], ScrollbackBuffer.ATTR_PLAIN);
+		++count;
+	}
+
+	/**
+	 * Write a character to the newest row of the batch.
+	 *
+	 * @param column	the column address.
+	 * @param ch		the character.
+	 * @param reverse	<code>true</code> for reverse video mode.
+	 */
+	public void put(int column, char ch, boolean reverse) {
+		if ((count > 0) && (column >= 0) && (column < text[count - 1].length)) {
+			text[count - 1][column] = ch;
+			attr[count - 1][column] = (reverse) ? ScrollbackBuffer.ATTR_REVERSE
+					: ScrollbackBuffer.ATTR_PLAIN;
+		}
+	}
+
+	/**
+	 * Scroll the terminal by the rows of the batch and write them at the
+	 * bottom, emptying the batch.
+	 *
+	 * @throws BadLocationException	if the terminal cannot be written.
+	 */
+	public void flush() throws BadLocationException {
+		if (count == 0) {
+			return;
+		}
+		int rows = tpane.getRows();
+		int columns = tpane.getColumns();
+		int n = Math.min(count, rows);
+		tpane.scrollUp(0, 0, rows - 1, columns - 1, n);
+
+		// If the terminal has shrunk, rows which no longer fit on it go
+		// straight to the scrollback buffer
+		ScrollbackBuffer scrollback = tpane.getScrollback();
+		for (int i = 0; i < count - n; ++i) {
+			if (scrollback != null) {
+				scrollback.addRow(CharBuffer.wrap(text[i]), attr[i], text[i].length);
+			}
+		}
+		for (int i = 0; i < n; ++i) {
+			putRow(rows - n + i, count - n + i, columns);
+		}
+		count = 0;
+	}
+
+	/**
+	 * Empty the batch without showing its rows, when the host's output is
+	 * aborted.  The screen is left as it was before the batch.
+	 */
+	public void discard() {
+		count = 0;
+	}
+
+	// Write a row of the batch, one string for each run of an attribute
+	private void putRow(int row, int index, int columns) throws BadLocationException {
+		char[] t = text[index];
+		byte[] a = attr[index];
+		int len = Math.min(t.length, columns);
+		int start = 0;
+		while (start < len) {
+			int end = start + 1;
+			while ((end < len) && (a[end] == a[start])) {
+				++end;
+			}
+			tpane.putString(row, start, new String(t, start, end - start),
+					a[start] == ScrollbackBuffer.ATTR_REVERSE);
+			start = end;
+		}
+	}
+}
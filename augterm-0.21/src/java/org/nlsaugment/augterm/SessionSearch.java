@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.augterm;
+
+import javax.swing.text.BadLocationException;
+
+import org.nlsaugment.swing.ScrollbackIndex;
+import org.nlsaugment.swing.ScrollbackView;
+import org.nlsaugment.swing.TerminalPane;
+
+/**
+ * Finds a string in the terminal session: first on the terminal screen, from
+ * the bottom up, then in the scrollback history, from newest to oldest.  The
+ * screen is small enough to scan directly; the history is searched with a
+ * <code>ScrollbackIndex</code>.  The current result is highlighted on top of
+ * the screen or history, without changing either.
+ */
+public class SessionSearch {
+
+	// Limit on the number of history lines returned by one search
+	private static final int MAX_RESULTS = 10000;
+
+	private final TerminalPane tpane;
+	private final ScrollbackView view;
+	private final ScrollbackIndex index;
+
+	private String query = null;
+	private int screenRow = -1;
+	private long[] lines = new long[0];
+	private int lineIndex = -1;
+
+	/**
+	 * Constructor for a session search.
+	 *
+	 * @param tpane	the terminal screen.
+	 * @param view	the scrollback history view, or <code>null</code> if there
+	 * 				is no history.
+	 * @param index	the index of the history, or <code>null</code> if there is
+	 * 				no history.
+	 */
+	public SessionSearch(TerminalPane tpane, ScrollbackView view, ScrollbackIndex index) {
+		super();
+		this.tpane = tpane;
+		this.view = view;
+		this.index = index;
+	}
+
+	/**
+	 * Return the string most recently searched for.
+	 *
+	 * @return	the string, or <code>null</code> if there has been no search.
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Start a new search, and highlight the first result.
+	 *
+	 * @param s	the string to find, ignoring case.
+	 * @return	<code>true</code> if it was found.
+	 */
+	public boolean find(String s) {
+		clear();
+		if ((s == null) || (s.length() == 0)) {
+			return false;
+		}
+		query = s;
+		screenRow = tpane.getRows();
+		lines = (index == null) ? new long[0] : index.search(s, MAX_RESULTS);
+		lineIndex = lines.length;
+		return findNext();
+	}
+
+	/**
+	 * Highlight the next older result of the current search, wrapping around
+	 * to the bottom of the screen after the oldest.
+	 *
+	 * @return	<code>true</code> if there is a result.
+	 */
+	public boolean findNext() {
+		if (query == null) {
+			return false;
+		}
+		for (int pass = 0; pass < 2; ++pass) {
+			if (nextOnScreen() || nextInHistory()) {
+				return true;
+			}
+			// Wrap around
+			screenRow = tpane.getRows();
+			lineIndex = lines.length;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove any highlighted result.
+	 */
+	public void clear() {
+		tpane.clearSearchHighlight();
+		if (view != null) {
+			view.clearHighlight();
+		}
+	}
+
+	private boolean nextOnScreen() {
+		String q = query.toLowerCase();
+		while (--screenRow >= 0) {
+			try {
+				int column = tpane.getRowText(screenRow).toLowerCase().indexOf(q);
+				if (column >= 0) {
+					clear();
+					tpane.setSearchHighlight(screenRow, column, q.length());
+					return true;
+				}
+			} catch (BadLocationException ble) {
+				break;
+			}
+		}
+		screenRow = -1;
+		return false;
+	}
+
+	private boolean nextInHistory() {
+		while (--lineIndex >= 0) {
+			int column = index.indexOf(lines[lineIndex], query);
+			if (column >= 0) {
+				clear();
+				view.setHighlight(lines[lineIndex], column, query.length());
+				return true;
+			}
+		}
+		lineIndex = -1;
+		return false;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.augterm;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the bytes of UTF-8 characters received in Telnet binary mode, one
+ * byte at a time, as the terminal reads them.  A multibyte sequence may be
+ * split across reads; its bytes are held until it is complete.  The buffers
+ * are allocated once, so decoding allocates nothing per character.
+ * <p>
+ * Only bytes from 0200 up are passed to the decoder.  ASCII bytes are
+ * interpreted directly by the terminal, after calling {@link #reset()} if
+ * they cut a sequence short.  Malformed sequences, and characters outside
+ * the Basic Multilingual Plane, which do not fit one screen cell, are decoded
+ * as <code>REPLACEMENT</code>.
+ */
+public class Utf8Decoder {
+
+	/**
+	 * The character decoded from a malformed sequence.
+	 */
+	public static final char REPLACEMENT = '\uFFFD';
+
+	private final CharsetDecoder decoder;
+	private final ByteBuffer in = ByteBuffer.allocate(8);
+	private final CharBuffer out = CharBuffer.allocate(4);
+
+	public Utf8Decoder() {
+		decoder = Charset.forName("UTF-8").newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)
+				.replaceWith(Character.toString(REPLACEMENT));
+	}
+
+	/**
+	 * Return <code>true</code> if part of a multibyte sequence has been
+	 * decoded.
+	 *
+	 * @return	<code>true</code> if a sequence is incomplete.
+	 */
+	public boolean isPending() {
+		return in.position() > 0;
+	}
+
+	/**
+	 * Decode the next byte of a multibyte sequence.
+	 *
+	 * @param b		the byte, from 0200 to 0377.
+	 * @return	the character completed by the byte, or -1 if the sequence is
+	 * not complete yet.
+	 */
+	public int decode(int b) {
+		in.put((byte) b);
+		in.flip();
+		out.clear();
+		decoder.decode(in, out, false);
+		in.compact();
+		if (out.position() == 0) {
+			return -1;
+		}
+		char ch = out.get(0);
+		if (Character.isHighSurrogate(ch)) {
+			return REPLACEMENT;
+		}
+		return ch;
+	}
+
+	/**
+	 * Discard an incomplete sequence.
+	 */
+	public void reset() {
+		in.clear();
+		decoder.reset();
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * <p>Decides whether KEY4 is pressed from the values of the axis it is wired to. The values depend on
+ * the adapter: about -10000 pressed and -16000 released for the original cable, and full scale for a
+ * gamepad axis. Rather than rely on a fixed threshold, the calibrator learns the released and pressed
+ * values from the axis itself.
+ *
+ * <p>Until both have been seen, it uses the configured threshold with a fixed hysteresis band. The
+ * lowest and highest values seen are taken as the released and pressed levels once they are at least
+ * MIN_SEPARATION apart. From then on each value updates an exponentially weighted moving average of
+ * the level of the current state, so that the levels follow drift. The threshold is midway between the
+ * levels, and the key changes state only when the value crosses the band of a quarter of their
+ * separation around it. A noisy axis therefore produces a single press and release rather than a
+ * burst of them, each of which would be dispatched and could create a phantom chord.
+ *
+ * <p>The learned levels can be saved per device, so that the calibration survives restarts.
+ */
+public final class AxisCalibrator {
+  /**
+   * The least difference between the released and pressed levels for the calibration to be used.
+   */
+  public static final int MIN_SEPARATION = 4000;
+
+  private static final int __shift = 4;       // EWMA weight of each value, 1/16
+  private static final int __fraction = 8;    // levels are kept with 8 fraction bits
+
+  private final int _threshold;
+  private final int _hysteresis;
+  private final boolean _adaptive;
+
+  private boolean _calibrated = false;
+  private long _low = Long.MAX_VALUE;   // released level, scaled by 1 << __fraction
+  private long _high = Long.MIN_VALUE;  // pressed level, scaled by 1 << __fraction
+  private boolean _pressed = false;
+  private boolean _changed = false;
+  private File _file = null;       // where the levels are saved
+  private String _device = null;
+
+  /**
+   * @param threshold the value above which the key is pressed until the axis is calibrated
+   * @param hysteresis half the width of the band around the threshold until the axis is calibrated
+   * @param adaptive true to learn the levels, or false to always use the threshold
+   */
+  public AxisCalibrator(final int threshold, final int hysteresis, final boolean adaptive) {
+    this._threshold = threshold;
+    this._hysteresis = Math.max(hysteresis, 0);
+    this._adaptive = adaptive;
+  }
+
+  /**
+   * Forget the state of the key, but not the calibration, as when the device is opened.
+   */
+  public void reset() {
+    this._pressed = false;
+  }
+
+  public boolean isPressed() {
+    return this._pressed;
+  }
+
+  public synchronized boolean isCalibrated() {
+    return this._calibrated;
+  }
+
+  /**
+   * Return the current threshold.
+   */
+  public synchronized int getThreshold() {
+    return this._calibrated ? (int) ((this._low + this._high) >> (__fraction + 1)) : this._threshold;
+  }
+
+  /**
+   * Return half the width of the current hysteresis band.
+   */
+  public synchronized int getHysteresis() {
+    return this._calibrated ? (int) ((this._high - this._low) >> (__fraction + 3)) : this._hysteresis;
+  }
+
+  /**
+   * Return the learned released level, or the threshold if the axis is not calibrated.
+   */
+  public synchronized int getReleasedLevel() {
+    return this._calibrated ? (int) (this._low >> __fraction) : this._threshold;
+  }
+
+  /**
+   * Return the learned pressed level, or the threshold if the axis is not calibrated.
+   */
+  public synchronized int getPressedLevel() {
+    return this._calibrated ? (int) (this._high >> __fraction) : this._threshold;
+  }
+
+  /**
+   * Learn from a value without changing the state of the key, as for the initial state of the axis.
+   */
+  public synchronized void observe(final int value) {
+    if (this._adaptive) {
+      learn((long) value << __fraction, value > getThreshold());
+    }
+  }
+
+  /**
+   * Process a value of the axis.
+   * @return whether the key is pressed
+   */
+  public synchronized boolean update(final int value) {
+    final int threshold;
+    final int hysteresis;
+    if (this._calibrated) {
+      threshold = (int) ((this._low + this._high) >> (__fraction + 1));
+      hysteresis = (int) ((this._high - this._low) >> (__fraction + 3));
+    } else {
+      threshold = this._threshold;
+      hysteresis = this._hysteresis;
+    }
+    if (this._pressed) {
+      this._pressed = value >= threshold - hysteresis;
+    } else {
+      this._pressed = value > threshold + hysteresis;
+    }
+    if (this._adaptive) {
+      learn((long) value << __fraction, this._pressed);
+    }
+    return this._pressed;
+  }
+
+  private void learn(final long scaled, final boolean pressed) {
+    if (! this._calibrated) {
+      this._low = Math.min(this._low, scaled);
+      this._high = Math.max(this._high, scaled);
+      if (this._high - this._low >= ((long) MIN_SEPARATION << __fraction)) {
+        this._calibrated = true;
+        this._changed = true;
+      }
+      return;
+    }
+    if (pressed) {
+      this._high += (scaled - this._high) >> __shift;
+    } else {
+      this._low += (scaled - this._low) >> __shift;
+    }
+    if (this._high - this._low < ((long) MIN_SEPARATION << __fraction)) {
+      // The levels have converged, as when one was learned from noise; start again
+      this._calibrated = false;
+      this._low = scaled;
+      this._high = scaled;
+    }
+    this._changed = true;
+  }
+
+  /**
+   * Load the levels saved for a device, if any, and save them there from then on.
+   */
+  public synchronized void load(final File file, final String device) {
+    this._file = file;
+    this._device = device;
+    if (! this._adaptive || ! file.isFile()) {
+      return;
+    }
+    final Properties properties = new Properties();
+    try {
+      final InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+      final String low = properties.getProperty(device + ".released");
+      final String high = properties.getProperty(device + ".pressed");
+      if (low != null && high != null) {
+        final long l = (long) Integer.parseInt(low.trim()) << __fraction;
+        final long h = (long) Integer.parseInt(high.trim()) << __fraction;
+        if (h - l >= ((long) MIN_SEPARATION << __fraction)) {
+          this._low = l;
+          this._high = h;
+          this._calibrated = true;
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to read axis calibration: " + e);
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid axis calibration for " + device + " in " + file);
+    }
+  }
+
+  /**
+   * Save the levels to the file they were loaded from, if they have changed since they were loaded
+   * or last saved. The levels of other devices in the file are kept.
+   */
+  public synchronized void save() {
+    final File file = this._file;
+    final String device = this._device;
+    if (file == null || ! this._calibrated || ! this._changed) {
+      return;
+    }
+    final Properties properties = new Properties();
+    try {
+      if (file.isFile()) {
+        final InputStream in = new FileInputStream(file);
+        try {
+          properties.load(in);
+        } finally {
+          in.close();
+        }
+      }
+      properties.setProperty(device + ".released", Integer.toString((int) (this._low >> __fraction)));
+      properties.setProperty(device + ".pressed", Integer.toString((int) (this._high >> __fraction)));
+      final OutputStream out = new FileOutputStream(file);
+      try {
+        properties.store(out, "Keyset axis calibration");
+      } finally {
+        out.close();
+      }
+      this._changed = false;
+    } catch (IOException e) {
+      System.err.println("Unable to save axis calibration: " + e);
+    }
+  }
+
+  public synchronized String toString() {
+    return "threshold=" + getThreshold() + ", hysteresis=" + getHysteresis()
+      + (this._calibrated ? ", released=" + getReleasedLevel() + ", pressed=" + getPressedLevel() : ", uncalibrated");
+  }
+}
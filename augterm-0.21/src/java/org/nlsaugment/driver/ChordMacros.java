@@ -0,0 +1,321 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Expands sequences of chords into text, so that a whole command word such as "Jump " can be
+ * entered with one chord or a short sequence of them. Chords which do not begin a macro pass through
+ * unchanged.
+ *
+ * <p>The macros are compiled into a trie with one node for each prefix of a sequence, and a table of
+ * the child of each node for each chord. Each chord typed moves down the trie. A macro is expanded as
+ * soon as its sequence is complete, unless it is also the prefix of a longer one; then the chords are
+ * held until the longer sequence is typed, another chord shows that it will not be, or the timeout
+ * expires, and the longest macro typed is expanded. Held chords which do not complete a macro are
+ * passed through in order.
+ *
+ * <p>Macros are loaded from a file of lines such as:
+ *
+ * <pre>
+ * # comment
+ * timeout 400          milliseconds to wait for a longer sequence; the default is 500
+ * "j" "Jump "          the chords typing "j" with no mouse buttons expand to "Jump "
+ * "ir" "Insert \e"     strings may use the escapes of a Keymap file
+ * "xi" interrupt       the chords interrupt the host's process and discard its output
+ * "xo" abort           the chords abort the host's output
+ * </pre>
+ *
+ * The chords of a sequence are written as the characters they type in the keymap given when the
+ * macros are loaded.
+ */
+public final class ChordMacros {
+  public static final long DEFAULT_TIMEOUT = 500;  // milliseconds
+
+  /**
+   * Actions of a macro which is not text, sent to the host as Telnet commands.
+   */
+  public static final int ACTION_INTERRUPT = 1;
+  public static final int ACTION_ABORT_OUTPUT = 2;
+
+  private static final String[] __actionNames = { null, "interrupt", "abort" };
+
+  /**
+   * Receives the result of typing chords.
+   */
+  public interface Output {
+    /**
+     * A chord which is not part of a macro.
+     * @param nanoTime the System.nanoTime() of the chord
+     */
+    public void chord(int chord, long nanoTime);
+
+    /**
+     * The text of a macro, to be sent as a whole. The bytes must not be modified.
+     * @param nanoTime the System.nanoTime() of the first chord of the macro
+     */
+    public void expansion(byte[] text, long nanoTime);
+
+    /**
+     * The action of a macro, ACTION_INTERRUPT or ACTION_ABORT_OUTPUT.
+     * @param nanoTime the System.nanoTime() of the first chord of the macro
+     */
+    public void action(int action, long nanoTime);
+  }
+
+  private static final int __fanout = Keymap.CHORDS;
+
+  private final String _name;
+  private final long _timeout;
+  private final int[] _next;           // by (node * __fanout) + chord; 0 for none, since the root is no child
+  private final byte[][] _expansions;  // by node; null if no macro ends there, or it is an action
+  private final int[] _actions;        // by node; 0 if no macro ends there, or it is text
+  private final boolean[] _leaf;       // by node; true if no sequence continues from it
+
+  // The chords typed since the last expansion which may still be part of one
+  private final int[] _pending;
+  private final long[] _pendingTimes;
+  private int _count = 0;
+
+  private ChordMacros(final String name, final long timeout, final List<int[]> sequences, final List<byte[]> expansions, final List<Integer> actions) {
+    int nodes = 1;
+    int depth = 0;
+    for (int[] sequence : sequences) {
+      nodes += sequence.length;
+      depth = Math.max(depth, sequence.length);
+    }
+    final int[] next = new int[nodes * __fanout];
+    final byte[][] texts = new byte[nodes][];
+    final int[] codes = new int[nodes];
+    int used = 1;
+    for (int i = 0; i < sequences.size(); ++i) {
+      int node = 0;
+      for (int chord : sequences.get(i)) {
+        final int index = node * __fanout + chord;
+        if (next[index] == 0) {
+          next[index] = used++;
+        }
+        node = next[index];
+      }
+      texts[node] = expansions.get(i);  // a later definition replaces an earlier one
+      codes[node] = actions.get(i);
+    }
+    this._name = name;
+    this._timeout = timeout;
+    this._next = new int[used * __fanout];
+    System.arraycopy(next, 0, this._next, 0, this._next.length);
+    this._expansions = new byte[used][];
+    System.arraycopy(texts, 0, this._expansions, 0, used);
+    this._actions = new int[used];
+    System.arraycopy(codes, 0, this._actions, 0, used);
+    this._leaf = new boolean[used];
+    for (int node = 0; node < used; ++node) {
+      this._leaf[node] = true;
+      for (int chord = 0; chord < __fanout; ++chord) {
+        if (this._next[node * __fanout + chord] != 0) {
+          this._leaf[node] = false;
+          break;
+        }
+      }
+    }
+    this._pending = new int[depth + 1];
+    this._pendingTimes = new long[depth + 1];
+  }
+
+  public String getName() {
+    return this._name;
+  }
+
+  /**
+   * Return the milliseconds to wait for a longer sequence before expanding a shorter one.
+   */
+  public long getTimeout() {
+    return this._timeout;
+  }
+
+  /**
+   * Return whether chords are being held, in which case expire() must be called after the timeout
+   * unless another chord is typed first.
+   */
+  public synchronized boolean isPending() {
+    return this._count > 0;
+  }
+
+  /**
+   * Process a chord typed with no mouse buttons.
+   * @param chord the chord, 1 to 31
+   * @param nanoTime the System.nanoTime() of the chord
+   * @param out receives any chords and expansions which are complete
+   */
+  public synchronized void chordTyped(final int chord, final long nanoTime, final Output out) {
+    this._pending[this._count] = chord;
+    this._pendingTimes[this._count] = nanoTime;
+    ++this._count;
+    resolve(false, out);
+  }
+
+  /**
+   * Stop waiting for a longer sequence: expand or pass through every chord being held. This is
+   * called when the timeout expires, and before any input other than a chord.
+   */
+  public synchronized void expire(final Output out) {
+    resolve(true, out);
+  }
+
+  private void resolve(final boolean expired, final Output out) {
+    while (this._count > 0) {
+      // Follow the held chords down the trie, noting the longest macro along the way
+      int node = 0;
+      int matched = 0;
+      int longest = 0;
+      for (int i = 0; i < this._count; ++i) {
+        node = this._next[node * __fanout + this._pending[i]];
+        if (node == 0) {
+          break;
+        }
+        matched = i + 1;
+        if (isMacro(node)) {
+          longest = matched;
+        }
+      }
+      if (matched == this._count && ! expired && ! (this._leaf[node] && isMacro(node))) {
+        return;  // a longer sequence may follow
+      }
+      // The chords are dropped before they are output, since the output may call expire()
+      long time = this._pendingTimes[0];
+      if (longest > 0) {
+        int n = 0;
+        for (int i = 0; i < longest; ++i) {
+          n = this._next[n * __fanout + this._pending[i]];
+        }
+        drop(longest);
+        if (this._actions[n] != 0) {
+          out.action(this._actions[n], time);
+        } else {
+          out.expansion(this._expansions[n], time);
+        }
+      } else {
+        int chord = this._pending[0];
+        drop(1);
+        out.chord(chord, time);
+      }
+    }
+  }
+
+  private boolean isMacro(final int node) {
+    return this._expansions[node] != null || this._actions[node] != 0;
+  }
+
+  private void drop(final int n) {
+    this._count -= n;
+    System.arraycopy(this._pending, n, this._pending, 0, this._count);
+    System.arraycopy(this._pendingTimes, n, this._pendingTimes, 0, this._count);
+  }
+
+  /**
+   * Load macros from a file; see the class description for the format.
+   * @param keymap the keymap whose characters name the chords of the sequences
+   */
+  public static ChordMacros load(final File file, final Keymap keymap) throws IOException {
+    final InputStream in = new FileInputStream(file);
+    try {
+      return load(new InputStreamReader(in, "UTF-8"), file.getName(), keymap);
+    } finally {
+      in.close();
+    }
+  }
+
+  public static ChordMacros load(final Reader reader, final String name, final Keymap keymap) throws IOException {
+    final List<int[]> sequences = new ArrayList<int[]>();
+    final List<byte[]> expansions = new ArrayList<byte[]>();
+    final List<Integer> actions = new ArrayList<Integer>();
+    long timeout = DEFAULT_TIMEOUT;
+    final BufferedReader in = new BufferedReader(reader);
+    String line;
+    int number = 0;
+    while ((line = in.readLine()) != null) {
+      ++number;
+      line = line.trim();
+      if (line.length() == 0 || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        if (line.startsWith("timeout")) {
+          timeout = Long.parseLong(line.substring("timeout".length()).trim());
+          if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+          }
+          continue;
+        }
+        final int end = endOfQuoted(line, 0);
+        final byte[] keys = Keymap.unescape(line.substring(0, end));
+        final String rest = line.substring(end).trim();
+        final int action = actionNamed(rest);
+        if (keys.length == 0 || rest.length() == 0 || (action == 0 && endOfQuoted(rest, 0) != rest.length())) {
+          throw new IllegalArgumentException("expected: \"chords\" \"text\", or \"chords\" followed by interrupt or abort");
+        }
+        final int[] sequence = new int[keys.length];
+        for (int i = 0; i < keys.length; ++i) {
+          sequence[i] = keymap.getChord((char) keys[i]);
+          if (sequence[i] == 0) {
+            throw new IllegalArgumentException("no chord types '" + (char) keys[i] + "' in keymap " + keymap.getName());
+          }
+        }
+        sequences.add(sequence);
+        expansions.add(action == 0 ? Keymap.unescape(rest) : null);
+        actions.add(action);
+      } catch (IllegalArgumentException e) {
+        throw new IOException(name + ", line " + number + ": " + e.getMessage());
+      }
+    }
+    return new ChordMacros(name, timeout, sequences, expansions, actions);
+  }
+
+  /**
+   * Return the action with a name, or 0 if there is none.
+   */
+  private static int actionNamed(final String name) {
+    for (int action = 1; action < __actionNames.length; ++action) {
+      if (__actionNames[action].equals(name)) {
+        return action;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Return the index just after the quoted string starting at an index.
+   */
+  private static int endOfQuoted(final String s, final int start) {
+    if (s.charAt(start) != '"') {
+      throw new IllegalArgumentException("expected a quoted string: " + s);
+    }
+    for (int i = start + 1; i < s.length(); ++i) {
+      final char ch = s.charAt(i);
+      if (ch == '\\') {
+        ++i;
+      } else if (ch == '"') {
+        return i + 1;
+      }
+    }
+    throw new IllegalArgumentException("unterminated string: " + s);
+  }
+
+  public String toString() {
+    return this._name;
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+/**
+ * <p>Decides which presses and releases of KEY0 through KEY4 make up a chord, and when the chord is
+ * complete. The KeysetDriver passes every key change to its recognizer, and produces a KEYSET_TYPED
+ * event for each chord the recognizer returns.
+ *
+ * <p>Implementations must have a public no-argument constructor to be named in the keyset.chord.recognizer
+ * property; see KeysetConfig.
+ */
+public interface ChordRecognizer {
+
+  /**
+   * Forget any chord in progress, as when the device is opened.
+   */
+  public void reset();
+
+  /**
+   * Process a key change.
+   * @param key KEY0 to KEY4
+   * @param pressed true if the key was pressed
+   * @param micros the device timestamp of the change, in microseconds
+   * @param nanoTime the System.nanoTime() at which the change was read
+   * @return the keys of the chord completed by this change, as a bit mask with KEY0 in bit 0, or 0 if
+   * no chord was completed
+   */
+  public int keyChanged(int key, boolean pressed, long micros, long nanoTime);
+
+  /**
+   * Return the System.nanoTime() of the first press of the chord most recently returned by
+   * keyChanged().
+   */
+  public long getChordNanoTime();
+}
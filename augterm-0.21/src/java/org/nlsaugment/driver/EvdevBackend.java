@@ -0,0 +1,145 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.nlsaugment.event.KeysetEvent;
+
+/**
+ * <p>Backend for the Linux event interface (/dev/input/eventN). Records are 24 byte struct
+ * input_event, as defined in /usr/include/linux/input.h for a 64-bit kernel: a struct timeval
+ * (seconds and microseconds), then type, code and value. Unlike the joystick API, the timestamps have
+ * microsecond resolution and any EV_KEY code can be used, so KEY0 through KEY4 are mapped from
+ * configurable key codes. KEY4 can instead be taken from an EV_ABS axis, as with the joystick API.
+ * Further key codes and axes can be mapped to the mouse by a MouseEmulator.
+ *
+ * <p>The keys decoded, rather than the raw records, are recorded in the history, as the js_event
+ * records a keyset cable would have produced, so that the history replays like a joystick's.
+ *
+ * <p>Records are read in batches in the same way as JoystickBackend. A regular file of recorded
+ * records can be used in place of the device, and ends the input when it has been read.
+ *
+ * <p>NOTE: an exclusive grab (EVIOCGRAB) needs an ioctl, which Java cannot issue, so other readers
+ * of the device, such as the X server, still see the keyset. Configure them to ignore it.
+ */
+public final class EvdevBackend implements KeysetBackend {
+  public static final int RECORD_SIZE = 24;  // sizeof(struct input_event)
+
+  public static final int EV_SYN = 0x00;
+  public static final int EV_KEY = 0x01;
+  public static final int EV_ABS = 0x03;
+
+  private static final int __readRecords = 64;  // records drained per read
+
+  private final File _file;
+  private final int[] _keys;
+  private final int _axis;
+  private final AxisCalibrator _calibrator;
+  private final MouseEmulator _mouse;
+  private final ByteBuffer _buffer = ByteBuffer.allocateDirect(RECORD_SIZE * __readRecords);
+  private FileChannel _channel = null;
+
+  /**
+   * @param file the device file
+   * @param keys the EV_KEY codes for KEY0 through KEY4
+   * @param axis the EV_ABS code for KEY4, or -1 to use keys[4]
+   * @param calibrator decides from the axis values whether KEY4 is pressed
+   */
+  public EvdevBackend(final File file, final int[] keys, final int axis, final AxisCalibrator calibrator) {
+    this(file, keys, axis, calibrator, MouseEmulator.none());
+  }
+
+  /**
+   * @param mouse maps further key codes and axes to the mouse
+   */
+  public EvdevBackend(final File file, final int[] keys, final int axis, final AxisCalibrator calibrator, final MouseEmulator mouse) {
+    if (keys.length != KeysetEvent.KEY4 + 1) {
+      throw new IllegalArgumentException("expected " + (KeysetEvent.KEY4 + 1) + " key codes: " + keys.length);
+    }
+    this._file = file;
+    this._keys = keys.clone();
+    this._axis = axis;
+    this._calibrator = calibrator;
+    this._mouse = mouse;
+    this._buffer.order(ByteOrder.nativeOrder());
+  }
+
+  public String getName() {
+    return "evdev " + this._file;
+  }
+
+  public void open() throws IOException, KeysetNotFoundException {
+    if (! this._file.exists()) {
+      throw new KeysetNotFoundException();
+    }
+    this._channel = new FileInputStream(this._file).getChannel();
+    this._buffer.clear();
+    this._calibrator.reset();
+    this._mouse.reset();
+  }
+
+  public boolean read(final KeysetDriver driver) throws IOException {
+    if (this._channel.read(this._buffer) == -1) {
+      return false;
+    }
+    final long nanoTime = System.nanoTime();
+    this._buffer.flip();
+    while (this._buffer.remaining() >= RECORD_SIZE) {
+      final long seconds = this._buffer.getLong();
+      final long micros = this._buffer.getLong();
+      final int type = this._buffer.getShort() & 0xffff;
+      final int code = this._buffer.getShort() & 0xffff;
+      final int value = this._buffer.getInt();
+      if (type == EV_SYN) {
+        continue;
+      }
+      final long time = seconds * 1000000 + micros;
+      if (type == EV_KEY && value != 2) {  // 2 is autorepeat
+        final int button = this._mouse.getButton(code);
+        final int key = button >= 0 ? button : keyFor(code);
+        if (key >= 0) {
+          driver.recordKey(time / 1000, key, value != 0);
+          driver.keyChanged(key, value != 0, time, nanoTime);
+        }
+      } else if (type == EV_ABS && this._mouse.isPointerAxis(code)) {
+        this._mouse.axisChanged(driver, code, value, time, nanoTime);
+      } else if (type == EV_ABS && code == this._axis) {
+        final boolean pressed = this._calibrator.isPressed();
+        if (this._calibrator.update(value) != pressed) {
+          driver.recordKey(time / 1000, KeysetEvent.KEY4, ! pressed);
+          driver.keyChanged(KeysetEvent.KEY4, ! pressed, time, nanoTime);
+        }
+      }
+    }
+    this._buffer.compact();
+    return true;
+  }
+
+  private int keyFor(final int code) {
+    for (int key = 0; key < this._keys.length; ++key) {
+      if (this._keys[key] == code && (key != KeysetEvent.KEY4 || this._axis < 0)) {
+        return key;
+      }
+    }
+    return -1;
+  }
+
+  public void close() throws IOException {
+    final FileChannel channel = this._channel;
+    this._calibrator.save();
+    if (channel != null) {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.nlsaugment.event.KeysetEvent;
+
+/**
+ * <p>Backend for the legacy Linux joystick API (/dev/input/jsN). The keyset adapter maps KEY0 through
+ * KEY3 to the first four joystick buttons, and KEY4 to the X axis. Whether KEY4 is pressed is decided
+ * from the axis values by an AxisCalibrator. On a gamepad, further buttons and axes can be mapped to
+ * the mouse by a MouseEmulator; other buttons and axes are ignored.
+ *
+ * <p>Data is read in 8 byte records, defined as struct js_event in the
+ * /linux-2.6.x/include/linux/joystick.h file. Each read drains as many queued records as fit in the
+ * buffer, and the records are decoded directly from the buffer, so a burst of events costs a single
+ * read and creates no objects. A partial record left at the end of a read is kept for the next one.
+ */
+public final class JoystickBackend implements KeysetBackend {
+  public static final int RECORD_SIZE = 8;  // sizeof(struct js_event)
+  public static final int KEY4_AXIS = 0;    // the X axis
+
+  // Types of a js_event, from /linux-2.6.x/include/linux/joystick.h
+  public static final int JS_EVENT_BUTTON = 0x01;
+  public static final int JS_EVENT_AXIS = 0x02;
+  public static final int JS_EVENT_INIT = 0x80;
+
+  private static final int __readRecords = 64;  // records drained per read
+
+  private final File _file;
+  private final AxisCalibrator _calibrator;
+  private final MouseEmulator _mouse;
+  private final ByteBuffer _buffer = ByteBuffer.allocateDirect(RECORD_SIZE * __readRecords);
+  private FileChannel _channel = null;
+
+  private boolean _first = true;
+  private long _previousTime = 0;
+  private short _previousValue = 0;
+  private short _previousType = 0;
+  private short _previousNumber = 0;
+
+  public JoystickBackend(final File file, final AxisCalibrator calibrator) {
+    this(file, calibrator, MouseEmulator.none());
+  }
+
+  public JoystickBackend(final File file, final AxisCalibrator calibrator, final MouseEmulator mouse) {
+    this._file = file;
+    this._calibrator = calibrator;
+    this._mouse = mouse;
+    this._buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public String getName() {
+    return "joystick " + this._file;
+  }
+
+  public void open() throws IOException, KeysetNotFoundException {
+    if (! this._file.exists()) {
+      throw new KeysetNotFoundException();
+    }
+    this._channel = new FileInputStream(this._file).getChannel();
+    this._buffer.clear();
+    reset();
+  }
+
+  /**
+   * Forget the previous record and the state of the axis.
+   */
+  void reset() {
+    this._first = true;
+    this._calibrator.reset();
+    this._mouse.reset();
+  }
+
+  public boolean read(final KeysetDriver driver) throws IOException {
+    if (this._channel.read(this._buffer) == -1) {
+      return false;
+    }
+    final long nanoTime = System.nanoTime();
+    this._buffer.flip();
+    decode(this._buffer, driver, nanoTime);
+    this._buffer.compact();
+    return true;
+  }
+
+  /**
+   * Decode the complete records in a little-endian buffer and pass them to the driver, leaving any
+   * partial record in the buffer.
+   * @param nanoTime the System.nanoTime() at which the records were read
+   */
+  void decode(final ByteBuffer buffer, final KeysetDriver driver, final long nanoTime) {
+    while (buffer.remaining() >= RECORD_SIZE) {
+      final long time = buffer.getInt() & 0xffffffffL;
+      final short value = buffer.getShort();
+      final short type = (short) (buffer.get() & 0xff);
+      final short number = (short) (buffer.get() & 0xff);
+      check(value, type, number);
+      // only record new event if current value is different than previous value
+      if (this._first || time != this._previousTime || value != this._previousValue
+          || type != this._previousType || number != this._previousNumber) {
+        this._first = false;
+        this._previousTime = time;
+        this._previousValue = value;
+        this._previousType = type;
+        this._previousNumber = number;
+        sendEvent(driver, time, value, type, number, nanoTime);
+      }
+    }
+  }
+
+  private void sendEvent(final KeysetDriver driver, final long time, final short value, final short type, final short number, final long nanoTime) {
+    driver.record(time, value, type, number);
+    if ((type & JS_EVENT_INIT) == JS_EVENT_INIT) {
+      // ignore initialization data, since they are not actual event data, but learn the axis level
+      if ((type & JS_EVENT_AXIS) == JS_EVENT_AXIS) {
+        if (this._mouse.isPointerAxis(number)) {
+          this._mouse.axisChanged(driver, number, value, time * 1000, nanoTime);
+        } else if (number == KEY4_AXIS) {
+          this._calibrator.observe(value);
+        }
+      }
+    } else if (type == JS_EVENT_BUTTON) {
+      final int button = this._mouse.getButton(number);
+      if (button >= 0) {
+        driver.keyChanged(button, value == 1, time * 1000, nanoTime);
+      } else if (number <= KeysetEvent.KEY3) {
+        driver.keyChanged(number, value == 1, time * 1000, nanoTime);
+      }
+    } else if (type == JS_EVENT_AXIS) {
+      if (this._mouse.isPointerAxis(number)) {
+        this._mouse.axisChanged(driver, number, value, time * 1000, nanoTime);
+      } else if (number == KEY4_AXIS) {
+        final boolean pressed = this._calibrator.isPressed();
+        if (this._calibrator.update(value) != pressed) {
+          driver.keyChanged(KeysetEvent.KEY4, ! pressed, time * 1000, nanoTime);
+        }
+      }
+    } else {
+      throw new RuntimeException("unexpected condition");
+    }
+  }
+
+  /**
+   * Validate the fields of a record, throwing a RuntimeException if they are invalid.
+   */
+  static void check(final short value, final short type, final short number) {
+    checkType(type);
+    checkNumber(number, type);
+    checkValue(value, type);
+  }
+
+  private static void checkType(final short type) {
+    final short allowed = JS_EVENT_BUTTON | JS_EVENT_AXIS | JS_EVENT_INIT;
+    if ((type & allowed) != type || type == 0) {
+      throw new RuntimeException("invalid value for type: " + type);
+    }
+  }
+
+  private static void checkNumber(final short number, final short type) {
+    if ((type & JS_EVENT_INIT) == JS_EVENT_INIT) {  // ignore check during initialization
+      return;
+    }
+    // Buttons and axes beyond the keyset's may be mapped to the mouse by a MouseEmulator
+    if (number < 0 || number > 0xff) {
+      throw new RuntimeException("invalid value for number: " + number);
+    }
+  }
+
+  private static void checkValue(final short value, final short type) {
+    if (type == JS_EVENT_BUTTON && (value < 0 || value > 1)) {
+      throw new RuntimeException("value must be 0 or 1 but is: " + value);
+    }
+  }
+
+  public void close() throws IOException {
+    final FileChannel channel = this._channel;
+    this._calibrator.save();
+    if (channel != null) {
+      channel.close();
+    }
+  }
+}
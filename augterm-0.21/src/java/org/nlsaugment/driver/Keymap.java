@@ -0,0 +1,258 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.nlsaugment.event.KeysetEvent;
+
+/**
+ * <p>Maps a chord, together with the mouse buttons held while it is typed, to the bytes sent to the
+ * host. The mouse buttons select a case: with none the chord is a lower case letter, with the middle
+ * button an upper case letter, with the left button a digit or punctuation, with the left and middle
+ * buttons a control character, and with the right button alone, or the right and left buttons, nothing.
+ * The cases with both the right and middle buttons send the chord with the mouse position, and are not
+ * mapped here.
+ *
+ * <p>The sequences are held in a table indexed by the mouse mask and the chord, so translating a chord
+ * is a single array index. A keymap can be loaded from a file of lines such as:
+ *
+ * <pre>
+ * # comment
+ * clear                       remove every mapping, rather than change the default keymap
+ * row 2 "ABCDEFGHIJKLMNOPQRSTUVWXYZ&lt;&gt;:\\\t"   one character for each of chords 1 through 31
+ * 4 31 "\r\n"                 the sequence for one mask and chord
+ * 1 17 -                      no sequence for one mask and chord
+ * </pre>
+ *
+ * Strings may use the escapes \\, \", \t, \r, \n, \e for ESC, \xHH, and \0 in a row for a chord which
+ * is not mapped. Mappings not given in the file are those of the default keymap.
+ */
+public final class Keymap {
+  public static final int MASKS = 8;    // mouse masks, MOUSE_LEFT = 4, MOUSE_MIDDLE = 2, MOUSE_RIGHT = 1
+  public static final int CHORDS = 32;  // chords, KEY0 in bit 0 to KEY4 in bit 4
+
+  private static final byte[] __none = new byte[0];
+
+  private static final Keymap __default = createDefault();
+
+  private final String _name;
+  private final byte[][] _sequences;                 // by (mask * CHORDS) + chord, never null
+  private final char[] _chars = new char[CHORDS];    // single character of each chord with no buttons
+  private final byte[] _chords = new byte[128];      // chord typing each ASCII character with no buttons
+
+  private Keymap(final String name, final byte[][] sequences) {
+    this._name = name;
+    this._sequences = sequences;
+    for (int chord = CHORDS - 1; chord > 0; --chord) {
+      final byte[] sequence = sequences[chord];
+      if (sequence.length == 1 && sequence[0] >= 0) {
+        this._chars[chord] = (char) sequence[0];
+        this._chords[sequence[0]] = (byte) chord;
+      } else {
+        this._chars[chord] = KeysetEvent.CHAR_UNDEFINED;
+      }
+    }
+    this._chars[0] = KeysetEvent.CHAR_UNDEFINED;
+  }
+
+  private static Keymap createDefault() {
+    final byte[][] sequences = new byte[MASKS * CHORDS][];
+    for (int i = 0; i < sequences.length; ++i) {
+      sequences[i] = __none;
+    }
+    for (int chord = 1; chord < CHORDS; ++chord) {
+      final char ch = KeysetCharacterMap.CASE0.charAt(chord);
+      sequences[chord] = new byte[] { (byte) ch };
+      sequences[2 * CHORDS + chord] = new byte[] { (byte) KeysetCharacterMap.CASE1.charAt(chord) };
+      sequences[3 * CHORDS + chord] = new byte[] { (byte) (Character.isLetter(ch) ? ch & 037 : ch) };
+      sequences[4 * CHORDS + chord] = new byte[] { (byte) KeysetCharacterMap.CASE2.charAt(chord) };
+    }
+    return new Keymap("default", sequences);
+  }
+
+  /**
+   * Return the keymap defined by KeysetCharacterMap.
+   */
+  public static Keymap getDefault() {
+    return __default;
+  }
+
+  public String getName() {
+    return this._name;
+  }
+
+  /**
+   * Return the bytes to send for a chord typed with mouse buttons. The result must not be modified.
+   * @param mask the mouse buttons, 0 to 7
+   * @param chord the chord, 1 to 31
+   * @return the bytes, which are empty if the chord sends nothing
+   */
+  public byte[] getSequence(final int mask, final int chord) {
+    return this._sequences[(mask << 5) | chord];
+  }
+
+  /**
+   * Return the character of a chord typed with no mouse buttons, or CHAR_UNDEFINED if it does not
+   * send a single ASCII character.
+   */
+  public char getChar(final int chord) {
+    return this._chars[chord];
+  }
+
+  /**
+   * Return the chord which types an ASCII character with no mouse buttons, or 0 if there is none.
+   */
+  public int getChord(final char ch) {
+    return ch < 128 ? this._chords[ch] : 0;
+  }
+
+  /**
+   * Load a keymap from a file; see the class description for the format.
+   */
+  public static Keymap load(final File file) throws IOException {
+    final InputStream in = new FileInputStream(file);
+    try {
+      return load(new InputStreamReader(in, "UTF-8"), file.getName());
+    } finally {
+      in.close();
+    }
+  }
+
+  public static Keymap load(final Reader reader, final String name) throws IOException {
+    final byte[][] sequences = __default._sequences.clone();
+    final BufferedReader in = new BufferedReader(reader);
+    String line;
+    int number = 0;
+    while ((line = in.readLine()) != null) {
+      ++number;
+      try {
+        parseLine(line.trim(), sequences);
+      } catch (IllegalArgumentException e) {
+        throw new IOException(name + ", line " + number + ": " + e.getMessage());
+      }
+    }
+    return new Keymap(name, sequences);
+  }
+
+  private static void parseLine(final String line, final byte[][] sequences) {
+    if (line.length() == 0 || line.startsWith("#")) {
+      return;
+    }
+    if (line.equals("clear")) {
+      for (int i = 0; i < sequences.length; ++i) {
+        sequences[i] = __none;
+      }
+      return;
+    }
+    final String[] fields = line.split("\\s+", 3);
+    if (fields[0].equals("row")) {
+      if (fields.length != 3) {
+        throw new IllegalArgumentException("expected: row mask \"characters\"");
+      }
+      final int mask = parseInt(fields[1], MASKS - 1);
+      final byte[] row = unescape(fields[2]);
+      if (row.length != CHORDS - 1) {
+        throw new IllegalArgumentException("a row must have " + (CHORDS - 1) + " characters");
+      }
+      for (int chord = 1; chord < CHORDS; ++chord) {
+        final byte b = row[chord - 1];
+        sequences[mask * CHORDS + chord] = b == 0 ? __none : new byte[] { b };
+      }
+      return;
+    }
+    if (fields.length != 3) {
+      throw new IllegalArgumentException("expected: mask chord \"sequence\"");
+    }
+    final int mask = parseInt(fields[0], MASKS - 1);
+    final int chord = parseInt(fields[1], CHORDS - 1);
+    if (chord == 0) {
+      throw new IllegalArgumentException("chord must not be 0");
+    }
+    sequences[mask * CHORDS + chord] = fields[2].equals("-") ? __none : unescape(fields[2]);
+  }
+
+  private static int parseInt(final String field, final int max) {
+    try {
+      final int value = Integer.parseInt(field);
+      if (value >= 0 && value <= max) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    throw new IllegalArgumentException("expected a number from 0 to " + max + ": " + field);
+  }
+
+  /**
+   * Decode a quoted string into bytes; each character must be ASCII or a \x escape.
+   */
+  static byte[] unescape(final String field) {
+    if (field.length() < 2 || field.charAt(0) != '"' || field.charAt(field.length() - 1) != '"') {
+      throw new IllegalArgumentException("expected a quoted string: " + field);
+    }
+    final byte[] buf = new byte[field.length()];
+    int n = 0;
+    for (int i = 1; i < field.length() - 1; ++i) {
+      char ch = field.charAt(i);
+      if (ch == '\\' && i + 1 < field.length() - 1) {
+        ch = field.charAt(++i);
+        switch (ch) {
+        case 't':
+          ch = '\t';
+          break;
+        case 'r':
+          ch = '\r';
+          break;
+        case 'n':
+          ch = '\n';
+          break;
+        case 'e':
+          ch = '\033';
+          break;
+        case '0':
+          ch = 0;
+          break;
+        case 'x':
+          if (i + 2 >= field.length() - 1) {
+            throw new IllegalArgumentException("incomplete \\x escape: " + field);
+          }
+          try {
+            ch = (char) Integer.parseInt(field.substring(i + 1, i + 3), 16);
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid \\x escape: " + field);
+          }
+          i += 2;
+          buf[n++] = (byte) ch;
+          continue;
+        default:
+          break;  // \\ and \" stand for themselves
+        }
+      } else if (ch == '"') {
+        throw new IllegalArgumentException("unescaped quote: " + field);
+      }
+      if (ch > 127) {
+        throw new IllegalArgumentException("not an ASCII character: " + ch);
+      }
+      buf[n++] = (byte) ch;
+    }
+    final byte[] bytes = new byte[n];
+    System.arraycopy(buf, 0, bytes, 0, n);
+    return bytes;
+  }
+
+  public String toString() {
+    return this._name;
+  }
+}
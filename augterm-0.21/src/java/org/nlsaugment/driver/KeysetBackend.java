@@ -0,0 +1,42 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.IOException;
+
+/**
+ * <p>A source of keyset input. A backend reads records in the format of some kind of device, and
+ * passes them to the KeysetDriver as raw records, for its history, and as presses and releases of
+ * KEY0 through KEY4, and of MOUSE_LEFT, MOUSE_MIDDLE and MOUSE_RIGHT if the device has mouse buttons.
+ * The driver turns those into KeysetEvents.
+ */
+public interface KeysetBackend {
+
+  /**
+   * Return a short description of the backend and its device, for messages.
+   */
+  public String getName();
+
+  /**
+   * Open the device.
+   * @throws KeysetNotFoundException if the device does not exist
+   */
+  public void open() throws IOException, KeysetNotFoundException;
+
+  /**
+   * Wait for input and pass everything that is available to the driver, by calling
+   * KeysetDriver.record() and KeysetDriver.keyChanged().
+   * @return false at the end of input, such as the end of a replayed file
+   */
+  public boolean read(KeysetDriver driver) throws IOException;
+
+  /**
+   * Close the device. A read blocked in another thread should fail or return.
+   */
+  public void close() throws IOException;
+}
@@ -21,6 +21,6 @@ public final class KeysetCharacterMap {
   private static final char QUOTE = '"';
   
   public static final String CASE0 = XXX + "abcdefghijklmnopqrstuvwxyz,.;? ";
-  public static final String CASE1 = XXX + "ABCDEFGHIJKLMNOPQRSTUVWYXZ<>:" + BACKSLASH + TAB;
+  public static final String CASE1 = XXX + "ABCDEFGHIJKLMNOPQRSTUVWXYZ<>:" + BACKSLASH + TAB;
   public static final String CASE2 = XXX + "!" + QUOTE + "#$%&'()@+-*/^0123456789=[]_" + ALT + CR;    
 }
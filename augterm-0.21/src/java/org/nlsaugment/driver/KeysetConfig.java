@@ -0,0 +1,419 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * <p>Configuration of the keyset device. The settings are read from the properties file
+ * ~/.keyset.properties, if it exists, and can be overridden by system properties of the same names:
+ *
+ * <ul>
+ * <li>keyset.backend - "joystick" for the legacy joystick API, "evdev" for /dev/input/eventN, "midi"
+ * for a MIDI keyboard, or "simulator" for a SimulatorBackend. If it is not set, it is "midi" for a
+ * device starting with "midi:", "simulator" for one starting with "sim:", "evdev" for a device whose
+ * name contains "event", such as /dev/input/event3 or
+ * /dev/input/by-id/usb-...-event-joystick, and "joystick" otherwise.
+ * <li>keyset.device - the device file, or a file of recorded records to replay, or "midi:" followed
+ * by part of the name of a MIDI device, or "sim:" followed by a file of js_event records to replay
+ * with their original timing, or by nothing to type simulated chords.
+ * <li>keyset.devices - for a KeysetDeviceManager, the device files to attach, separated by commas.
+ * The default is keyset.device.
+ * <li>keyset.axis.threshold - the axis value above which KEY4 is considered pressed, until the axis
+ * has been calibrated.
+ * <li>keyset.axis.hysteresis - half the width of the band around keyset.axis.threshold which the axis
+ * must cross to change the state of KEY4. The default is 1000.
+ * <li>keyset.axis.calibrate - "false" to always use keyset.axis.threshold rather than learn the
+ * pressed and released levels of the axis; see AxisCalibrator.
+ * <li>keyset.axis.calibration - the file in which the learned levels of each device are saved. The
+ * default is ~/.keyset-calibration.properties.
+ * <li>keyset.evdev.keys - the five EV_KEY codes for KEY0 through KEY4, separated by commas.
+ * <li>keyset.evdev.axis - the EV_ABS code which reports KEY4 instead of a key, or -1 for none.
+ * <li>keyset.mouse.buttons - the three joystick button numbers, or EV_KEY codes, for the left, middle
+ * and right mouse buttons, separated by commas, -1 for none; see MouseEmulator. The defaults are the
+ * buttons after the keyset's: 4, 5 and 6 for the joystick API, and 293, 294 and 295 for evdev.
+ * <li>keyset.pointer.axes - the joystick axis numbers, or EV_ABS codes, of a stick which moves the
+ * mouse pointer, for X and Y, separated by commas. The default is -1,-1 for none.
+ * <li>keyset.pointer.center - the value of the pointer axes when the stick is centered. The default is 0.
+ * <li>keyset.pointer.range - the difference from the center to full deflection. The default is 32767.
+ * <li>keyset.pointer.deadzone - the difference from the center within which the stick counts as
+ * centered. The default is 4000.
+ * <li>keyset.midi.notes - the five MIDI notes for KEY0 through KEY4, separated by commas.
+ * <li>keyset.midi.buttons - the three MIDI notes for the left, middle and right mouse buttons.
+ * <li>keyset.midi.channel - the MIDI channel, 0 to 15, or -1 for any, which is the default.
+ * <li>keyset.simulator.speed - the factor by which a simulator speeds up a recording, or 0 for as
+ * fast as possible. The default is 1.
+ * <li>keyset.simulator.text - the text whose chords a simulator types.
+ * <li>keyset.simulator.count - the number of chords to type; the default is the length of the text.
+ * <li>keyset.simulator.rate - chords typed per second, or 0 for as fast as possible. The default is 10.
+ * <li>keyset.simulator.hold - the milliseconds for which each simulated chord is held. The default is 40.
+ * <li>keyset.keymap - a file of the Keymap which translates chords for the terminal. The default is
+ * KeysetCharacterMap.
+ * <li>keyset.macros - a file of ChordMacros for the terminal, whose sequences are named by the
+ * characters of keyset.keymap.
+ * <li>keyset.chord.recognizer - the class name of a ChordRecognizer. The default is TimingChordRecognizer,
+ * configured by the following properties.
+ * <li>keyset.chord.emitOnFirstRelease - "true" to complete a chord when its first key is released.
+ * <li>keyset.chord.pressWindow - with emitOnFirstRelease, the milliseconds after the last press of a
+ * chord during which releases do not complete it. The default is 30.
+ * <li>keyset.chord.releaseWindow - the milliseconds after the first release of a chord after which a
+ * press starts the next chord, or -1 for never, which is the default.
+ * </ul>
+ */
+public final class KeysetConfig {
+  public static final String BACKEND_JOYSTICK = "joystick";
+  public static final String BACKEND_EVDEV = "evdev";
+  public static final String BACKEND_MIDI = "midi";
+  public static final String BACKEND_SIMULATOR = "simulator";
+
+  public static final String DEFAULT_JOYSTICK_DEVICE = "/dev/input/js0";
+  public static final String DEFAULT_EVDEV_DEVICE = "/dev/input/event0";
+
+  /**
+   * Default codes for KEY0 through KEY4: BTN_TRIGGER, BTN_THUMB, BTN_THUMB2, BTN_TOP and BTN_TOP2,
+   * which are the first buttons of a USB gameport adapter.
+   */
+  public static final int[] DEFAULT_EVDEV_KEYS = { 288, 289, 290, 291, 292 };
+
+  /**
+   * Default joystick buttons and EV_KEY codes for the left, middle and right mouse buttons: the three
+   * after the keyset's.
+   */
+  public static final int[] DEFAULT_JOYSTICK_MOUSE_BUTTONS = { 4, 5, 6 };
+  public static final int[] DEFAULT_EVDEV_MOUSE_BUTTONS = { 293, 294, 295 };
+
+  public static final int DEFAULT_PRESS_WINDOW = 30;  // milliseconds
+
+  public static final String DEFAULT_SIMULATOR_TEXT = "the quick brown fox jumps over the lazy dog. ";
+
+  private static final String __fileName = ".keyset.properties";
+  private static final String __calibrationFileName = ".keyset-calibration.properties";
+
+  private final Properties _properties;
+
+  public KeysetConfig() {
+    this(new Properties());
+  }
+
+  public KeysetConfig(final Properties properties) {
+    this._properties = properties;
+  }
+
+  /**
+   * Load the configuration from ~/.keyset.properties and the system properties.
+   */
+  public static KeysetConfig load() {
+    final Properties properties = new Properties();
+    try {
+      final File file = new File(System.getProperty("user.home"), __fileName);
+      if (file.isFile()) {
+        final InputStream in = new FileInputStream(file);
+        try {
+          properties.load(in);
+        } finally {
+          in.close();
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to read keyset configuration: " + e);
+    } catch (SecurityException e) {
+      // running as an applet
+    }
+    try {
+      for (String name : System.getProperties().stringPropertyNames()) {
+        if (name.startsWith("keyset.")) {
+          properties.setProperty(name, System.getProperty(name));
+        }
+      }
+    } catch (SecurityException e) {
+      // running as an applet
+    }
+    return new KeysetConfig(properties);
+  }
+
+  public String getProperty(final String name, final String defaultValue) {
+    return this._properties.getProperty(name, defaultValue);
+  }
+
+  public int getIntProperty(final String name, final int defaultValue) {
+    final String value = this._properties.getProperty(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid integer value for " + name + ": " + value);
+      return defaultValue;
+    }
+  }
+
+  public double getDoubleProperty(final String name, final double defaultValue) {
+    final String value = this._properties.getProperty(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid number value for " + name + ": " + value);
+      return defaultValue;
+    }
+  }
+
+  public void setProperty(final String name, final String value) {
+    this._properties.setProperty(name, value);
+  }
+
+  public String getBackend() {
+    final String backend = getProperty("keyset.backend", null);
+    if (backend != null) {
+      return backend;
+    }
+    final String device = getProperty("keyset.device", null);
+    if (device != null && isMidiDevice(device)) {
+      return BACKEND_MIDI;
+    }
+    if (device != null && isSimulatedDevice(device)) {
+      return BACKEND_SIMULATOR;
+    }
+    if (device != null && new File(device).getName().contains("event")) {
+      return BACKEND_EVDEV;
+    }
+    return BACKEND_JOYSTICK;
+  }
+
+  public String getDevice() {
+    final String device = getProperty("keyset.device", null);
+    if (device != null) {
+      return device;
+    }
+    final String backend = getBackend();
+    if (BACKEND_MIDI.equals(backend)) {
+      return MidiBackend.DEVICE_PREFIX;  // the first MIDI device
+    } else if (BACKEND_SIMULATOR.equals(backend)) {
+      return SimulatorBackend.DEVICE_PREFIX;  // typing chords
+    }
+    return BACKEND_EVDEV.equals(backend) ? DEFAULT_EVDEV_DEVICE : DEFAULT_JOYSTICK_DEVICE;
+  }
+
+  /**
+   * Return whether a device names a MIDI device rather than a file.
+   */
+  public static boolean isMidiDevice(final String device) {
+    return device.startsWith(MidiBackend.DEVICE_PREFIX);
+  }
+
+  /**
+   * Return whether a device names a simulated keyset rather than a file.
+   */
+  public static boolean isSimulatedDevice(final String device) {
+    return device.startsWith(SimulatorBackend.DEVICE_PREFIX);
+  }
+
+  /**
+   * Return whether a device is a file, which can be watched for.
+   */
+  public static boolean isFileDevice(final String device) {
+    return ! isMidiDevice(device) && ! isSimulatedDevice(device);
+  }
+
+  /**
+   * Return whether a device exists and can be opened.
+   */
+  public static boolean deviceExists(final String device) {
+    if (isMidiDevice(device)) {
+      return MidiBackend.exists(device);
+    } else if (isSimulatedDevice(device)) {
+      final String file = device.substring(SimulatorBackend.DEVICE_PREFIX.length());
+      return file.length() == 0 || new File(file).isFile();
+    }
+    return new File(device).exists();
+  }
+
+  /**
+   * Return whether a device is a recording, or a simulation, whose input ends rather than a device
+   * which can be read again.
+   */
+  public static boolean isRecording(final String device) {
+    return isSimulatedDevice(device) || (isFileDevice(device) && new File(device).isFile());
+  }
+
+  /**
+   * Return the device files for a KeysetDeviceManager to attach.
+   */
+  public String[] getDevices() {
+    final String devices = getProperty("keyset.devices", null);
+    if (devices == null) {
+      return new String[] { getDevice() };
+    }
+    final String[] names = devices.split(",");
+    for (int i = 0; i < names.length; ++i) {
+      names[i] = names[i].trim();
+    }
+    return names;
+  }
+
+  /**
+   * Return a copy of this configuration for one device. The backend is chosen from the device name
+   * unless keyset.backend is set.
+   */
+  public KeysetConfig forDevice(final String device) {
+    final Properties properties = new Properties();
+    for (String name : this._properties.stringPropertyNames()) {
+      properties.setProperty(name, this._properties.getProperty(name));
+    }
+    properties.setProperty("keyset.device", device);
+    properties.remove("keyset.devices");
+    return new KeysetConfig(properties);
+  }
+
+  public int getAxisThreshold() {
+    return getIntProperty("keyset.axis.threshold", 0);  // 0 for a gamepad X axis
+  }
+
+  public int getAxisHysteresis() {
+    return getIntProperty("keyset.axis.hysteresis", 1000);
+  }
+
+  public File getCalibrationFile() {
+    final String file = getProperty("keyset.axis.calibration", null);
+    if (file != null) {
+      return new File(file);
+    }
+    return new File(System.getProperty("user.home"), __calibrationFileName);
+  }
+
+  /**
+   * Create the calibrator for the KEY4 axis of the device, with the levels saved for it.
+   */
+  public AxisCalibrator createAxisCalibrator() {
+    final boolean adaptive = Boolean.parseBoolean(getProperty("keyset.axis.calibrate", "true").trim());
+    final AxisCalibrator calibrator = new AxisCalibrator(getAxisThreshold(), getAxisHysteresis(), adaptive);
+    try {
+      calibrator.load(getCalibrationFile(), getDevice());
+    } catch (SecurityException e) {
+      // running as an applet
+    }
+    return calibrator;
+  }
+
+  /**
+   * Return a property which is a list of integers separated by commas, or the default if it is not
+   * set or invalid.
+   */
+  public int[] getIntListProperty(final String name, final int[] defaultValue) {
+    final String value = getProperty(name, null);
+    if (value == null) {
+      return defaultValue.clone();
+    }
+    final String[] codes = value.split(",");
+    if (codes.length != defaultValue.length) {
+      System.err.println(name + " must list " + defaultValue.length + " values: " + value);
+      return defaultValue.clone();
+    }
+    final int[] values = new int[codes.length];
+    try {
+      for (int i = 0; i < codes.length; ++i) {
+        values[i] = Integer.decode(codes[i].trim());
+      }
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid integer value in " + name + ": " + value);
+      return defaultValue.clone();
+    }
+    return values;
+  }
+
+  public int[] getEvdevKeys() {
+    return getIntListProperty("keyset.evdev.keys", DEFAULT_EVDEV_KEYS);
+  }
+
+  public int getEvdevAxis() {
+    return getIntProperty("keyset.evdev.axis", -1);
+  }
+
+  /**
+   * Create the mouse emulator for the buttons and axes of the device.
+   */
+  public MouseEmulator createMouseEmulator() {
+    final int[] buttons = getIntListProperty("keyset.mouse.buttons",
+        BACKEND_EVDEV.equals(getBackend()) ? DEFAULT_EVDEV_MOUSE_BUTTONS : DEFAULT_JOYSTICK_MOUSE_BUTTONS);
+    final int[] axes = getIntListProperty("keyset.pointer.axes", new int[] { -1, -1 });
+    final int range = getIntProperty("keyset.pointer.range", Short.MAX_VALUE);
+    final int deadZone = getIntProperty("keyset.pointer.deadzone", 4000);
+    if (range <= deadZone) {
+      System.err.println("keyset.pointer.range must be greater than keyset.pointer.deadzone");
+      return new MouseEmulator(buttons, new int[] { -1, -1 }, 0, 1, 0);
+    }
+    return new MouseEmulator(buttons, axes, getIntProperty("keyset.pointer.center", 0), range, deadZone);
+  }
+
+  public int[] getMidiNotes() {
+    return getIntListProperty("keyset.midi.notes", MidiBackend.DEFAULT_NOTES);
+  }
+
+  public int[] getMidiButtons() {
+    return getIntListProperty("keyset.midi.buttons", MidiBackend.DEFAULT_BUTTONS);
+  }
+
+  public int getMidiChannel() {
+    return getIntProperty("keyset.midi.channel", -1);
+  }
+
+  /**
+   * Create the backend selected by this configuration.
+   */
+  public KeysetBackend createBackend() {
+    final String backend = getBackend();
+    if (BACKEND_EVDEV.equals(backend)) {
+      return new EvdevBackend(new File(getDevice()), getEvdevKeys(), getEvdevAxis(), createAxisCalibrator(), createMouseEmulator());
+    } else if (BACKEND_JOYSTICK.equals(backend)) {
+      return new JoystickBackend(new File(getDevice()), createAxisCalibrator(), createMouseEmulator());
+    } else if (BACKEND_MIDI.equals(backend)) {
+      return new MidiBackend(getDevice(), getMidiNotes(), getMidiButtons(), getMidiChannel());
+    } else if (BACKEND_SIMULATOR.equals(backend)) {
+      final String device = getDevice();
+      final String file = device.startsWith(SimulatorBackend.DEVICE_PREFIX) ? device.substring(SimulatorBackend.DEVICE_PREFIX.length()) : device;
+      if (file.length() > 0) {
+        return SimulatorBackend.replay(new File(file), getDoubleProperty("keyset.simulator.speed", 1), createAxisCalibrator(),
+            createMouseEmulator());
+      }
+      // Simulated chords have full scale axis values, so there is nothing to learn or save
+      final String text = getProperty("keyset.simulator.text", DEFAULT_SIMULATOR_TEXT);
+      return SimulatorBackend.type(text, getIntProperty("keyset.simulator.count", text.length()),
+          getDoubleProperty("keyset.simulator.rate", 10), getIntProperty("keyset.simulator.hold", 40),
+          new AxisCalibrator(getAxisThreshold(), getAxisHysteresis(), false));
+    }
+    throw new IllegalArgumentException("unknown keyset backend: " + backend);
+  }
+
+  /**
+   * Create the chord recognizer selected by this configuration.
+   */
+  public ChordRecognizer createRecognizer() {
+    final String name = getProperty("keyset.chord.recognizer", null);
+    if (name != null) {
+      try {
+        return Class.forName(name.trim()).asSubclass(ChordRecognizer.class).getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException e) {
+        System.err.println("Unable to create chord recognizer " + name + ": " + e);
+      } catch (ClassCastException e) {
+        System.err.println("Not a chord recognizer: " + name);
+      }
+    }
+    final long pressWindow = Math.max(getIntProperty("keyset.chord.pressWindow", DEFAULT_PRESS_WINDOW), 0) * 1000L;
+    final int releaseWindow = getIntProperty("keyset.chord.releaseWindow", -1);
+    final boolean emitOnFirstRelease = Boolean.parseBoolean(getProperty("keyset.chord.emitOnFirstRelease", "false").trim());
+    return new TimingChordRecognizer(pressWindow,
+        releaseWindow < 0 ? TimingChordRecognizer.NO_WINDOW : releaseWindow * 1000L, emitOnFirstRelease);
+  }
+}
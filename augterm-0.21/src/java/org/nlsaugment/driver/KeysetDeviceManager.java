@@ -0,0 +1,285 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.nlsaugment.event.KeysetListener;
+
+/**
+ * <p>Attaches a KeysetDriver to each of a set of device files while it exists, so that keysets can
+ * be unplugged and plugged in again, or plugged in after the application has started. Several
+ * devices can be attached at once, such as a keyset on one gameport adapter and a mouse button
+ * adapter on another. Every registered listener receives the events of every device.
+ *
+ * <p>The directories containing the devices are watched with a WatchService, and a device is
+ * opened as soon as its file is created. A device which cannot be read, such as one whose permissions
+ * have not yet been set by udev, or which fails while being read, is retried every RETRY_INTERVAL
+ * milliseconds for as long as its file exists.
+ *
+ * <p>Stable names under /dev/input/by-id can be used, since the links there are watched as well.
+ * A regular file of recorded records can stand in for a device; it is replayed once. MIDI devices,
+ * which have no files, are looked for every RETRY_INTERVAL.
+ */
+public final class KeysetDeviceManager {
+  /**
+   * Interval at which devices which exist but are not attached are retried, in milliseconds.
+   */
+  public static final long RETRY_INTERVAL = 250;
+
+  /**
+   * Notified when devices are attached and detached.
+   */
+  public interface DeviceListener {
+    public void deviceAttached(String device);
+    public void deviceDetached(String device);
+  }
+
+  private final KeysetConfig _config;
+  private final String[] _devices;
+  private final List<KeysetListener> _listeners = new CopyOnWriteArrayList<KeysetListener>();
+  private final List<DeviceListener> _deviceListeners = new CopyOnWriteArrayList<DeviceListener>();
+  private final Map<String, KeysetDriver> _drivers = new HashMap<String, KeysetDriver>();
+  private final Set<String> _attached = new HashSet<String>();
+  private boolean _async = false;
+  private int _waitStrategy = KeysetDispatcher.WAIT_BLOCKING;
+
+  private WatchService _watcher = null;
+  private Thread _thread = null;
+  private volatile boolean _running = false;
+
+  private final KeysetDriver.Observer _observer = new KeysetDriver.Observer() {
+    public void driverOpened(final KeysetDriver driver) {
+      opened(driver);
+    }
+
+    public void driverStopped(final KeysetDriver driver, final Exception cause) {
+      stopped(driver, cause);
+    }
+  };
+
+  /**
+   * Create a manager for the devices listed by a configuration.
+   */
+  public KeysetDeviceManager(final KeysetConfig config) {
+    this(config, config.getDevices());
+  }
+
+  public KeysetDeviceManager(final KeysetConfig config, final String[] devices) {
+    this._config = config;
+    this._devices = devices.clone();
+  }
+
+  public void register(final KeysetListener listener) {
+    this._listeners.add(listener);
+  }
+
+  public void unregister(final KeysetListener listener) {
+    this._listeners.remove(listener);
+  }
+
+  public void addDeviceListener(final DeviceListener listener) {
+    this._deviceListeners.add(listener);
+  }
+
+  public void removeDeviceListener(final DeviceListener listener) {
+    this._deviceListeners.remove(listener);
+  }
+
+  /**
+   * Choose synchronous or asynchronous dispatch for each device; see KeysetDriver.setAsynchronous.
+   * Takes effect for devices attached after it is called.
+   */
+  public synchronized void setAsynchronous(final boolean async, final int waitStrategy) {
+    this._async = async;
+    this._waitStrategy = waitStrategy;
+  }
+
+  /**
+   * Return the devices which are currently attached.
+   */
+  public synchronized List<String> getAttachedDevices() {
+    final List<String> devices = new ArrayList<String>();
+    for (String device : this._devices) {
+      if (this._attached.contains(device)) {
+        devices.add(device);
+      }
+    }
+    return devices;
+  }
+
+  /**
+   * Return the driver of a device, or null if it has never been attached.
+   */
+  public synchronized KeysetDriver getDriver(final String device) {
+    return this._drivers.get(device);
+  }
+
+  /**
+   * Attach the devices which exist, and start watching for changes.
+   */
+  public synchronized void start() throws IOException {
+    if (this._thread != null) {
+      return;
+    }
+    this._watcher = FileSystems.getDefault().newWatchService();
+    final Set<Path> dirs = new HashSet<Path>();
+    for (String device : this._devices) {
+      if (! KeysetConfig.isFileDevice(device)) {
+        continue;  // MIDI devices are checked every RETRY_INTERVAL
+      }
+      final Path dir = Paths.get(device).toAbsolutePath().getParent();
+      if (dir != null && Files.isDirectory(dir) && dirs.add(dir)) {
+        dir.register(this._watcher, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE);
+      }
+    }
+    this._running = true;
+    reconcile();
+    this._thread = new Thread("Keyset device manager") {
+      public void run() {
+        watch();
+      }
+    };
+    this._thread.setDaemon(true);
+    this._thread.start();
+  }
+
+  /**
+   * Stop watching, and detach all devices. The manager can be started again.
+   */
+  public void stop() {
+    final Thread thread;
+    final List<KeysetDriver> drivers;
+    synchronized (this) {
+      if (this._thread == null) {
+        return;
+      }
+      this._running = false;
+      thread = this._thread;
+      this._thread = null;
+      try {
+        this._watcher.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      drivers = new ArrayList<KeysetDriver>(this._drivers.values());
+    }
+    for (KeysetDriver driver : drivers) {
+      driver.stop();
+      driver.setAsynchronous(false, KeysetDispatcher.WAIT_BLOCKING);  // stop its dispatcher thread
+    }
+    thread.interrupt();
+  }
+
+  private void watch() {
+    while (this._running) {
+      try {
+        final WatchKey key = this._watcher.poll(RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+        if (key != null) {
+          key.pollEvents();  // the events only prompt a check of every device
+          key.reset();
+        }
+      } catch (InterruptedException e) {
+        break;
+      } catch (ClosedWatchServiceException e) {
+        break;
+      }
+      reconcile();
+    }
+  }
+
+  /**
+   * Attach each device which exists but has no running driver, and stop the driver of each device
+   * which no longer exists.
+   */
+  private void reconcile() {
+    final List<KeysetDriver> gone = new ArrayList<KeysetDriver>();
+    synchronized (this) {
+      if (! this._running) {
+        return;
+      }
+      for (String device : this._devices) {
+        final boolean exists = KeysetConfig.deviceExists(device);
+        final KeysetDriver driver = this._drivers.get(device);
+        final boolean running = driver != null && driver.isRunning();
+        // A recording is replayed once
+        if (exists && ! running && (driver == null || ! KeysetConfig.isRecording(device))) {
+          attach(device);
+        } else if (! exists && running) {
+          gone.add(driver);
+        }
+      }
+    }
+    // Outside the lock, since a stopping driver reports to this manager
+    for (KeysetDriver driver : gone) {
+      driver.stop();
+    }
+  }
+
+  private void attach(final String device) {
+    KeysetDriver driver = this._drivers.get(device);
+    if (driver == null) {
+      driver = new KeysetDriver(this._config.forDevice(device), this._listeners, this._observer);
+      this._drivers.put(device, driver);
+    }
+    if (this._async) {
+      driver.setAsynchronous(true, this._waitStrategy);
+    }
+    driver.start();
+  }
+
+  /**
+   * Called on a device thread when its driver stops.
+   */
+  private void stopped(final KeysetDriver driver, final Exception cause) {
+    final String device = driver.getConfig().getDevice();
+    synchronized (this) {
+      if (this._drivers.get(device) != driver || ! this._attached.remove(device)) {
+        return;
+      }
+    }
+    if (cause != null && ! (cause instanceof KeysetNotFoundException)) {
+      System.err.println("Keyset " + device + " stopped: " + cause);
+    }
+    for (DeviceListener listener : this._deviceListeners) {
+      listener.deviceDetached(device);
+    }
+  }
+
+  /**
+   * Called on a device thread when its driver has opened the device.
+   */
+  private void opened(final KeysetDriver driver) {
+    final String device = driver.getConfig().getDevice();
+    synchronized (this) {
+      if (this._drivers.get(device) != driver || ! this._attached.add(device)) {
+        return;
+      }
+    }
+    for (DeviceListener listener : this._deviceListeners) {
+      listener.deviceAttached(device);
+    }
+  }
+}
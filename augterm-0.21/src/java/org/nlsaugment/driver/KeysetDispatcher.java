@@ -0,0 +1,215 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.nlsaugment.event.KeysetEvent;
+import org.nlsaugment.event.KeysetListener;
+import org.nlsaugment.event.KeysetPointerListener;
+
+/**
+ * <p>Delivers keyset events to listeners on a separate thread, so that a slow listener does not delay
+ * reading the device. The device thread publishes each event as primitive fields into a preallocated
+ * ring, and the listener thread takes them out, builds the KeysetEvent and calls the listeners.
+ *
+ * <p>The ring has a single producer and a single consumer, and needs no locks: each side owns one
+ * sequence counter and only reads the other's. If the ring is full, the producer waits for space
+ * rather than lose an event.
+ *
+ * <p>The listener thread waits for events in one of several ways, trading latency against CPU use:
+ * WAIT_BLOCKING parks until woken by the producer, WAIT_SLEEPING polls with a short sleep,
+ * WAIT_YIELDING polls with Thread.yield(), and WAIT_BUSY_SPIN polls continuously.
+ */
+public final class KeysetDispatcher {
+  public static final int WAIT_BLOCKING = 0;
+  public static final int WAIT_SLEEPING = 1;
+  public static final int WAIT_YIELDING = 2;
+  public static final int WAIT_BUSY_SPIN = 3;
+
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private static final long __sleepNanos = 100L * 1000;  // poll interval for WAIT_SLEEPING
+
+  private final List<KeysetListener> _listeners;
+  private final int _waitStrategy;
+  private final int _mask;
+
+  // Three words per event: when, nanoTime, and chord/type/keyCode/keyChar
+  private final long[] _ring;
+  private final AtomicLong _published = new AtomicLong(0);
+  private final AtomicLong _consumed = new AtomicLong(0);
+  private volatile boolean _consumerWaiting = false;
+  private volatile boolean _running = false;
+  private volatile Thread _thread = null;
+  private long _overruns = 0;  // written only by the producer
+
+  /**
+   * @param listeners the listeners to call. This should be safe to iterate while it is modified,
+   * such as a CopyOnWriteArrayList.
+   * @param capacity the number of events the ring holds, rounded up to a power of two
+   * @param waitStrategy how the listener thread waits for events
+   */
+  public KeysetDispatcher(final List<KeysetListener> listeners, final int capacity, final int waitStrategy) {
+    if (waitStrategy < WAIT_BLOCKING || waitStrategy > WAIT_BUSY_SPIN) {
+      throw new IllegalArgumentException("invalid wait strategy: " + waitStrategy);
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this._listeners = listeners;
+    this._waitStrategy = waitStrategy;
+    this._mask = size - 1;
+    this._ring = new long[size * 3];
+  }
+
+  public synchronized void start() {
+    if (this._thread != null) {
+      return;
+    }
+    this._running = true;
+    this._thread = new Thread("Keyset dispatcher") {
+      public void run() {
+        consume();
+      }
+    };
+    this._thread.setDaemon(true);
+    this._thread.start();
+  }
+
+  /**
+   * Stop the listener thread after it has delivered the events already published.
+   */
+  public synchronized void stop() {
+    if (this._thread == null) {
+      return;
+    }
+    this._running = false;
+    LockSupport.unpark(this._thread);
+    if (this._thread != Thread.currentThread()) {
+      try {
+        this._thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this._thread = null;
+  }
+
+  public int getWaitStrategy() {
+    return this._waitStrategy;
+  }
+
+  /**
+   * Return the number of times the producer found the ring full and had to wait.
+   */
+  public long getOverruns() {
+    return this._overruns;
+  }
+
+  /**
+   * Publish an event. This must only be called from one thread at a time.
+   */
+  public void publish(final int type, final long when, final int keyCode, final char keyChar, final long nanoTime, final int chord) {
+    final long seq = this._published.get();
+    if (seq - this._consumed.get() > this._mask) {
+      ++this._overruns;
+      while (seq - this._consumed.get() > this._mask) {
+        if (! this._running) {
+          return;
+        }
+        Thread.yield();
+      }
+    }
+    final int slot = (int) (seq & this._mask) * 3;
+    this._ring[slot] = when;
+    this._ring[slot + 1] = nanoTime;
+    this._ring[slot + 2] = ((long) chord << 56) | ((long) (type & 0xff) << 48) | ((keyCode & 0xffffffffL) << 16) | keyChar;
+    if (this._waitStrategy != WAIT_BLOCKING) {
+      this._published.lazySet(seq + 1);
+    } else {
+      // A full fence, so the check of _consumerWaiting cannot pass the publication
+      this._published.set(seq + 1);
+    }
+    if (this._consumerWaiting) {
+      final Thread thread = this._thread;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  private void consume() {
+    long seq = this._consumed.get();
+    while (true) {
+      if (seq == this._published.get()) {
+        if (! this._running) {
+          break;
+        }
+        await(seq);
+        continue;
+      }
+      final int slot = (int) (seq & this._mask) * 3;
+      final long when = this._ring[slot];
+      final long nanoTime = this._ring[slot + 1];
+      final long word = this._ring[slot + 2];
+      this._consumed.lazySet(++seq);
+      try {
+        deliver(this._listeners, (int) (word >>> 48) & 0xff, when, (int) (word >>> 16), (char) word, nanoTime, (int) (word >>> 56));
+      } catch (RuntimeException e) {
+        e.printStackTrace();  // a failing listener must not stop the listener thread
+      }
+    }
+  }
+
+  private void await(final long seq) {
+    switch (this._waitStrategy) {
+    case WAIT_BLOCKING:
+      this._consumerWaiting = true;
+      if (seq == this._published.get() && this._running) {
+        LockSupport.park(this);
+      }
+      this._consumerWaiting = false;
+      break;
+    case WAIT_SLEEPING:
+      LockSupport.parkNanos(this, __sleepNanos);
+      break;
+    case WAIT_YIELDING:
+      Thread.yield();
+      break;
+    default:
+      break;
+    }
+  }
+
+  /**
+   * Build an event from its fields and pass it to each listener.
+   */
+  static void deliver(final List<KeysetListener> listeners, final int type, final long when, final int keyCode, final char keyChar, final long nanoTime, final int chord) {
+    final KeysetEvent event = new KeysetEvent(type, when, keyCode, keyChar, nanoTime, chord);
+    for (KeysetListener kl : listeners) {
+      if (type == KeysetEvent.KEYSET_PRESSED) {
+        kl.keyPressed(event);
+      } else if (type == KeysetEvent.KEYSET_RELEASED) {
+        kl.keyReleased(event);
+      } else if (type == KeysetEvent.KEYSET_MOVED) {
+        if (kl instanceof KeysetPointerListener) {
+          ((KeysetPointerListener) kl).pointerMoved(event);
+        }
+      } else {
+        kl.keyTyped(event);
+      }
+    }
+  }
+}
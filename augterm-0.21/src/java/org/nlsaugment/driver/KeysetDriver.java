@@ -9,10 +9,9 @@
  */
 package org.nlsaugment.driver;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.nlsaugment.event.KeysetEvent;
 import org.nlsaugment.event.KeysetListener;
@@ -29,7 +28,8 @@ import org.nlsaugment.event.KeysetListener;
  * For testing, a RadioShack gameport/USB adapter Model #26-164 was used.
  *
  * <p>Certain assumptions were made in developing this driver. In particular, this works only on Linux
- * (tested on Fedora Core 4). A specific analog game port device file is required (currently /dev/input/js0).
+ * (tested on Fedora Core 4). A specific analog game port device file is required (by default /dev/input/js0;
+ * see KeysetConfig, which can also select the evdev interface at /dev/input/eventN instead).
  * The hand-crafted adapter cable maps KEY0 through KEY3 to the wires representing the first four
  * joystick buttons. Since analog joystick cables only allow up to four buttons, the final key (KEY4)
  * is mapped to the wire repesenting the X axis of the gameport.
@@ -45,321 +45,327 @@ import org.nlsaugment.event.KeysetListener;
  *
  */
 public final class KeysetDriver {
-  private static final String __deviceFile = "/dev/input/js0"; // TODO: this needs to be configurable
-  private static final int __axisDividerValue = 0; // Configured for Gamepad.  TODO: this needs to be configurable
   private static final KeysetDriver __driver = new KeysetDriver();
+  private static final long __stopTimeout = 1000;  // milliseconds to wait for the reader thread
+
+  private final List<KeysetListener> _listeners;
+  private final Observer _observer;
+  private volatile KeysetDispatcher _dispatcher = null;  // null for synchronous dispatch
+  private final KeysetHistory _history = new KeysetHistory();
+  private KeysetConfig _config;
+  private volatile boolean _shutdown = false;
+  private Thread _thread = null;           // the reader thread, while running
+  private Thread _stopping = null;         // a stopped reader thread which may not have exited
+  private KeysetBackend _backend = null;   // the open backend, while running
+  private ChordRecognizer _recognizer;     // decides which key changes make up a chord; used by the reader thread
 
-  private final ArrayList<KeysetListener> _listeners = new ArrayList<KeysetListener>();
-  private ArrayList<JoystickRecord> _history = new ArrayList<JoystickRecord>();
-  private boolean _shutdown = false;
+  /**
+   * Notified when a driver opens its device, and when it stops reading it for whatever reason.
+   */
+  interface Observer {
+    /**
+     * Called on the device thread after the device has been opened.
+     */
+    public void driverOpened(KeysetDriver driver);
 
-  /*
-   * The method used by this driver to determine when a KEYSET_TYPED event occurs is as follows:
-   * Every time a key is pressed, the key number (KEY0 to KEY4) is stored in both the _pressedState variable
-   * and the _currentState variable. When a key is released, only the _currentState is updated. Once the
-   * _currentState is back to zero (all keys have been released), then the KEYSET_TYPED event occurs. Any
-   * key that was pressed at any time since the previous KEYSET_TYPED event is considered to be active,
-   * or taking part, in the event. If a key is pressed, then released, and then pressed again (provided it is
-   * not the only key being pressed at the time), then that is a single event and the second press is
-   * considered the same as the first press.
+    /**
+     * Called on the device thread after the device has been closed.
+     * @param cause the exception that stopped the driver, or null if it was stopped or reached the
+     * end of a replayed file
+     */
+    public void driverStopped(KeysetDriver driver, Exception cause);
+  }
+
+  private KeysetDriver() {
+    this(KeysetConfig.load());
+  }
+
+  /**
+   * Create a driver for the device selected by a configuration. Most applications use the shared
+   * instance, or a KeysetDeviceManager for several devices.
    */
-  private byte _pressedState = 0;
-  private byte _currentState = 0;
+  public KeysetDriver(final KeysetConfig config) {
+    this(config, new CopyOnWriteArrayList<KeysetListener>(), null);
+  }
 
-  private KeysetDriver() {}
+  /**
+   * @param listeners the listeners, which may be shared with other drivers; this must be safe to
+   * modify while it is iterated, such as a CopyOnWriteArrayList
+   * @param observer notified when the driver stops, or null
+   */
+  KeysetDriver(final KeysetConfig config, final List<KeysetListener> listeners, final Observer observer) {
+    this._config = config;
+    this._listeners = listeners;
+    this._observer = observer;
+    this._recognizer = config.createRecognizer();
+  }
 
   public static KeysetDriver getInstance() {
     return __driver;
   }
 
-  private void checkKeyset() throws KeysetNotFoundException {
-    final File file = new File(__deviceFile);
-    if (! file.exists()) {
-      throw new KeysetNotFoundException();
-    }
+  /**
+   * Return the history of the most recent records read from the device.
+   */
+  public KeysetHistory getHistory() {
+    return this._history;
   }
 
-  public void register(final KeysetListener listener) throws KeysetNotFoundException {
-    checkKeyset();
-    this._listeners.add(listener);
+  public synchronized KeysetConfig getConfig() {
+    return this._config;
   }
 
-  public void start() {
-    // TODO: don't allow someone to start unless currently stopped.
-    new Thread() {
-      public void run() {
-        try {
-          listen();
-        } catch (KeysetNotFoundException e) {
-          throw e;
-        } catch (Exception e) {
-          throw new RuntimeException("exception caught: ", e);
-        }
-      }
-    }.start();
+  /**
+   * Set the configuration, which selects the device, backend and chord recognizer. It takes effect
+   * the next time the driver is started.
+   */
+  public synchronized void setConfig(final KeysetConfig config) {
+    this._config = config;
   }
 
-  public synchronized void stop() {
-    // TODO: can only stop if currently started.
-    this._shutdown = true;
+  public synchronized ChordRecognizer getRecognizer() {
+    return this._recognizer;
   }
 
-  private void reset() {
-    this._pressedState = 0;
-    this._currentState = 0;
+  private void checkKeyset() throws KeysetNotFoundException {
+    final String device = getConfig().getDevice();
+    if (! KeysetConfig.deviceExists(device)) {
+      throw new KeysetNotFoundException();
+    }
   }
 
-  /**
-   * <p>Listen to data coming in from the chord keyset device file. Listens forever, or until stop()
-   * is called.
-   *
-   * <p>NOTE: this method is Linux-specific, because it relies on a specific underlying analog gameport driver.
-   *
-   * <p>Data is read from the port 8 bytes at a time. The data is an 8 byte record defined
-   * in the /linux-2.6.x/include/linux/joystick.h file. The underlying Linux analog joystick/gameport
-   * driver is being used to actually read data from the device.
-   * @throws IOException if device file does not exist or disappears (keyset gets unplugged from USB port)
-   */
-  private void listen() throws IOException, KeysetNotFoundException {
+  public void register(final KeysetListener listener) throws KeysetNotFoundException {
     checkKeyset();
-    final File file = new File(__deviceFile);
-    final FileInputStream fis = new FileInputStream(file);
-    final byte[] data = new byte[8];
-    JoystickRecord previous = null;
-    while (true) {
-      if (_shutdown) {
-        break;
-      }
-      final int result = fis.read(data);
-      if (result == -1) {
-        throw new RuntimeException("EOF reached. This should never occur.");
-      } else if (result != 8) {
-        throw new RuntimeException("invalid number of bytes read: " + result);
-      }
-      final JoystickRecord jr = JoystickRecord.parseBytes(data);
-      if (! jr.equals(previous)) { // only record new event if current value is different than previous value
-        previous = jr;
-        sendEvent(jr);
-      }
+    if (! this._listeners.contains(listener)) {
+      this._listeners.add(listener);
     }
   }
 
-  private void sendEvent(final JoystickRecord jr) {
-    this._history.add(jr);
-    if ((jr.getType() & JoystickRecord.JS_EVENT_INIT) == JoystickRecord.JS_EVENT_INIT) {
-      //      System.out.println("initialization:\n" + jr);
-      return;  // ignore initialization data, since they are not actual event data
-    } else if (jr.getType() == JoystickRecord.JS_EVENT_BUTTON && jr.getValue() == 1) {
-      keysetPressed03(jr);
-    } else if (jr.getType() == JoystickRecord.JS_EVENT_BUTTON && jr.getValue() == 0) {
-      keysetReleased03(jr);
-    } else if (jr.getType() == JoystickRecord.JS_EVENT_AXIS && jr.getValue() > __axisDividerValue) {
-      keysetPressed4(jr);
-    } else if (jr.getType() == JoystickRecord.JS_EVENT_AXIS && jr.getValue() <= __axisDividerValue) {
-      keysetReleased4(jr);
-    } else {
-      throw new RuntimeException("unexpected condition");
-    }
+  public void unregister(final KeysetListener listener) {
+    this._listeners.remove(listener);
   }
 
   /**
-   * This method is called when KEY0, KEY1, KEY2, or KEY3 is pressed.
-   * @param jr
+   * Choose whether listeners are called on the device thread, or asynchronously on a listener thread
+   * fed through a KeysetDispatcher. Listeners are called synchronously by default.
+   * @param async true to dispatch asynchronously
+   * @param waitStrategy how the listener thread waits for events; see KeysetDispatcher
    */
-  private void keysetPressed03(final JoystickRecord jr) {
-    notifyPressed(new KeysetEvent(KeysetEvent.KEYSET_PRESSED, jr.getTime(), jr.getNumber(), KeysetEvent.CHAR_UNDEFINED));
-    this._pressedState |= (1 << jr.getNumber());
-    this._currentState |= (1 << jr.getNumber());
+  public synchronized void setAsynchronous(final boolean async, final int waitStrategy) {
+    final KeysetDispatcher old = this._dispatcher;
+    if (old != null && async && old.getWaitStrategy() == waitStrategy) {
+      return;
+    }
+    if (async) {
+      final KeysetDispatcher dispatcher = new KeysetDispatcher(this._listeners, KeysetDispatcher.DEFAULT_CAPACITY, waitStrategy);
+      dispatcher.start();
+      this._dispatcher = dispatcher;
+    } else {
+      this._dispatcher = null;
+    }
+    if (old != null) {
+      old.stop();
+    }
   }
 
   /**
-   * This method is called when KEY0, KEY1, KEY2, or KEY3 is released.
-   * @param jr
+   * Start reading the device on the driver's own thread. Does nothing if the driver is already
+   * running. A driver which has stopped, or been stopped, can be started again, but not until the
+   * reader thread of its last run has exited, so that two threads never read the same device; until
+   * then this does nothing, and isRunning() stays false so that the caller can try again later.
    */
-  private void keysetReleased03(final JoystickRecord jr) {
-    notifyReleased(new KeysetEvent(KeysetEvent.KEYSET_RELEASED, jr.getTime(), jr.getNumber(), KeysetEvent.CHAR_UNDEFINED));
-    this._currentState &= ~ (1 << jr.getNumber());
-    if (this._currentState == 0) {
-      if (this._pressedState == 0) {
-        // TODO: I've seen a bug where after running for a while, the keyset
-        // driver can sometimes send a keyReleased03() event even though
-        // the pressedState is 0. While this is logically impossible (you
-        // can't release a key that isn't pressed), I'm not sure why this
-        // event is occurring. It might be a problem somewhere within the
-        // Linux joystick.h or elsewhere. Needs to be looked into.
-
-        // for now, let's just ignore this situation altogether.
-        reset();
+  public synchronized void start() {
+    if (this._thread != null) {
+      return;
+    }
+    if (this._stopping != null) {
+      if (this._stopping.isAlive()) {
         return;
       }
-      notifyTyped(new KeysetEvent(KeysetEvent.KEYSET_TYPED, jr.getTime(), KeysetEvent.VK_UNDEFINED, map(this._pressedState)));
-      reset();
+      this._stopping = null;
     }
+    this._shutdown = false;
+    this._recognizer = this._config.createRecognizer();
+    this._thread = new Thread("Keyset " + this._config.getDevice()) {
+      public void run() {
+        Exception cause = null;
+        try {
+          listen();
+        } catch (KeysetNotFoundException e) {
+          cause = e;
+        } catch (Exception e) {
+          cause = e;
+        } finally {
+          synchronized (KeysetDriver.this) {
+            if (_thread == this) {
+              _thread = null;
+              _backend = null;
+            } else if (_stopping == this) {
+              _stopping = null;
+            }
+          }
+        }
+        if (_shutdown) {
+          cause = null;  // the read was interrupted by stop()
+        }
+        if (_observer != null) {
+          _observer.driverStopped(KeysetDriver.this, cause);
+        } else if (cause instanceof KeysetNotFoundException) {
+          throw (KeysetNotFoundException) cause;
+        } else if (cause != null) {
+          throw new RuntimeException("exception caught: ", cause);
+        }
+      }
+    };
+    this._thread.setDaemon(true);
+    this._thread.start();
   }
 
   /**
-   * This method is called when KEY4 is pressed.
-   * @param jr
+   * Return whether the driver is reading its device.
    */
-  private void keysetPressed4(final JoystickRecord jr) {
-    notifyPressed(new KeysetEvent(KeysetEvent.KEYSET_PRESSED, jr.getTime(), KeysetEvent.KEY4, KeysetEvent.CHAR_UNDEFINED));
-    this._pressedState |= 16;
-    this._currentState |= 16;
+  public synchronized boolean isRunning() {
+    return this._thread != null;
   }
 
   /**
-   * This method is called when KEY4 is released.
-   * @param jr
+   * Stop reading the device. The device is closed, which interrupts a blocked read, and the reader
+   * thread is given a short time to finish. Does nothing if the driver is not running.
    */
-  private void keysetReleased4(final JoystickRecord jr) {
-    notifyReleased(new KeysetEvent(KeysetEvent.KEYSET_RELEASED, jr.getTime(), KeysetEvent.KEY4, KeysetEvent.CHAR_UNDEFINED));
-    this._currentState &= ~ 16;
-    if (this._currentState == 0) {
-      if (this._pressedState != 0) {  // hack! TODO: figure out why 0 sometimes occurs
-        notifyTyped(new KeysetEvent(KeysetEvent.KEYSET_TYPED, jr.getTime(), KeysetEvent.VK_UNDEFINED, map(this._pressedState)));
+  public void stop() {
+    final Thread thread;
+    final KeysetBackend backend;
+    synchronized (this) {
+      thread = this._thread;
+      if (thread == null) {
+        return;
       }
-      reset();
+      this._shutdown = true;
+      this._thread = null;
+      this._stopping = thread;
+      backend = this._backend;
     }
-  }
-
-  private char map(final byte value) {
-    if (value < 1 || value > 31) {
-      throw new RuntimeException("invalid value: " + value);
-    }
-    return KeysetCharacterMap.CASE0.charAt(value);
-  }
-
-  private void notifyPressed(final KeysetEvent event) {
-    for (KeysetListener kl : this._listeners) {
-      kl.keyPressed(event);
-    }
-  }
-
-  private void notifyReleased(final KeysetEvent event) {
-    for (KeysetListener kl : this._listeners) {
-      kl.keyReleased(event);
+    if (backend != null) {
+      try {
+        backend.close();
+      } catch (IOException e) {
+        // ignore
+      }
     }
-  }
-
-  private void notifyTyped(final KeysetEvent event) {
-    for (KeysetListener kl : this._listeners) {
-      kl.keyTyped(event);
+    if (thread != Thread.currentThread()) {
+      try {
+        thread.join(__stopTimeout);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     }
   }
 
   /**
-   * This corresponds to the js_event struct in /linux-2.6.x/include/linux/joystick.h
+   * <p>Listen to data coming in from the chord keyset device file. Listens forever, or until stop()
+   * is called, or until the end of a replayed file.
+   *
+   * <p>NOTE: this method is Linux-specific, because it relies on a specific underlying analog gameport
+   * driver. The device is read by the KeysetBackend selected by the KeysetConfig.
+   * @throws IOException if device file does not exist or disappears (keyset gets unplugged from USB port)
    */
-  static class JoystickRecord {
-    private final long _time;     // a long, to hold unsigned 32 bits
-    private final short _value;   // a short, to hold signed 16 bits
-    private final short _type;    // a short, to hold unsigned 8 bits
-    private final short _number;  // a short, to hold unsigned 8 bits
-
-    public static final int JS_EVENT_BUTTON = 0x01;
-    public static final int JS_EVENT_AXIS = 0x02;
-    public static final int JS_EVENT_INIT = 0x80;
-
-    private JoystickRecord(final long time, final short value, final short type, final short number) {
-      checkType(type);
-      checkNumber(number, type);
-      checkValue(value, type);
-      this._time = time;
-      this._value = value;
-      this._type = type;
-      this._number = number;
-    }
-
-    private void checkType(final short type) {
-      final short allowed = JS_EVENT_BUTTON | JS_EVENT_AXIS | JS_EVENT_INIT;
-      if ((type & allowed) != type || type == 0) {
-        throw new RuntimeException("invalid value for type: " + type);
+  private void listen() throws IOException, KeysetNotFoundException {
+    final KeysetBackend backend = getConfig().createBackend();
+    synchronized (this) {
+      if (this._shutdown) {
+        return;
       }
+      this._backend = backend;
     }
-
-    private void checkNumber(final short number, final short type) {
-      if ((type & JS_EVENT_INIT) == JS_EVENT_INIT) {  // ignore check during initialization
-        return;
+    try {
+      backend.open();
+      if (this._shutdown) {
+        return;  // stopped while opening
       }
-      if (number < 0 || number > 3) {
-        throw new RuntimeException("invalid value for number: " + number);
+      if (this._observer != null) {
+        this._observer.driverOpened(this);
       }
-    }
-
-    private void checkValue(final short value, final short type) {
-      if (type == JS_EVENT_BUTTON && (value < 0 || value > 1)) {
-        throw new RuntimeException("value must be 0 or 1 but is: " + value);
+      while (true) {
+        if (this._shutdown) {
+          break;
+        }
+        if (! backend.read(this)) {
+          break;
+        }
       }
+    } finally {
+      backend.close();
     }
+  }
 
-    /**
-     * Return the time as a long, which can hold an unsigned 32 bit value.
-     */
-    public long getTime() {
-      return this._time;
-    }
-
-    public short getValue() {
-      return this._value;
-    }
-
-    /**
-     * Return the type as a short, which can hold an unsigned byte value.
-     */
-    public short getType() {
-      return this._type;
-    }
+  /**
+   * Called by the backend with each raw record read from the device, for the history.
+   */
+  void record(final long time, final short value, final short type, final short number) {
+    this._history.add(time, value, type, number);
+  }
 
-    /**
-     * Return the number as a short, which can hold an unsigned byte value.
-     */
-    public short getNumber() {
-      return this._number;
+  /**
+   * Called by a backend whose device is not a joystick with each key it decodes, to record the
+   * js_event records which a keyset cable would have produced, so that the history can be replayed
+   * like that of a joystick. KEY0 to KEY3 are buttons 0 to 3, KEY4 is the X axis at full scale, and
+   * the mouse buttons are the default gamepad buttons for the mouse. Pointer movement is not recorded.
+   * @param time the device timestamp of the change, in milliseconds
+   */
+  void recordKey(final long time, final int key, final boolean pressed) {
+    if (key == KeysetEvent.KEY4) {
+      record(time, pressed ? Short.MAX_VALUE : -Short.MAX_VALUE, (short) JoystickBackend.JS_EVENT_AXIS, (short) JoystickBackend.KEY4_AXIS);
+    } else if (key < KeysetEvent.KEY4) {
+      record(time, (short) (pressed ? 1 : 0), (short) JoystickBackend.JS_EVENT_BUTTON, (short) key);
+    } else {
+      record(time, (short) (pressed ? 1 : 0), (short) JoystickBackend.JS_EVENT_BUTTON,
+          (short) KeysetConfig.DEFAULT_JOYSTICK_MOUSE_BUTTONS[key - KeysetEvent.MOUSE_LEFT]);
     }
+  }
 
-    public boolean equals(final Object o) {
-      if (! (o instanceof JoystickRecord)) {
-        return false;
-      }
-      final JoystickRecord jr = (JoystickRecord) o;
-      return this._time == jr._time &&
-      this._value == jr._value &&
-      this._type == jr._type &&
-      this._number == jr._number;
+  /**
+   * Called by the backend when a key is pressed or released.
+   * @param key KEY0 to KEY4, or a mouse button
+   * @param pressed true if the key was pressed
+   * @param micros the device timestamp of the change, in microseconds
+   * @param nanoTime the System.nanoTime() at which the record was read
+   */
+  void keyChanged(final int key, final boolean pressed, final long micros, final long nanoTime) {
+    final long time = micros / 1000;
+    dispatch(pressed ? KeysetEvent.KEYSET_PRESSED : KeysetEvent.KEYSET_RELEASED, time, key, KeysetEvent.CHAR_UNDEFINED, nanoTime, 0);
+    if (key > KeysetEvent.KEY4) {
+      return;  // mouse buttons are not part of chords
     }
-
-    public int hashCode() {
-      return (int) this._time + this._value + this._type + this._number;
+    final int chord = this._recognizer.keyChanged(key, pressed, micros, nanoTime);
+    if (chord != 0) {
+      dispatch(KeysetEvent.KEYSET_TYPED, time, KeysetEvent.VK_UNDEFINED, map(chord), this._recognizer.getChordNanoTime(), chord);
     }
+  }
 
-    public String toString() {
-      StringBuilder sb = new StringBuilder();
-      sb.append("time="); sb.append(this._time); sb.append(", ");
-      sb.append("value="); sb.append(this._value); sb.append(", ");
-      sb.append("type="); sb.append(this._type); sb.append(", ");
-      sb.append("number="); sb.append(this._number); sb.append("\n");
-      return sb.toString();
-    }
+  /**
+   * Called by the backend when the deflection of a pointer stick changes.
+   * @param x the deflection to the right, from -POINTER_MAX to POINTER_MAX
+   * @param y the deflection downwards, from -POINTER_MAX to POINTER_MAX
+   * @param micros the device timestamp of the change, in microseconds
+   * @param nanoTime the System.nanoTime() at which the record was read
+   */
+  void pointerChanged(final int x, final int y, final long micros, final long nanoTime) {
+    dispatch(KeysetEvent.KEYSET_MOVED, micros / 1000, KeysetEvent.pointerCode(x, y), KeysetEvent.CHAR_UNDEFINED, nanoTime, 0);
+  }
 
-    /**
-     * return an unsigned version of the byte
-     */
-    private static short unsigned(byte b) {
-      return (short) ((((short) b) + 256) % 256);
+  private char map(final int value) {
+    if (value < 1 || value > 31) {
+      throw new RuntimeException("invalid value: " + value);
     }
+    return KeysetCharacterMap.CASE0.charAt(value);
+  }
 
-    /**
-     * WARNING: this method expects little-endian processor and is not portable!
-     */
-    public static JoystickRecord parseBytes(final byte[] bytes) {
-      if (bytes.length != 8) {
-        throw new RuntimeException("invalid byte size: " + bytes.length);
-      }
-      final long time = (unsigned(bytes[3]) << 24) + (unsigned(bytes[2]) << 16) + (unsigned(bytes[1]) << 8) + unsigned(bytes[0]);
-      final short value = (short) ((((short) bytes[5]) << 8) + bytes[4]);
-      final short type = unsigned(bytes[6]);
-      final short number = unsigned(bytes[7]);
-      return new JoystickRecord(time, value, type, number);
+  private void dispatch(final int type, final long when, final int keyCode, final char keyChar, final long nanoTime, final int chord) {
+    final KeysetDispatcher dispatcher = this._dispatcher;
+    if (dispatcher != null) {
+      dispatcher.publish(type, when, keyCode, keyChar, nanoTime, chord);
+    } else {
+      KeysetDispatcher.deliver(this._listeners, type, when, keyCode, keyChar, nanoTime, chord);
     }
   }
 }
@@ -0,0 +1,177 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>A fixed-capacity history of the most recent records read from a keyset device. Each record is
+ * packed into a single long, so the history uses constant memory and recording a record creates no
+ * objects. Once the history is full, each new record replaces the oldest one.
+ *
+ * <p>The packed layout is: time (unsigned 32 bits) in the high word, then value (signed 16 bits),
+ * type (unsigned 8 bits) and number (unsigned 8 bits). The static accessors decode the fields.
+ *
+ * <p>The history can be dumped to a file in the js_event format of the joystick device, so that it
+ * can be examined with the same tools as the device, or replayed. Backends for other devices record
+ * the keys they decode as js_event records, so their histories are in the same format.
+ */
+public final class KeysetHistory {
+  /**
+   * The default number of records kept.
+   */
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  private static final int __recordSize = 8;  // sizeof(struct js_event)
+
+  private final long[] _records;
+  private int _head = 0;   // index of the oldest record
+  private int _size = 0;
+  private long _total = 0;
+
+  /**
+   * Receives the records of the history, oldest first.
+   */
+  public interface Visitor {
+    public void record(long time, short value, short type, short number);
+  }
+
+  public KeysetHistory() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public KeysetHistory(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this._records = new long[capacity];
+  }
+
+  /**
+   * Pack the fields of a record into a long.
+   */
+  public static long pack(final long time, final short value, final short type, final short number) {
+    return ((time & 0xffffffffL) << 32) | ((value & 0xffffL) << 16) | ((type & 0xffL) << 8) | (number & 0xffL);
+  }
+
+  /**
+   * Return the time of a packed record, in milliseconds.
+   */
+  public static long getTime(final long record) {
+    return record >>> 32;
+  }
+
+  public static short getValue(final long record) {
+    return (short) (record >>> 16);
+  }
+
+  public static short getType(final long record) {
+    return (short) ((record >>> 8) & 0xff);
+  }
+
+  public static short getNumber(final long record) {
+    return (short) (record & 0xff);
+  }
+
+  public synchronized void add(final long time, final short value, final short type, final short number) {
+    final int capacity = this._records.length;
+    if (this._size < capacity) {
+      this._records[(this._head + this._size) % capacity] = pack(time, value, type, number);
+      ++this._size;
+    } else {
+      this._records[this._head] = pack(time, value, type, number);
+      this._head = (this._head + 1) % capacity;
+    }
+    ++this._total;
+  }
+
+  public synchronized void clear() {
+    this._head = 0;
+    this._size = 0;
+  }
+
+  public int getCapacity() {
+    return this._records.length;
+  }
+
+  public synchronized int size() {
+    return this._size;
+  }
+
+  /**
+   * Return the number of records added since the history was created, including those which have
+   * been replaced.
+   */
+  public synchronized long getTotal() {
+    return this._total;
+  }
+
+  /**
+   * Return a copy of the packed records, oldest first.
+   */
+  public synchronized long[] snapshot() {
+    final long[] copy = new long[this._size];
+    final int capacity = this._records.length;
+    final int first = Math.min(this._size, capacity - this._head);
+    System.arraycopy(this._records, this._head, copy, 0, first);
+    System.arraycopy(this._records, 0, copy, first, this._size - first);
+    return copy;
+  }
+
+  /**
+   * Pass each record to a visitor, oldest first. The visitor sees a snapshot, so it may take as long
+   * as it likes without holding up the device.
+   */
+  public void visit(final Visitor visitor) {
+    for (long record : snapshot()) {
+      visitor.record(getTime(record), getValue(record), getType(record), getNumber(record));
+    }
+  }
+
+  /**
+   * Write the records, oldest first, to a file as little-endian js_event structs.
+   * @return the number of records written
+   */
+  public int dump(final File file) throws IOException {
+    final long[] records = snapshot();
+    final ByteBuffer buffer = ByteBuffer.allocate(records.length * __recordSize);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    for (long record : records) {
+      buffer.putInt((int) getTime(record));
+      buffer.putShort(getValue(record));
+      buffer.put((byte) getType(record));
+      buffer.put((byte) getNumber(record));
+    }
+    buffer.flip();
+    final FileChannel channel = new FileOutputStream(file).getChannel();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } finally {
+      channel.close();
+    }
+    return records.length;
+  }
+
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    for (long record : snapshot()) {
+      sb.append("time="); sb.append(getTime(record)); sb.append(", ");
+      sb.append("value="); sb.append(getValue(record)); sb.append(", ");
+      sb.append("type="); sb.append(getType(record)); sb.append(", ");
+      sb.append("number="); sb.append(getNumber(record)); sb.append("\n");
+    }
+    return sb.toString();
+  }
+}
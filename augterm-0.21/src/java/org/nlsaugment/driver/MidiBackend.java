@@ -0,0 +1,245 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.Transmitter;
+
+import org.nlsaugment.event.KeysetEvent;
+
+/**
+ * <p>Backend for a MIDI keyboard used as a keyset with three mouse buttons. Five configurable notes
+ * are KEY0 through KEY4, and three more are the left, middle and right mouse buttons. The notes are
+ * received from the Transmitter of a javax.sound.midi device.
+ *
+ * <p>MIDI delivers messages by calling a Receiver, so rather than waiting for records in read(),
+ * the notes are passed to the driver as soon as they arrive, on the thread of the MIDI
+ * implementation; read() only waits for the device to be closed. The timestamp of each change is the
+ * time stamp given by the device, in microseconds, or the time it was received if the device gives
+ * none. The notes are recorded in the history as the js_event records of the keys they stand for.
+ *
+ * <p>Messages can also be sent to getReceiver() directly, to drive the backend without a device.
+ */
+public final class MidiBackend implements KeysetBackend {
+  /**
+   * The prefix of a keyset.device naming a MIDI device rather than a file.
+   */
+  public static final String DEVICE_PREFIX = "midi:";
+
+  /**
+   * Default notes for KEY0 through KEY4: C, D, E, F and G from middle C.
+   */
+  public static final int[] DEFAULT_NOTES = { 60, 62, 64, 65, 67 };
+
+  /**
+   * Default notes for the left, middle and right mouse buttons: C, D and E an octave below middle C.
+   */
+  public static final int[] DEFAULT_BUTTONS = { 48, 50, 52 };
+
+  private final String _device;   // part of the name of the device, or null for none
+  private final int _channel;     // 0 to 15, or -1 for any
+  private final int[] _keys = new int[128];  // key code of each note, or -1
+  private final Receiver _receiver = new Receiver() {
+    public void send(final MidiMessage message, final long timeStamp) {
+      receive(message, timeStamp);
+    }
+
+    public void close() {
+      // the device is closed by the backend
+    }
+  };
+
+  private MidiDevice _midiDevice = null;
+  private Transmitter _transmitter = null;
+  private KeysetDriver _driver = null;
+  private boolean _open = false;
+
+  /**
+   * @param device part of the name or description of the MIDI device; "" for the first device
+   * which can transmit, or null to receive only what is sent to getReceiver()
+   * @param notes the notes of KEY0 through KEY4
+   * @param buttons the notes of the left, middle and right mouse buttons; -1 for none
+   * @param channel the MIDI channel, 0 to 15, or -1 for any channel
+   */
+  public MidiBackend(final String device, final int[] notes, final int[] buttons, final int channel) {
+    if (notes.length != KeysetEvent.KEY4 + 1 || buttons.length != 3) {
+      throw new IllegalArgumentException("expected " + (KeysetEvent.KEY4 + 1) + " notes and 3 buttons");
+    }
+    this._device = device;
+    this._channel = channel;
+    Arrays.fill(this._keys, -1);
+    for (int key = 0; key < notes.length; ++key) {
+      map(notes[key], key);
+    }
+    map(buttons[0], KeysetEvent.MOUSE_LEFT);
+    map(buttons[1], KeysetEvent.MOUSE_MIDDLE);
+    map(buttons[2], KeysetEvent.MOUSE_RIGHT);
+  }
+
+  private void map(final int note, final int key) {
+    if (note >= 0 && note < this._keys.length) {
+      this._keys[note] = key;
+    }
+  }
+
+  public String getName() {
+    return "MIDI " + (this._device == null ? "receiver" : this._device);
+  }
+
+  /**
+   * Return the receiver to which the device's messages are sent.
+   */
+  public Receiver getReceiver() {
+    return this._receiver;
+  }
+
+  /**
+   * Return whether a MIDI device which can transmit matches a name; see find().
+   */
+  public static boolean exists(final String device) {
+    return find(device) != null;
+  }
+
+  /**
+   * Find the first MIDI input device which can transmit and whose name or description contains a string.
+   * A DEVICE_PREFIX is ignored.
+   * @return the device, or null if there is none
+   */
+  public static MidiDevice find(final String device) {
+    final String name = device.startsWith(DEVICE_PREFIX) ? device.substring(DEVICE_PREFIX.length()) : device;
+    for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+      if (! info.getName().contains(name) && ! info.getDescription().contains(name)) {
+        continue;
+      }
+      try {
+        final MidiDevice midiDevice = MidiSystem.getMidiDevice(info);
+        // A sequencer or synthesizer is not an input device, even if it can transmit
+        if (midiDevice.getMaxTransmitters() != 0 && ! (midiDevice instanceof Sequencer)
+            && ! (midiDevice instanceof Synthesizer)) {
+          return midiDevice;
+        }
+      } catch (MidiUnavailableException e) {
+        // try the next one
+      }
+    }
+    return null;
+  }
+
+  public void open() throws IOException, KeysetNotFoundException {
+    MidiDevice midiDevice = null;
+    if (this._device != null) {
+      midiDevice = find(this._device);
+      if (midiDevice == null) {
+        throw new KeysetNotFoundException();
+      }
+      try {
+        midiDevice.open();
+      } catch (MidiUnavailableException e) {
+        throw new IOException("unable to open " + getName() + ": " + e.getMessage());
+      }
+    }
+    synchronized (this) {
+      this._midiDevice = midiDevice;
+      this._driver = null;
+      this._open = true;
+    }
+    if (midiDevice != null) {
+      try {
+        final Transmitter transmitter = midiDevice.getTransmitter();
+        synchronized (this) {
+          this._transmitter = transmitter;
+        }
+        transmitter.setReceiver(this._receiver);
+      } catch (MidiUnavailableException e) {
+        close();
+        throw new IOException("no transmitter for " + getName() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Wait until the device is closed, while the notes are passed to the driver as they arrive.
+   */
+  public boolean read(final KeysetDriver driver) throws IOException {
+    synchronized (this) {
+      this._driver = driver;
+      while (this._open) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new IOException("interrupted");
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Called on the MIDI thread for each message.
+   */
+  private void receive(final MidiMessage message, final long timeStamp) {
+    final long nanoTime = System.nanoTime();
+    if (! (message instanceof ShortMessage)) {
+      return;
+    }
+    final ShortMessage sm = (ShortMessage) message;
+    final int command = sm.getCommand();
+    if (command != ShortMessage.NOTE_ON && command != ShortMessage.NOTE_OFF) {
+      return;
+    }
+    if (this._channel >= 0 && sm.getChannel() != this._channel) {
+      return;
+    }
+    final int note = sm.getData1();
+    final int velocity = sm.getData2();
+    final long micros = timeStamp >= 0 ? timeStamp : nanoTime / 1000;
+    synchronized (this) {
+      final KeysetDriver driver = this._driver;
+      if (! this._open || driver == null) {
+        return;
+      }
+      final int key = this._keys[note];
+      if (key >= 0) {
+        // A NOTE_ON with no velocity is a release
+        final boolean pressed = command == ShortMessage.NOTE_ON && velocity > 0;
+        driver.recordKey(micros / 1000, key, pressed);
+        driver.keyChanged(key, pressed, micros, nanoTime);
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    final Transmitter transmitter;
+    final MidiDevice midiDevice;
+    synchronized (this) {
+      this._open = false;
+      notifyAll();
+      transmitter = this._transmitter;
+      midiDevice = this._midiDevice;
+      this._transmitter = null;
+      this._midiDevice = null;
+    }
+    // Outside the lock, since closing may wait for a message being received
+    if (transmitter != null) {
+      transmitter.close();
+    }
+    if (midiDevice != null) {
+      midiDevice.close();
+    }
+  }
+}
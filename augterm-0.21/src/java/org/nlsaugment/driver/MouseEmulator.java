@@ -0,0 +1,128 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import org.nlsaugment.event.KeysetEvent;
+
+/**
+ * <p>Lets a gamepad or keyset with spare buttons and a stick take the place of a three-button mouse.
+ * Three of its buttons are mapped to the left, middle and right mouse buttons, and two of its axes to
+ * the deflection of a pointer stick. The buttons are pressed and released like the mouse buttons of a
+ * MIDI keyboard, and the deflection is passed to the driver as KEYSET_MOVED events.
+ *
+ * <p>An axis reports every small change of its value, many times a second while the stick moves. The
+ * deflection is therefore reduced to POINTER_MAX steps either side of the center, with a dead zone
+ * around it, and the driver is only told when the step of either axis changes. A stick held still, or
+ * jittering within a step, produces no events at all; the listener moves the pointer at its own rate
+ * for as long as the stick is deflected.
+ */
+public final class MouseEmulator {
+  private final int[] _buttons;  // device button numbers or codes for the left, middle and right buttons
+  private final int _axisX;
+  private final int _axisY;
+  private final int _center;
+  private final int _range;
+  private final int _deadZone;
+
+  private int _x = 0;
+  private int _y = 0;
+
+  /**
+   * @param buttons the device's button numbers or key codes for the left, middle and right mouse
+   * buttons, -1 for none
+   * @param axes the device's axis numbers or codes for the pointer's X and Y, -1 for none
+   * @param center the axis value when the stick is centered
+   * @param range the difference from the center to the axis value at full deflection
+   * @param deadZone the difference from the center within which the stick counts as centered
+   */
+  public MouseEmulator(final int[] buttons, final int[] axes, final int center, final int range, final int deadZone) {
+    if (buttons.length != 3 || axes.length != 2) {
+      throw new IllegalArgumentException("expected 3 buttons and 2 axes");
+    }
+    if (range <= deadZone) {
+      throw new IllegalArgumentException("the range must be greater than the dead zone: " + range);
+    }
+    this._buttons = buttons.clone();
+    this._axisX = axes[0];
+    this._axisY = axes[1];
+    this._center = center;
+    this._range = range;
+    this._deadZone = Math.max(deadZone, 0);
+  }
+
+  /**
+   * Return an emulator which maps nothing.
+   */
+  public static MouseEmulator none() {
+    return new MouseEmulator(new int[] { -1, -1, -1 }, new int[] { -1, -1 }, 0, 1, 0);
+  }
+
+  /**
+   * Forget the deflection of the stick, as when the device is opened.
+   */
+  public void reset() {
+    this._x = 0;
+    this._y = 0;
+  }
+
+  /**
+   * Return the mouse button of a device button, MOUSE_LEFT, MOUSE_MIDDLE or MOUSE_RIGHT, or -1 if it
+   * is not mapped to one.
+   */
+  public int getButton(final int number) {
+    for (int i = 0; i < this._buttons.length; ++i) {
+      if (this._buttons[i] == number) {
+        return KeysetEvent.MOUSE_LEFT + i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Return whether an axis is one of the pointer's.
+   */
+  public boolean isPointerAxis(final int number) {
+    return number >= 0 && (number == this._axisX || number == this._axisY);
+  }
+
+  /**
+   * Process a value of one of the pointer's axes, and tell the driver if the deflection has changed.
+   * @param micros the device timestamp of the value, in microseconds
+   * @param nanoTime the System.nanoTime() at which the record was read
+   */
+  public void axisChanged(final KeysetDriver driver, final int number, final int value, final long micros, final long nanoTime) {
+    final int step = step(value);
+    if (number == this._axisX) {
+      if (step == this._x) {
+        return;
+      }
+      this._x = step;
+    } else if (number == this._axisY) {
+      if (step == this._y) {
+        return;
+      }
+      this._y = step;
+    } else {
+      return;
+    }
+    driver.pointerChanged(this._x, this._y, micros, nanoTime);
+  }
+
+  /**
+   * Return the deflection step of an axis value, with the dead zone removed.
+   */
+  private int step(final int value) {
+    final long offset = (long) value - this._center;
+    final long magnitude = Math.min(Math.abs(offset), this._range) - this._deadZone;
+    if (magnitude <= 0) {
+      return 0;
+    }
+    final int step = (int) ((magnitude * KeysetEvent.POINTER_MAX + (this._range - this._deadZone) - 1) / (this._range - this._deadZone));
+    return offset < 0 ? -step : step;
+  }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import org.nlsaugment.event.KeysetEvent;
+
+/**
+ * <p>A keyset with no hardware, for developing and benchmarking without the keyset cable and gameport
+ * adapter. It either replays a recording of js_event records, such as one written from the
+ * KeysetHistory of any backend, or types a text as chords at a given rate. Either way, the records are passed through
+ * the decoding of JoystickBackend, so the driver sees exactly what it would from /dev/input/js0.
+ *
+ * <p>A recording is replayed with the original spacing of its records, scaled by a speed factor, or
+ * as fast as possible with a speed of 0. Chords are typed at a rate in chords per second, or as fast
+ * as possible with a rate of 0; each chord's keys are pressed together and released together after a
+ * hold time. KEY4 is typed on the X axis, as with the keyset cable. The input ends after the
+ * recording or the given number of chords.
+ */
+public final class SimulatorBackend implements KeysetBackend {
+  /**
+   * The prefix of a keyset.device naming a simulated keyset. It is followed by the file to replay,
+   * or nothing to type chords.
+   */
+  public static final String DEVICE_PREFIX = "sim:";
+
+  private static final int __batchRecords = 64;  // records decoded at once when not paced
+  private static final short __axisPressed = 32767;
+  private static final short __axisReleased = -32767;
+
+  private final File _file;          // the recording, or null to type chords
+  private final double _speed;
+  private final int[] _chords;       // the chords to type
+  private final int _count;
+  private final double _rate;
+  private final int _hold;
+  private final JoystickBackend _decoder;
+
+  private ByteBuffer _records = null;   // records to decode, little-endian
+  private long _startNanos = 0;
+  private long _firstTime = -1;         // time of the first record replayed
+  private int _typed = 0;
+  private volatile boolean _closed = false;
+  private volatile Thread _reader = null;
+
+  private SimulatorBackend(final File file, final double speed, final int[] chords, final int count, final double rate, final int hold, final AxisCalibrator calibrator, final MouseEmulator mouse) {
+    this._file = file;
+    this._speed = speed;
+    this._chords = chords;
+    this._count = count;
+    this._rate = rate;
+    this._hold = hold;
+    this._decoder = new JoystickBackend(file, calibrator, mouse);
+  }
+
+  /**
+   * Create a simulator which replays a file of js_event records.
+   * @param speed the factor by which to speed up the recording, or 0 for as fast as possible
+   * @param mouse maps the buttons and axes of a recorded gamepad to the mouse
+   */
+  public static SimulatorBackend replay(final File file, final double speed, final AxisCalibrator calibrator, final MouseEmulator mouse) {
+    return new SimulatorBackend(file, speed, null, 0, 0, 0, calibrator, mouse);
+  }
+
+  /**
+   * Create a simulator which types the chords of a text, repeating it as needed.
+   * @param text the text, whose characters are typed with the chords of the default Keymap;
+   * characters with no chord are skipped
+   * @param count the number of chords to type
+   * @param rate chords per second, or 0 for as fast as possible
+   * @param hold the milliseconds for which each chord is held
+   */
+  public static SimulatorBackend type(final String text, final int count, final double rate, final int hold, final AxisCalibrator calibrator) {
+    final int[] chords = new int[text.length()];
+    int n = 0;
+    for (int i = 0; i < text.length(); ++i) {
+      final int chord = Keymap.getDefault().getChord(Character.toLowerCase(text.charAt(i)));
+      if (chord != 0) {
+        chords[n++] = chord;
+      }
+    }
+    if (n == 0) {
+      throw new IllegalArgumentException("no chords in text: " + text);
+    }
+    final int[] trimmed = new int[n];
+    System.arraycopy(chords, 0, trimmed, 0, n);
+    return new SimulatorBackend(null, 0, trimmed, count, rate, Math.max(hold, 1), calibrator, MouseEmulator.none());
+  }
+
+  public String getName() {
+    return "simulated keyset" + (this._file != null ? " " + this._file : "");
+  }
+
+  public void open() throws IOException, KeysetNotFoundException {
+    if (this._file != null) {
+      if (! this._file.isFile()) {
+        throw new KeysetNotFoundException();
+      }
+      final FileChannel channel = new FileInputStream(this._file).getChannel();
+      try {
+        final ByteBuffer records = ByteBuffer.allocate((int) channel.size());
+        while (records.hasRemaining() && channel.read(records) != -1) {
+          // read the whole recording
+        }
+        records.flip();
+        this._records = records.order(ByteOrder.LITTLE_ENDIAN);
+      } finally {
+        channel.close();
+      }
+    } else {
+      // The records of one chord, and the initial state of the axis
+      this._records = ByteBuffer.allocate(JoystickBackend.RECORD_SIZE * 2 * (KeysetEvent.KEY4 + 1)).order(ByteOrder.LITTLE_ENDIAN);
+      putRecord(0, __axisReleased, JoystickBackend.JS_EVENT_AXIS | JoystickBackend.JS_EVENT_INIT, JoystickBackend.KEY4_AXIS);
+      this._records.flip();
+    }
+    this._decoder.reset();
+    this._firstTime = -1;
+    this._typed = 0;
+    this._closed = false;
+    this._startNanos = System.nanoTime();
+  }
+
+  public boolean read(final KeysetDriver driver) throws IOException {
+    this._reader = Thread.currentThread();
+    if (this._records.remaining() < JoystickBackend.RECORD_SIZE) {
+      if (this._file != null || this._typed >= this._count) {
+        return false;
+      }
+      nextChord();
+    }
+    // Wait until the next record is due, then decode every record which is due
+    final ByteBuffer records = this._records;
+    final long due = dueNanos(records.position());
+    if (! await(due)) {
+      return false;
+    }
+    final int limit = records.limit();
+    int end = records.position();
+    final long now = System.nanoTime();
+    while (end < limit && end - records.position() < __batchRecords * JoystickBackend.RECORD_SIZE
+        && dueNanos(end) <= now) {
+      end += JoystickBackend.RECORD_SIZE;
+    }
+    records.limit(Math.max(end, records.position() + JoystickBackend.RECORD_SIZE));
+    this._decoder.decode(records, driver, System.nanoTime());
+    records.limit(limit);
+    return true;
+  }
+
+  /**
+   * Return the System.nanoTime() at which the record at a position in the buffer is due.
+   */
+  private long dueNanos(final int position) {
+    if (this._file == null) {
+      if (this._rate <= 0) {
+        return this._startNanos;
+      }
+      final int chord = Math.max(this._typed - 1, 0);
+      final long offset = (this._records.getInt(position) & 0xffffffffL) - (long) chord * periodMillis();
+      return this._startNanos + (long) (chord * 1e9 / this._rate) + offset * 1000000;
+    }
+    if (this._speed <= 0) {
+      return this._startNanos;
+    }
+    final long time = this._records.getInt(position) & 0xffffffffL;
+    if (this._firstTime < 0) {
+      this._firstTime = time;
+    }
+    return this._startNanos + (long) ((time - this._firstTime) * 1e6 / this._speed);
+  }
+
+  private long periodMillis() {
+    return this._rate > 0 ? Math.max((long) (1000 / this._rate), 1) : 2L * this._hold;
+  }
+
+  /**
+   * Wait until a System.nanoTime().
+   * @return false if the simulator was closed while waiting
+   */
+  private boolean await(final long due) {
+    while (! this._closed) {
+      final long wait = due - System.nanoTime();
+      if (wait <= 0) {
+        return true;
+      }
+      LockSupport.parkNanos(this, wait);
+    }
+    return false;
+  }
+
+  /**
+   * Fill the buffer with the presses and releases of the next chord.
+   */
+  private void nextChord() {
+    final int chord = this._chords[this._typed % this._chords.length];
+    final long time = this._typed * periodMillis();
+    ++this._typed;
+    this._records.clear();
+    for (int key = 0; key <= KeysetEvent.KEY4; ++key) {
+      if ((chord & (1 << key)) != 0) {
+        putKey(time, key, true);
+      }
+    }
+    for (int key = 0; key <= KeysetEvent.KEY4; ++key) {
+      if ((chord & (1 << key)) != 0) {
+        putKey(time + this._hold, key, false);
+      }
+    }
+    this._records.flip();
+  }
+
+  private void putKey(final long time, final int key, final boolean pressed) {
+    if (key == KeysetEvent.KEY4) {
+      putRecord(time, pressed ? __axisPressed : __axisReleased, JoystickBackend.JS_EVENT_AXIS, JoystickBackend.KEY4_AXIS);
+    } else {
+      putRecord(time, (short) (pressed ? 1 : 0), JoystickBackend.JS_EVENT_BUTTON, key);
+    }
+  }
+
+  private void putRecord(final long time, final short value, final int type, final int number) {
+    this._records.putInt((int) time);
+    this._records.putShort(value);
+    this._records.put((byte) type);
+    this._records.put((byte) number);
+  }
+
+  public void close() throws IOException {
+    this._closed = true;
+    final Thread reader = this._reader;
+    if (reader != null) {
+      LockSupport.unpark(reader);
+    }
+  }
+}
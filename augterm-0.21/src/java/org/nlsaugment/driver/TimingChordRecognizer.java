@@ -0,0 +1,218 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+/**
+ * <p>A table-driven chord recognizer which uses the device timestamps of the key changes.
+ *
+ * <p>By default it behaves as the keyset driver always has: every key pressed while any key of the
+ * chord is down takes part in the chord, and the chord is complete when all its keys have been
+ * released. A key which is released and pressed again during the chord counts once. A release of a
+ * key which is not down is ignored; this can happen after the device is opened with keys held, and
+ * was previously handled by the "_pressedState == 0" workaround.
+ *
+ * <p>Two timing windows allow faster typing:
+ * <ul>
+ * <li>With emitOnFirstRelease, the chord is complete as soon as one of its keys is released, provided
+ * that at least pressWindow has passed since the last key of the chord was pressed. Within the press
+ * window, keys are still settling, and the chord is completed by a later release as usual.
+ * <li>With a releaseWindow, a key pressed more than releaseWindow after the first release of the
+ * chord is a rollover to the next chord: the current chord is completed at once, and the new key
+ * starts the next one.
+ * </ul>
+ * Keys which are still down when a chord is completed take no part in the next chord, and their
+ * releases are ignored.
+ *
+ * <p>Each change is classified into one of a few events, and a transition table for the current
+ * state gives the action and the next state. No objects are created while recognizing chords.
+ */
+public final class TimingChordRecognizer implements ChordRecognizer {
+  /**
+   * The value of a window which never expires.
+   */
+  public static final long NO_WINDOW = Long.MAX_VALUE;
+
+  // States
+  private static final int S_IDLE = 0;       // no chord in progress
+  private static final int S_CHORD = 1;      // keys pressed, none released
+  private static final int S_RELEASING = 2;  // at least one key of the chord released
+  private static final int STATES = 3;
+
+  // Events
+  private static final int E_PRESS = 0;            // press of a key which is up
+  private static final int E_PRESS_LATE = 1;       // press after the release window
+  private static final int E_RELEASE = 2;          // release within the press window, others down
+  private static final int E_RELEASE_SETTLED = 3;  // release after the press window, others down
+  private static final int E_RELEASE_LAST = 4;     // release of the last key of the chord
+  private static final int E_RELEASE_STALE = 5;    // release of a key which is not in the chord
+  private static final int E_REPEAT = 6;           // press of a key which is already down
+  private static final int EVENTS = 7;
+
+  // Actions
+  private static final int A_IGNORE = 0;
+  private static final int A_ADD = 1;       // add the key to the chord
+  private static final int A_REMOVE = 2;    // the key is up, the chord continues
+  private static final int A_EMIT = 3;      // the key is up, the chord is complete
+  private static final int A_EMIT_ADD = 4;  // the chord is complete, the key starts the next one
+
+  private static final int[][] __classicTable = {
+    // E_PRESS, E_PRESS_LATE, E_RELEASE, E_RELEASE_SETTLED, E_RELEASE_LAST, E_RELEASE_STALE, E_REPEAT
+    { t(A_ADD, S_CHORD), t(A_ADD, S_CHORD), t(A_IGNORE, S_IDLE), t(A_IGNORE, S_IDLE),
+      t(A_IGNORE, S_IDLE), t(A_IGNORE, S_IDLE), t(A_IGNORE, S_IDLE) },
+    { t(A_ADD, S_CHORD), t(A_ADD, S_CHORD), t(A_REMOVE, S_RELEASING), t(A_REMOVE, S_RELEASING),
+      t(A_EMIT, S_IDLE), t(A_IGNORE, S_CHORD), t(A_IGNORE, S_CHORD) },
+    { t(A_ADD, S_RELEASING), t(A_EMIT_ADD, S_CHORD), t(A_REMOVE, S_RELEASING), t(A_REMOVE, S_RELEASING),
+      t(A_EMIT, S_IDLE), t(A_IGNORE, S_RELEASING), t(A_IGNORE, S_RELEASING) },
+  };
+
+  private final long _pressWindow;
+  private final long _releaseWindow;
+  private final boolean _emitOnFirstRelease;
+  private final int[] _table = new int[STATES * EVENTS];
+
+  private int _state = S_IDLE;
+  private int _down = 0;    // keys of the chord which are down
+  private int _chord = 0;   // keys of the chord
+  private long _lastPress = 0;
+  private long _firstRelease = 0;
+  private long _startNanoTime = 0;
+  private long _chordNanoTime = 0;
+
+  /**
+   * Create a recognizer which behaves as the keyset driver always has.
+   */
+  public TimingChordRecognizer() {
+    this(0, NO_WINDOW, false);
+  }
+
+  /**
+   * @param pressWindow with emitOnFirstRelease, the time after the last press during which a release
+   * does not complete the chord, in microseconds
+   * @param releaseWindow the time after the first release of a chord after which a press starts the
+   * next chord, in microseconds, or NO_WINDOW
+   * @param emitOnFirstRelease true to complete a chord on the first release after the press window
+   */
+  public TimingChordRecognizer(final long pressWindow, final long releaseWindow, final boolean emitOnFirstRelease) {
+    if (pressWindow < 0 || releaseWindow < 0) {
+      throw new IllegalArgumentException("windows must not be negative");
+    }
+    this._pressWindow = pressWindow;
+    this._releaseWindow = releaseWindow;
+    this._emitOnFirstRelease = emitOnFirstRelease;
+    for (int s = 0; s < STATES; ++s) {
+      System.arraycopy(__classicTable[s], 0, this._table, s * EVENTS, EVENTS);
+    }
+    if (emitOnFirstRelease) {
+      this._table[S_CHORD * EVENTS + E_RELEASE_SETTLED] = t(A_EMIT, S_IDLE);
+      this._table[S_RELEASING * EVENTS + E_RELEASE_SETTLED] = t(A_EMIT, S_IDLE);
+    }
+  }
+
+  private static int t(final int action, final int next) {
+    return (action << 8) | next;
+  }
+
+  public long getPressWindow() {
+    return this._pressWindow;
+  }
+
+  public long getReleaseWindow() {
+    return this._releaseWindow;
+  }
+
+  public boolean isEmitOnFirstRelease() {
+    return this._emitOnFirstRelease;
+  }
+
+  public void reset() {
+    this._state = S_IDLE;
+    this._down = 0;
+    this._chord = 0;
+  }
+
+  public long getChordNanoTime() {
+    return this._chordNanoTime;
+  }
+
+  public int keyChanged(final int key, final boolean pressed, final long micros, final long nanoTime) {
+    final int bit = 1 << key;
+    final int event = classify(bit, pressed, micros);
+    final int entry = this._table[this._state * EVENTS + event];
+    final int action = entry >>> 8;
+    final int previous = this._state;
+    this._state = entry & 0xff;
+
+    int emitted = 0;
+    switch (action) {
+    case A_ADD:
+      if (this._chord == 0) {
+        this._startNanoTime = nanoTime;
+      }
+      this._chord |= bit;
+      this._down |= bit;
+      this._lastPress = micros;
+      break;
+    case A_REMOVE:
+      this._down &= ~bit;
+      if (previous == S_CHORD) {
+        this._firstRelease = micros;
+      }
+      break;
+    case A_EMIT:
+      this._down &= ~bit;
+      emitted = emit();
+      break;
+    case A_EMIT_ADD:
+      emitted = emit();
+      this._startNanoTime = nanoTime;
+      this._chord = bit;
+      this._down = bit;
+      this._lastPress = micros;
+      break;
+    default:
+      break;
+    }
+    return emitted;
+  }
+
+  private int classify(final int bit, final boolean pressed, final long micros) {
+    if (pressed) {
+      if ((this._down & bit) != 0) {
+        return E_REPEAT;
+      }
+      if (this._state == S_RELEASING && elapsed(this._firstRelease, micros, this._releaseWindow)) {
+        return E_PRESS_LATE;
+      }
+      return E_PRESS;
+    }
+    if ((this._down & bit) == 0) {
+      return E_RELEASE_STALE;
+    }
+    if ((this._down & ~bit) == 0) {
+      return E_RELEASE_LAST;
+    }
+    if (elapsed(this._lastPress, micros, this._pressWindow)) {
+      return E_RELEASE_SETTLED;
+    }
+    return E_RELEASE;
+  }
+
+  // A timestamp going backwards, as when the joystick clock wraps, counts as within the window
+  private static boolean elapsed(final long since, final long now, final long window) {
+    return window != NO_WINDOW && now - since >= window;
+  }
+
+  // Complete the chord; keys still down take no part in the next one
+  private int emit() {
+    final int chord = this._chord;
+    this._chordNanoTime = this._startNanoTime;
+    this._chord = 0;
+    this._down = 0;
+    return chord;
+  }
+}
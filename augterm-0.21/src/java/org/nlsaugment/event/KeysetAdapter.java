@@ -7,8 +7,9 @@
  */
 package org.nlsaugment.event;
 
-public abstract class KeysetAdapter implements KeysetListener {
+public abstract class KeysetAdapter implements KeysetPointerListener {
   public void keyPressed(KeysetEvent event) {}
   public void keyReleased(KeysetEvent event) {}
   public void keyTyped(KeysetEvent event) {}
+  public void pointerMoved(KeysetEvent event) {}
 }
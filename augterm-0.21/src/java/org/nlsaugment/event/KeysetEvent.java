@@ -16,9 +16,23 @@ public final class KeysetEvent {
   public static final int KEY3 = 3;
   public static final int KEY4 = 4;
 
+  /**
+   * Key codes of mouse buttons on a device which has them in addition to the keyset, such as a MIDI
+   * keyboard. Their presses and releases take no part in chords.
+   */
+  public static final int MOUSE_LEFT = 5;
+  public static final int MOUSE_MIDDLE = 6;
+  public static final int MOUSE_RIGHT = 7;
+
   public static final int KEYSET_RELEASED = 0;
   public static final int KEYSET_PRESSED = 1;
   public static final int KEYSET_TYPED = 2;
+  public static final int KEYSET_MOVED = 3;
+
+  /**
+   * The greatest deflection of a pointer stick along either axis in a KEYSET_MOVED event.
+   */
+  public static final int POINTER_MAX = 127;
 
   public static final int VK_UNDEFINED = 0;
   public static final char CHAR_UNDEFINED = (char) 65535;
@@ -27,11 +41,13 @@ public final class KeysetEvent {
   private final long _when;
   private final char _keyChar;
   private final int _keyCode;
+  private final long _nanoTime;
+  private final int _chord;
 
   // TODO: these should go in a properties file
-  private static final String __keysetError1 = "type is not KEYSET_RELEASED, KEYSET_PRESSED, or KEYSET_TYPED.";
+  private static final String __keysetError1 = "type is not KEYSET_RELEASED, KEYSET_PRESSED, KEYSET_TYPED, or KEYSET_MOVED.";
   private static final String __keysetError2 = "type is KEY_TYPED and keyChar is CHAR_UNDEFINED; or if type is KEY_TYPED and keyCode is not VK_UNDEFINED.";
-  private static final String __keysetError3 = "type is KEYSET_PRESSED or KEYSET_RELEASED and keyChar is not CHAR_UNDEFINED.";
+  private static final String __keysetError3 = "type is KEYSET_PRESSED, KEYSET_RELEASED or KEYSET_MOVED and keyChar is not CHAR_UNDEFINED.";
 
   /**
    * @param type an integer identifying the type of event. Valid types are KEYSET_RELEASED, KEYSET_PRESSED, or KEYSET_TYPED.
@@ -43,21 +59,54 @@ public final class KeysetEvent {
    * @throws IllegalArgumentException if type is KEYSET_PRESSED or KEYSET_RELEASED and keyChar is not CHAR_UNDEFINED.
    */
   public KeysetEvent(final int type, final long when, final int keyCode, final char keyChar) throws IllegalArgumentException {
+    this(type, when, keyCode, keyChar, System.nanoTime());
+  }
+
+  /**
+   * @param type an integer identifying the type of event. Valid types are KEYSET_RELEASED, KEYSET_PRESSED, or KEYSET_TYPED.
+   * @param when a long integer that specifies the time the event occurred.
+   * @param keyCode the integer code for an actual key, or VK_UNDEFINED (for a key-typed event)
+   * @param keyChar the Unicode character generated by this event, or CHAR_UNDEFINED (for key-pressed and key-released events which do not map to a valid Unicode character).
+   * @param nanoTime the System.nanoTime() at which the input producing this event was received. For a key-typed event,
+   * this is the time the first key of the chord was pressed.
+   * @throws IllegalArgumentException if type is not KEYSET_RELEASED, KEYSET_PRESSED, or KEYSET_TYPED.
+   * @throws IllegalArgumentException if type is KEY_TYPED and keyChar is CHAR_UNDEFINED; or if type is KEY_TYPED and keyCode is not VK_UNDEFINED.
+   * @throws IllegalArgumentException if type is KEYSET_PRESSED or KEYSET_RELEASED and keyChar is not CHAR_UNDEFINED.
+   */
+  public KeysetEvent(final int type, final long when, final int keyCode, final char keyChar, final long nanoTime) throws IllegalArgumentException {
+    this(type, when, keyCode, keyChar, nanoTime, 0);
+  }
+
+  /**
+   * @param type an integer identifying the type of event. Valid types are KEYSET_RELEASED, KEYSET_PRESSED, or KEYSET_TYPED.
+   * @param when a long integer that specifies the time the event occurred.
+   * @param keyCode the integer code for an actual key, or VK_UNDEFINED (for a key-typed event)
+   * @param keyChar the Unicode character generated by this event, or CHAR_UNDEFINED (for key-pressed and key-released events which do not map to a valid Unicode character).
+   * @param nanoTime the System.nanoTime() at which the input producing this event was received. For a key-typed event,
+   * this is the time the first key of the chord was pressed.
+   * @param chord for a key-typed event, the keys of the chord, with KEY0 in bit 0; otherwise 0.
+   * @throws IllegalArgumentException if type is not KEYSET_RELEASED, KEYSET_PRESSED, KEYSET_TYPED, or KEYSET_MOVED.
+   * @throws IllegalArgumentException if type is KEY_TYPED and keyChar is CHAR_UNDEFINED; or if type is KEY_TYPED and keyCode is not VK_UNDEFINED.
+   * @throws IllegalArgumentException if type is KEYSET_PRESSED, KEYSET_RELEASED or KEYSET_MOVED and keyChar is not CHAR_UNDEFINED.
+   */
+  public KeysetEvent(final int type, final long when, final int keyCode, final char keyChar, final long nanoTime, final int chord) throws IllegalArgumentException {
     super();
-    if (type != KEYSET_RELEASED && type != KEYSET_PRESSED && type != KEYSET_TYPED) {
+    if (type != KEYSET_RELEASED && type != KEYSET_PRESSED && type != KEYSET_TYPED && type != KEYSET_MOVED) {
       throw new IllegalArgumentException(__keysetError1);
     }
 
     if ((type == KEYSET_TYPED && keyChar == CHAR_UNDEFINED) || (type == KEYSET_TYPED && keyCode != VK_UNDEFINED)) {
       throw new IllegalArgumentException(__keysetError2);
     }
-    if ((type == KEYSET_PRESSED || type == KEYSET_RELEASED) && (keyChar != CHAR_UNDEFINED)) {
+    if ((type == KEYSET_PRESSED || type == KEYSET_RELEASED || type == KEYSET_MOVED) && (keyChar != CHAR_UNDEFINED)) {
       throw new IllegalArgumentException(__keysetError3);
     }
     this._type = type;
     this._when = when;
     this._keyChar = keyChar;
     this._keyCode = keyCode;
+    this._nanoTime = nanoTime;
+    this._chord = chord;
   }
 
   public int getType() {
@@ -75,4 +124,45 @@ public final class KeysetEvent {
   public int getKeyCode() {
     return this._keyCode;
   }
+
+  /**
+   * Return the System.nanoTime() at which the input producing this event was received.
+   * This is on a different clock than getWhen(), and is meant for measuring latency.
+   */
+  public long getNanoTime() {
+    return this._nanoTime;
+  }
+
+  /**
+   * Return the keys of the chord of a key-typed event, with KEY0 in bit 0, so that the chord can be
+   * translated by a keymap other than the one which produced getKeyChar(). Returns 0 for other events.
+   */
+  public int getChord() {
+    return this._chord;
+  }
+
+  /**
+   * Return the key code of a KEYSET_MOVED event for a deflection of the pointer stick.
+   * @param x the deflection to the right, from -POINTER_MAX to POINTER_MAX
+   * @param y the deflection downwards, from -POINTER_MAX to POINTER_MAX
+   */
+  public static int pointerCode(final int x, final int y) {
+    return (x << 16) | (y & 0xffff);
+  }
+
+  /**
+   * Return the deflection of the pointer stick to the right in a KEYSET_MOVED event, from
+   * -POINTER_MAX to POINTER_MAX, with 0 when it is centered.
+   */
+  public int getPointerX() {
+    return this._keyCode >> 16;
+  }
+
+  /**
+   * Return the deflection of the pointer stick downwards in a KEYSET_MOVED event, from
+   * -POINTER_MAX to POINTER_MAX, with 0 when it is centered.
+   */
+  public int getPointerY() {
+    return (short) this._keyCode;
+  }
 }
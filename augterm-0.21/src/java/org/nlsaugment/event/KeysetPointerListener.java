@@ -0,0 +1,22 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.event;
+
+/**
+ * A KeysetListener which is also told how a pointer stick on the device is deflected, for a device
+ * which emulates a mouse.
+ */
+public interface KeysetPointerListener extends KeysetListener {
+
+  /**
+   * Method fires when the deflection of the pointer stick changes. It is not repeated while the stick
+   * is held still, so the listener moves the pointer at the rate it chooses until the stick is
+   * centered again.
+   */
+  public void pointerMoved(KeysetEvent event);
+}
@@ -50,6 +50,9 @@ public class TelnetCommandEvent extends TelnetEvent implements TelnetConstants {
 	public String toString() {
 		String result;
 		switch (command) {
+		case EOR:
+			result = "EOR";
+			break;
 		case SE:
 			result = "SE";
 			break;
@@ -50,6 +50,10 @@ public interface TelnetConstants {
 	public final static int OPTION_AUTHENTICATION		= 37;
 	public final static int OPTION_NEW_ENVIRON			= 39;
 	
+	/**
+	 * End of record, sent when the END-OF-RECORD option is enabled.
+	 */
+	public final static byte EOR	= (byte)239;
 	/**
 	 * End subnegotiation.
 	 */
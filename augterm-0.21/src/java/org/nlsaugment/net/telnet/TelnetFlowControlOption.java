@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.net.telnet;
+
+/**
+ * The Telnet TOGGLE-FLOW-CONTROL option, as defined in RFC 1372.  The local
+ * side performs the option by agreeing that the host may turn the use of
+ * XON and XOFF on and off with a subnegotiation.  While flow control is on,
+ * the terminal may send XOFF to stop the host's output, and XON to restart
+ * it.  Flow control is on when the option is enabled.
+ */
+public class TelnetFlowControlOption extends TelnetOption {
+
+	/**
+	 * Subnegotiation command: the host ignores XON and XOFF.
+	 */
+	public final static int OFF = 0;
+	/**
+	 * Subnegotiation command: the host stops and restarts output for XOFF
+	 * and XON.
+	 */
+	public final static int ON = 1;
+	/**
+	 * Subnegotiation command: any character restarts stopped output.
+	 */
+	public final static int RESTART_ANY = 2;
+	/**
+	 * Subnegotiation command: only XON restarts stopped output.
+	 */
+	public final static int RESTART_XON = 3;
+
+	/**
+	 * The character which stops output.
+	 */
+	public final static byte XOFF = 023;
+	/**
+	 * The character which restarts output.
+	 */
+	public final static byte XON = 021;
+
+	private boolean on = true;
+
+	public TelnetFlowControlOption() {
+		super(TelnetConstants.OPTION_TOGGLE_FLOW_CONTROL, "TOGGLE-FLOW-CONTROL",
+				true, false);
+	}
+
+	/**
+	 * Return <code>true</code> if the option is enabled and the host has not
+	 * turned flow control off.
+	 *
+	 * @return	<code>true</code> if XON and XOFF control the host's output.
+	 */
+	public synchronized boolean isFlowControlOn() {
+		return isEnabledLocally() && on;
+	}
+
+	@Override
+	protected synchronized int receivedDo() {
+		int action = super.receivedDo();
+		if (isEnabledLocally()) {
+			on = true;
+		}
+		return action;
+	}
+
+	@Override
+	protected synchronized byte[] receivedSubnegotiation(byte[] data, int offset, int length) {
+		if (length < 1) {
+			return null;
+		}
+		switch (data[offset]) {
+		case OFF:
+			on = false;
+			break;
+		case ON:
+			on = true;
+			break;
+		default:
+			// XON is always sent to restart output, so either restart
+			// mode will do
+			break;
+		}
+		return null;
+	}
+}
@@ -25,7 +25,10 @@ import java.io.InputStream;
 
 public class TelnetInputStream extends FilterInputStream implements TelnetConstants {
 	
-	private enum RcvState {NORMAL, SEENIAC, SUBNEG, SEENWILL, SEENWONT, SEENDO, SEENDONT};
+	private enum RcvState {NORMAL, SEENIAC, SUBNEG, SUBNEGIAC, SEENWILL, SEENWONT, SEENDO, SEENDONT};
+
+	// Longest subnegotiation kept; any further parameters are discarded
+	private static final int MAX_SUBNEG = 256;
 	
 	private final TelnetSocket socket;
 	private final BufferedInputStream in;
@@ -47,9 +50,21 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 	
 	private boolean inbandCommands = false;
 	
+	// Latency probe waiting for the first data byte after an AYT
+	private volatile TelnetLatencyProbe dataProbe = null;
+	
 	// Current receive protocol state
 	private RcvState rcvState = RcvState.NORMAL;
 
+	// Data is being discarded after a SYNCH was sent, until the data mark,
+	// or until the host has answered this many TIMING-MARK requests
+	private volatile boolean discarding = false;
+	private int flushMarks = 0;
+
+	// The option code and parameters of the subnegotiation being received
+	private final byte[] subneg = new byte[MAX_SUBNEG];
+	private int subnegLen = 0;
+
 	
 	public TelnetInputStream(TelnetSocket socket, BufferedInputStream in) throws IOException {
 		super(in);
@@ -116,8 +131,11 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 			}
 			
 			// Handle the common case
-			if ((rcvState == RcvState.NORMAL) && ((byte)inval != IAC))
+			if ((rcvState == RcvState.NORMAL) && ((byte)inval != IAC)) {
+				if (discarding)
+					continue;
 				break;
+			}
 			
 			// Just return EOF if we hit it
 			if (inval == -1)
@@ -125,11 +143,14 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 			
 			// Otherwise run the byte through the protocol state machine
 			inval = process((byte)inval);
-			if (inval != -2)
+			if ((inval != -2) && !discarding)
 				break;
 			
 			// Loop if the state machine returns -2
 		}
+		if ((dataProbe != null) && (inval >= 0)) {
+			dataReceived();
+		}
 		return inval;
 	}
 
@@ -200,13 +221,15 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 				// Check common case
 				if ((rcvState == RcvState.NORMAL) && (inb != IAC)) {
 					// Copy byte to user buffer
-					b[off++] = inb;
-					++count;
+					if (!discarding) {
+						b[off++] = inb;
+						++count;
+					}
 				} else {
 					try {
 						// Run the byte through the protocol state machine
 						int inval = process(inb);
-						if (inval != -2) {
+						if ((inval != -2) && !discarding) {
 							b[off++] = (byte)inval;
 							++count;
 						}
@@ -224,6 +247,9 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 			}
 		}
 		
+		if ((dataProbe != null) && (count > 0)) {
+			dataReceived();
+		}
 		return count;
 	}
 
@@ -267,6 +293,54 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 		inbandCommands = enable;
 	}
 	
+	/**
+	 * Arrange for a latency probe to be notified when the next data byte is
+	 * received.
+	 * 
+	 * @param probe the probe to be notified.
+	 */
+	void awaitData(TelnetLatencyProbe probe) {
+		dataProbe = probe;
+	}
+	
+	/**
+	 * Discard received data, but not Telnet commands, until the next data
+	 * mark, or until the host has answered a number of TIMING-MARK requests.
+	 * This is called when a SYNCH is sent: the data which the host sent
+	 * before it received the SYNCH is not displayed.
+	 * 
+	 * @param marks	the number of TIMING-MARK answers to wait for.
+	 */
+	synchronized void discardUntilMark(int marks) {
+		flushMarks = marks;
+		discarding = true;
+	}
+
+	/**
+	 * Return <code>true</code> if received data is being discarded after a
+	 * SYNCH was sent.
+	 * 
+	 * @return	<code>true</code> if data is being discarded.
+	 */
+	public boolean isDiscarding() {
+		return discarding;
+	}
+
+	private synchronized void markReceived(boolean dataMark) {
+		if (dataMark || ((flushMarks > 0) && (--flushMarks == 0))) {
+			flushMarks = 0;
+			discarding = false;
+		}
+	}
+
+	private void dataReceived() {
+		TelnetLatencyProbe probe = dataProbe;
+		dataProbe = null;
+		if (probe != null) {
+			probe.dataReceived();
+		}
+	}
+	
 	// Return -2 if b is part of a Telnet command
 	private int process(byte b) throws TelnetEventException, IOException {
 		int result = b & 0xff;
@@ -289,7 +363,12 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 			case EC:
 			case EL:
 			case GA:
+			case EOR:
 				rcvState = RcvState.NORMAL;
+				if (b == DM) {
+					// The data mark of a SYNCH
+					markReceived(true);
+				}
 				if (!inbandCommands || (b == SE)) {
 					// Deliver command via exception
 					TelnetCommandEvent tce = new TelnetCommandEvent(b);
@@ -299,6 +378,7 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 				break;
 			case SB:
 				rcvState = RcvState.SUBNEG;
+				subnegLen = 0;
 				result = -2;
 				break;
 			case WILL:
@@ -322,12 +402,45 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 				rcvState = RcvState.NORMAL;
 				break;
 			default:
+				// Unknown command: ignore it
+				rcvState = RcvState.NORMAL;
+				result = -2;
 				break;
 			}
 			break;
 		case SUBNEG:
+			// Collect the option code and parameters up to IAC SE
+			if (b == IAC) {
+				rcvState = RcvState.SUBNEGIAC;
+			} else if (subnegLen < subneg.length) {
+				subneg[subnegLen++] = b;
+			}
+			result = -2;
+			break;
+		case SUBNEGIAC:
+			result = -2;
+			if (b == IAC) {
+				// Quoted IAC in the parameters
+				rcvState = RcvState.SUBNEG;
+				if (subnegLen < subneg.length) {
+					subneg[subnegLen++] = b;
+				}
+				break;
+			}
+			// IAC SE ends the subnegotiation.  Anything else is a protocol
+			// error, and the subnegotiation is discarded.
 			rcvState = RcvState.NORMAL;
-			TelnetOption opt = socket.getOption(result);
+			if ((b != SE) || (subnegLen == 0)) {
+				break;
+			}
+			TelnetOption opt = socket.getOption(subneg[0] & 0xff);
+			if (opt == null) {
+				break;
+			}
+			byte[] reply = opt.receivedSubnegotiation(subneg, 1, subnegLen - 1);
+			if (reply != null) {
+				socket.sendSubnegotiation(opt.getOptionCode(), reply);
+			}
 			TelnetOptionEvent toe = new TelnetOptionEvent(opt, true, true);
 			toe.throwEvent();
 			break;
@@ -335,9 +448,21 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 		case SEENWONT:
 		case SEENDO:
 		case SEENDONT:
+			if ((result == OPTION_TIMING_MARK)
+					&& ((rcvState == RcvState.SEENWILL) || (rcvState == RcvState.SEENWONT))) {
+				markReceived(false);
+				// Answer to a latency probe?  If so, it is not negotiated.
+				TelnetLatencyProbe probe = socket.getLatencyProbe();
+				if ((probe != null) && probe.timingMarkReceived()) {
+					rcvState = RcvState.NORMAL;
+					return -2;
+				}
+			}
 			byte[] outmsg = null;
 			int action = TelnetOption.IGNORE;
 			opt = socket.getOption(result);
+			TelnetOption negotiated = opt;
+			boolean wasEnabled = (opt != null) && opt.isEnabledLocally();
 			if (opt == null) {
 				if (rcvState == RcvState.SEENWILL) {
 					action = TelnetOption.SEND_DONT;
@@ -385,6 +510,18 @@ public class TelnetInputStream extends FilterInputStream implements TelnetConsta
 				socket.getOutputStream().write(outmsg);
 				socket.getOutputStream().flush();
 			}
+			if ((negotiated instanceof TelnetWindowSizeOption) && !wasEnabled
+					&& negotiated.isEnabledLocally()) {
+				// NAWS has just been enabled: report the size right away
+				socket.sendWindowSize((TelnetWindowSizeOption) negotiated);
+			}
+			if ((negotiated instanceof TelnetLinemodeOption) && !wasEnabled
+					&& negotiated.isEnabledLocally()) {
+				// LINEMODE has just been enabled: tell the host which special
+				// characters the terminal edits with
+				socket.sendSubnegotiation(negotiated.getOptionCode(),
+						((TelnetLinemodeOption) negotiated).getSlcTable());
+			}
 			rcvState = RcvState.NORMAL;
 			if (opt != null) {
 				toe = new TelnetOptionEvent(opt, false, false);
@@ -0,0 +1,246 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.net.telnet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This class measures the round trip time of a Telnet connection while it is
+ * in use.  A background thread periodically sends 'IAC DO TIMING-MARK'.  The
+ * host must answer with either WILL or WONT TIMING-MARK, and either answer
+ * completes a round trip.  The answer is recognized by the
+ * <code>TelnetInputStream</code> protocol state machine and is not delivered
+ * as data or as a <code>TelnetOptionEvent</code>.
+ * <p>
+ * If the host never answers TIMING-MARK, the probe falls back to sending
+ * 'IAC AYT'.  The reply to AYT is ordinary data in a form chosen by the host,
+ * so it cannot be removed from the data stream; the round trip is taken to
+ * end when the first data byte after the AYT arrives.
+ * <p>
+ * The round trip estimate is smoothed as described in RFC 6298.
+ *
+ * @see org.nlsaugment.net.telnet.TelnetSocket#startLatencyProbe(long)
+ */
+public class TelnetLatencyProbe implements Runnable, TelnetConstants {
+
+	/**
+	 * Probing with TIMING-MARK.
+	 */
+	public final static int MODE_TIMING_MARK = 0;
+	/**
+	 * Probing with AYT, because the host does not answer TIMING-MARK.
+	 */
+	public final static int MODE_AYT = 1;
+
+	// A probe without an answer after this long is considered lost
+	private final static long PROBE_TIMEOUT = 10L * 1000 * 1000 * 1000;
+
+	// Number of lost TIMING-MARK probes before falling back to AYT
+	private final static int MAX_LOST_TIMING_MARKS = 2;
+
+	private final TelnetSocket socket;
+	private final long interval;
+	private Thread thread = null;
+	private volatile boolean running = false;
+
+	private int mode = MODE_TIMING_MARK;
+	private long probeSent = 0;
+	private int lostTimingMarks = 0;
+
+	private long lastRtt = 0;
+	private long smoothedRtt = 0;
+	private long rttVariance = 0;
+	private long samples = 0;
+
+	/**
+	 * Constructor for a latency probe.
+	 *
+	 * @param socket	the connection to be probed.
+	 * @param interval	the time between probes, in milliseconds.
+	 */
+	public TelnetLatencyProbe(TelnetSocket socket, long interval) {
+		super();
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive: " + interval);
+		}
+		this.socket = socket;
+		this.interval = interval;
+	}
+
+	/**
+	 * Start sending probes.  Does nothing if the probe is already running.
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			running = true;
+			thread = new Thread(this, "Telnet latency probe");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop sending probes.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException iex) {
+				break;
+			}
+			try {
+				sendProbe();
+			} catch (IOException iox) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Return the probe mode.
+	 *
+	 * @return	<code>MODE_TIMING_MARK</code> or <code>MODE_AYT</code>.
+	 */
+	public synchronized int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Return the smoothed round trip time.
+	 *
+	 * @return	the smoothed round trip time in microseconds, or -1 if no
+	 * 			round trip has been measured yet.
+	 */
+	public synchronized long getSmoothedRtt() {
+		return (samples == 0) ? -1 : smoothedRtt / 1000;
+	}
+
+	/**
+	 * Return the smoothed mean deviation of the round trip time.
+	 *
+	 * @return	the round trip time variation in microseconds.
+	 */
+	public synchronized long getRttVariance() {
+		return rttVariance / 1000;
+	}
+
+	/**
+	 * Return the most recently measured round trip time.
+	 *
+	 * @return	the last round trip time in microseconds, or -1 if no round trip
+	 * 			has been measured yet.
+	 */
+	public synchronized long getLastRtt() {
+		return (samples == 0) ? -1 : lastRtt / 1000;
+	}
+
+	/**
+	 * Return the number of round trips measured.
+	 *
+	 * @return	the number of samples.
+	 */
+	public synchronized long getSampleCount() {
+		return samples;
+	}
+
+	private void sendProbe() throws IOException {
+		byte[] msg;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (probeSent != 0) {
+				if ((now - probeSent) < PROBE_TIMEOUT) {
+					// Still waiting for the last one
+					return;
+				}
+				probeSent = 0;
+				if ((mode == MODE_TIMING_MARK)
+						&& (++lostTimingMarks >= MAX_LOST_TIMING_MARKS)) {
+					mode = MODE_AYT;
+				}
+			}
+			if (mode == MODE_TIMING_MARK) {
+				byte[] domsg = { IAC, DO, (byte)OPTION_TIMING_MARK };
+				msg = domsg;
+			} else {
+				byte[] aytmsg = { IAC, AYT };
+				msg = aytmsg;
+				socket.getInputStream().awaitData(this);
+			}
+			probeSent = now;
+		}
+		OutputStream out = socket.getOutputStream();
+		out.write(msg);
+		out.flush();
+	}
+
+	/**
+	 * Return <code>true</code> if a TIMING-MARK request has been sent and not
+	 * yet answered.
+	 */
+	synchronized boolean isTimingMarkPending() {
+		return (mode == MODE_TIMING_MARK) && (probeSent != 0);
+	}
+
+	/**
+	 * Called by the input stream when WILL or WONT TIMING-MARK is received.
+	 *
+	 * @return	<code>true</code> if the reply answers an outstanding probe, and
+	 * 			should be consumed.
+	 */
+	synchronized boolean timingMarkReceived() {
+		if ((mode != MODE_TIMING_MARK) || (probeSent == 0)) {
+			return false;
+		}
+		lostTimingMarks = 0;
+		sample(System.nanoTime() - probeSent);
+		return true;
+	}
+
+	/**
+	 * Called by the input stream when the first data byte after an AYT is
+	 * received.
+	 */
+	synchronized void dataReceived() {
+		if ((mode == MODE_AYT) && (probeSent != 0)) {
+			sample(System.nanoTime() - probeSent);
+		}
+	}
+
+	private void sample(long rtt) {
+		probeSent = 0;
+		lastRtt = rtt;
+		if (samples == 0) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		} else {
+			rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4;
+			smoothedRtt += (rtt - smoothedRtt) / 8;
+		}
+		++samples;
+	}
+}
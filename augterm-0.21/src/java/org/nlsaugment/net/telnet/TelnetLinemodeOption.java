@@ -0,0 +1,377 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.net.telnet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * The Telnet LINEMODE option, as defined in RFC 1184.  The local side
+ * performs the option by editing lines itself and sending each line to the
+ * host when it is finished, instead of sending each key as it is typed.  The
+ * host controls the editing with three subnegotiations:
+ * <ul>
+ * <li>MODE turns local editing (<code>MODE_EDIT</code>) and the trapping of
+ * signal characters (<code>MODE_TRAPSIG</code>) on and off.</li>
+ * <li>FORWARDMASK names the characters which send the line being edited.</li>
+ * <li>SLC sets the special characters which erase a character, a word or
+ * the line, and those which interrupt the host or abort its output.</li>
+ * </ul>
+ * This class only negotiates and records the settings; the editing is done
+ * by the terminal.  Of the special characters, only those the terminal can
+ * act on are supported.
+ */
+public class TelnetLinemodeOption extends TelnetOption {
+
+	/**
+	 * Subnegotiation: set the mode.
+	 */
+	public final static int LM_MODE = 1;
+	/**
+	 * Subnegotiation: set the characters which forward the line.
+	 */
+	public final static int LM_FORWARDMASK = 2;
+	/**
+	 * Subnegotiation: set special characters.
+	 */
+	public final static int LM_SLC = 3;
+
+	/**
+	 * Mode bit: the terminal edits lines locally.
+	 */
+	public final static int MODE_EDIT = 1;
+	/**
+	 * Mode bit: the terminal sends Telnet commands for signal characters.
+	 */
+	public final static int MODE_TRAPSIG = 2;
+	/**
+	 * Mode bit: the mode is an acknowledgement.
+	 */
+	public final static int MODE_ACK = 4;
+	/**
+	 * Mode bit: the terminal expands tabs when it echoes them.
+	 */
+	public final static int MODE_SOFT_TAB = 8;
+	/**
+	 * Mode bit: the terminal echoes control characters literally.
+	 */
+	public final static int MODE_LIT_ECHO = 16;
+
+	// The modes which the terminal can perform
+	private final static int MODE_SUPPORTED = MODE_EDIT | MODE_TRAPSIG;
+
+	public final static int SLC_SYNCH = 1;
+	public final static int SLC_BRK = 2;
+	public final static int SLC_IP = 3;
+	public final static int SLC_AO = 4;
+	public final static int SLC_AYT = 5;
+	public final static int SLC_EOR = 6;
+	public final static int SLC_ABORT = 7;
+	public final static int SLC_EOF = 8;
+	public final static int SLC_SUSP = 9;
+	public final static int SLC_EC = 10;
+	public final static int SLC_EL = 11;
+	public final static int SLC_EW = 12;
+	public final static int SLC_RP = 13;
+	public final static int SLC_LNEXT = 14;
+	public final static int SLC_XON = 15;
+	public final static int SLC_XOFF = 16;
+	public final static int SLC_FORW1 = 17;
+	public final static int SLC_FORW2 = 18;
+	private final static int NSLC = 18;
+
+	/**
+	 * Special character level: the function is not supported.
+	 */
+	public final static int SLC_NOSUPPORT = 0;
+	/**
+	 * Special character level: the character may not be changed.
+	 */
+	public final static int SLC_CANTCHANGE = 1;
+	/**
+	 * Special character level: the character is set to a value.
+	 */
+	public final static int SLC_VALUE = 2;
+	/**
+	 * Special character level: the character is the default.
+	 */
+	public final static int SLC_DEFAULT = 3;
+	private final static int SLC_LEVELBITS = 3;
+	/**
+	 * Special character flag: the triplet is an acknowledgement.
+	 */
+	public final static int SLC_ACK = 0200;
+	/**
+	 * Special character flag: the input is flushed with the character.
+	 */
+	public final static int SLC_FLUSHIN = 0100;
+	/**
+	 * Special character flag: the output is flushed with the character.
+	 */
+	public final static int SLC_FLUSHOUT = 040;
+
+	// The value of a disabled special character
+	private final static int VDISABLE = 0377;
+
+	// The default level and value of each special character, indexed by
+	// function.  A function with a level of NOSUPPORT by default may still
+	// be given a value by the host, if it is one the terminal acts on.
+	private final static int[] DEFAULT_FLAGS = new int[NSLC + 1];
+	private final static int[] DEFAULT_VALUE = new int[NSLC + 1];
+	private final static boolean[] SUPPORTED = new boolean[NSLC + 1];
+
+	static {
+		defaultSlc(SLC_IP, SLC_VALUE | SLC_FLUSHIN | SLC_FLUSHOUT, 003);
+		defaultSlc(SLC_AO, SLC_VALUE | SLC_FLUSHOUT, 017);
+		defaultSlc(SLC_EC, SLC_VALUE, 010);
+		defaultSlc(SLC_EL, SLC_VALUE, 025);
+		defaultSlc(SLC_EW, SLC_VALUE, 027);
+		defaultSlc(SLC_LNEXT, SLC_VALUE, 026);
+		defaultSlc(SLC_FORW1, SLC_NOSUPPORT, 0);
+		defaultSlc(SLC_FORW2, SLC_NOSUPPORT, 0);
+	}
+
+	private static void defaultSlc(int function, int flags, int value) {
+		DEFAULT_FLAGS[function] = flags;
+		DEFAULT_VALUE[function] = value;
+		SUPPORTED[function] = true;
+	}
+
+	private int mode = 0;
+	private byte[] forwardMask = null;
+	private final int[] slcFlags = new int[NSLC + 1];
+	private final int[] slcValue = new int[NSLC + 1];
+
+	public TelnetLinemodeOption() {
+		super(TelnetConstants.OPTION_LINEMODE, "LINEMODE", true, false);
+		resetSlc();
+	}
+
+	/**
+	 * Return <code>true</code> if the option is enabled and the host has
+	 * asked the terminal to edit lines.
+	 *
+	 * @return	<code>true</code> if lines are edited locally.
+	 */
+	public synchronized boolean isEditing() {
+		return isEnabledLocally() && ((mode & MODE_EDIT) != 0);
+	}
+
+	/**
+	 * Return <code>true</code> if the option is enabled and the host has
+	 * asked the terminal to send Telnet commands for signal characters.
+	 *
+	 * @return	<code>true</code> if signals are trapped.
+	 */
+	public synchronized boolean isTrappingSignals() {
+		return isEnabledLocally() && ((mode & MODE_TRAPSIG) != 0);
+	}
+
+	/**
+	 * Return the character set for a special function.
+	 *
+	 * @param function	the function, <code>SLC_SYNCH</code> to
+	 * 					<code>SLC_FORW2</code>.
+	 * @return	the character, or -1 if the function has none.
+	 */
+	public synchronized int getSpecialChar(int function) {
+		if ((function < 1) || (function > NSLC)
+				|| ((slcFlags[function] & SLC_LEVELBITS) == SLC_NOSUPPORT)
+				|| (slcValue[function] == VDISABLE)) {
+			return -1;
+		}
+		return slcValue[function];
+	}
+
+	/**
+	 * Return the special function of a character.
+	 *
+	 * @param ch	the character.
+	 * @return	the function, or 0 if the character is not special.
+	 */
+	public synchronized int getFunction(int ch) {
+		for (int i = 1; i <= NSLC; ++i) {
+			if ((slcValue[i] == ch) && (getSpecialChar(i) == ch)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Return <code>true</code> if the host has named a character in its
+	 * forward mask.
+	 *
+	 * @param ch	the character.
+	 * @return	<code>true</code> if the character forwards the line.
+	 */
+	public synchronized boolean isForwardChar(int ch) {
+		if ((forwardMask == null) || (ch < 0) || ((ch >> 3) >= forwardMask.length)) {
+			return false;
+		}
+		return (forwardMask[ch >> 3] & (0200 >> (ch & 7))) != 0;
+	}
+
+	/**
+	 * Return the parameters of the subnegotiation which reports the current
+	 * special characters: SLC, followed by a triplet of function, flags and
+	 * value for each function.
+	 *
+	 * @return	the parameter bytes, not yet quoted for IAC.
+	 */
+	public synchronized byte[] getSlcTable() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(LM_SLC);
+		for (int i = 1; i <= NSLC; ++i) {
+			putSlc(out, i, slcFlags[i], slcValue[i]);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	protected synchronized int receivedDo() {
+		boolean wasEnabled = isEnabledLocally();
+		int action = super.receivedDo();
+		if (!wasEnabled && isEnabledLocally()) {
+			mode = 0;
+			forwardMask = null;
+			resetSlc();
+		}
+		return action;
+	}
+
+	@Override
+	protected synchronized byte[] receivedSubnegotiation(byte[] data, int offset, int length) {
+		if (length < 1) {
+			return null;
+		}
+		int end = offset + length;
+		switch (data[offset]) {
+		case LM_MODE:
+			return (length < 2) ? null : receivedMode(data[offset + 1] & 0xff);
+		case LM_SLC:
+			return receivedSlc(data, offset + 1, end);
+		case TelnetConstants.DO:
+		case TelnetConstants.DONT:
+		case TelnetConstants.WILL:
+		case TelnetConstants.WONT:
+			if ((length < 2) || (data[offset + 1] != LM_FORWARDMASK)) {
+				return null;
+			}
+			return receivedForwardMask(data[offset], data, offset + 2, end);
+		default:
+			return null;
+		}
+	}
+
+	// The host has set the mode.  A mode without MODE_ACK is answered with
+	// the part of it which the terminal performs, acknowledged if that is all
+	// of it; an acknowledgement is not answered.
+	private byte[] receivedMode(int newMode) {
+		if ((newMode & MODE_ACK) != 0) {
+			mode = newMode & MODE_SUPPORTED;
+			return null;
+		}
+		int supported = newMode & MODE_SUPPORTED;
+		if ((supported == newMode) && (supported == mode)) {
+			return null;
+		}
+		mode = supported;
+		byte[] reply = { LM_MODE,
+				(byte) ((supported == newMode) ? (supported | MODE_ACK) : supported) };
+		return reply;
+	}
+
+	// The host has sent DO FORWARDMASK with the mask, or DONT FORWARDMASK.
+	// It may not ask the terminal to send it a mask.
+	private byte[] receivedForwardMask(byte command, byte[] data, int offset, int end) {
+		byte answer;
+		switch (command) {
+		case TelnetConstants.DO:
+			forwardMask = Arrays.copyOfRange(data, offset, end);
+			answer = TelnetConstants.WILL;
+			break;
+		case TelnetConstants.DONT:
+			if (forwardMask == null) {
+				return null;
+			}
+			forwardMask = null;
+			answer = TelnetConstants.WONT;
+			break;
+		case TelnetConstants.WILL:
+			answer = TelnetConstants.DONT;
+			break;
+		default:
+			return null;
+		}
+		byte[] reply = { answer, LM_FORWARDMASK };
+		return reply;
+	}
+
+	// The host has sent special character triplets.  Each one that changes
+	// a character is answered: acknowledged if the terminal accepts it, or
+	// with the terminal's own setting if not.
+	private byte[] receivedSlc(byte[] data, int offset, int end) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(LM_SLC);
+		for (int i = offset; i + 2 < end; i += 3) {
+			int function = data[i] & 0xff;
+			int flags = data[i + 1] & 0xff;
+			int value = data[i + 2] & 0xff;
+			int level = flags & SLC_LEVELBITS;
+			if (function == 0) {
+				// A request for the whole table
+				if (level == SLC_DEFAULT) {
+					resetSlc();
+				}
+				for (int f = 1; f <= NSLC; ++f) {
+					putSlc(out, f, slcFlags[f], slcValue[f]);
+				}
+			} else if ((function > NSLC) || !SUPPORTED[function]) {
+				if (level != SLC_NOSUPPORT) {
+					putSlc(out, function, SLC_NOSUPPORT, 0);
+				}
+			} else if ((flags & SLC_ACK) != 0) {
+				slcFlags[function] = flags & ~SLC_ACK;
+				slcValue[function] = value;
+			} else if (level == SLC_DEFAULT) {
+				slcFlags[function] = DEFAULT_FLAGS[function];
+				slcValue[function] = DEFAULT_VALUE[function];
+				putSlc(out, function, slcFlags[function], slcValue[function]);
+			} else if ((flags != slcFlags[function]) || (value != slcValue[function])) {
+				slcFlags[function] = flags;
+				slcValue[function] = value;
+				putSlc(out, function, flags | SLC_ACK, value);
+			}
+		}
+		return (out.size() > 1) ? out.toByteArray() : null;
+	}
+
+	private void resetSlc() {
+		for (int i = 1; i <= NSLC; ++i) {
+			slcFlags[i] = DEFAULT_FLAGS[i];
+			slcValue[i] = DEFAULT_VALUE[i];
+		}
+	}
+
+	private static void putSlc(ByteArrayOutputStream out, int function, int flags, int value) {
+		out.write(function);
+		out.write(flags);
+		out.write(value);
+	}
+}
@@ -258,8 +258,11 @@ public class TelnetOption {
 					him = WANTNO;
 					himq = false;
 				} else {
+					// The answer to our own request: nothing to send
 					him = YES;
+					action = IGNORE;
 				}
+				break;
 			}
 		}
 		return action;
@@ -351,8 +354,11 @@ public class TelnetOption {
 					us = WANTNO;
 					usq = false;
 				} else {
+					// The answer to our own request: nothing to send
 					us = YES;
+					action = IGNORE;
 				}
+				break;
 			}
 		}
 		return action;
@@ -422,6 +428,22 @@ public class TelnetOption {
 		return action;
 	}
 	
+	/**
+	 * Process the parameters of a subnegotiation received for this option.
+	 * The default is to ignore them; options which have parameters override
+	 * this.
+	 * 
+	 * @param data		a buffer containing the parameters, with quoted IACs
+	 * 					already removed.
+	 * @param offset	the offset of the first parameter byte.
+	 * @param length	the number of parameter bytes.
+	 * @return	the parameters of a subnegotiation to send in reply, not yet
+	 * 			quoted for IAC, or <code>null</code> for no reply.
+	 */
+	protected byte[] receivedSubnegotiation(byte[] data, int offset, int length) {
+		return null;
+	}
+
 	protected void associate() throws IllegalStateException {
 		if (associated) {
 			throw new IllegalStateException("Illegal sharing of TelnetOption: " + this);
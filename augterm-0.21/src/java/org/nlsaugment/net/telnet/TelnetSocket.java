@@ -24,6 +24,7 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Proxy;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketImpl;
 import java.net.SocketTimeoutException;
@@ -46,6 +47,7 @@ public class TelnetSocket extends Socket implements TelnetConstants, TelnetOptio
 	
 	private ArrayList<TelnetOption> optionList = new ArrayList<TelnetOption>();
 	private TelnetInputStream inStream = null;
+	private TelnetLatencyProbe latencyProbe = null;
 	
 	/**
 	 * Creates an unconnected Telnet socket, with the system-default type of SocketImpl.
@@ -167,15 +169,71 @@ public class TelnetSocket extends Socket implements TelnetConstants, TelnetOptio
 		super(host, port, localAddr, localPort);
 	}
 
+	/**
+	 * Connects the socket, and turns the Nagle algorithm off.  A terminal
+	 * sends keys and coordinate reports a few bytes at a time, and Nagle would
+	 * hold each of them until the host acknowledges the last one, which with
+	 * a delayed acknowledgement takes tens of milliseconds even on a fast
+	 * link.  Each key or report is instead written whole, in a single write.
+	 */
+	@Override
+	public void connect(SocketAddress endpoint, int timeout) throws IOException {
+		super.connect(endpoint, timeout);
+		setTcpNoDelay(true);
+	}
+
 	@Override
 	public TelnetInputStream getInputStream() throws IOException {
 		if (inStream == null) {
+			// Keep the DM of a SYNCH, which is sent as urgent data, in the
+			// data stream
+			setOOBInline(true);
 			inStream = new TelnetInputStream(this, new BufferedInputStream(
 					super.getInputStream()));
 		}
 		return inStream;
 	}
 	
+	@Override
+	public synchronized void close() throws IOException {
+		stopLatencyProbe();
+		super.close();
+	}
+	
+	/**
+	 * Start measuring the round trip time of this connection with a
+	 * {@link TelnetLatencyProbe}.
+	 * 
+	 * @param interval	the time between probes, in milliseconds.
+	 * @return the probe.
+	 */
+	public synchronized TelnetLatencyProbe startLatencyProbe(long interval) {
+		if (latencyProbe == null) {
+			latencyProbe = new TelnetLatencyProbe(this, interval);
+			latencyProbe.start();
+		}
+		return latencyProbe;
+	}
+	
+	/**
+	 * Stop the latency probe, if one is running.
+	 */
+	public synchronized void stopLatencyProbe() {
+		if (latencyProbe != null) {
+			latencyProbe.stop();
+			latencyProbe = null;
+		}
+	}
+	
+	/**
+	 * Return the latency probe for this connection.
+	 * 
+	 * @return the probe, or <code>null</code> if none is running.
+	 */
+	public synchronized TelnetLatencyProbe getLatencyProbe() {
+		return latencyProbe;
+	}
+	
 	public void addOption(TelnetOption option) {
 		TelnetOption other = getOption(option.getOptionName());
 		if (other == null) {
@@ -211,6 +269,127 @@ public class TelnetSocket extends Socket implements TelnetConstants, TelnetOptio
 		return optionList.toArray(opts);
 	}
 
+	/**
+	 * Offer to perform an option, without waiting for the answer.  The
+	 * answer is processed by the input stream like any other negotiation.
+	 * 
+	 * @param name		the option name.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public void announceOption(String name) throws IOException {
+		TelnetOption opt = getOption(name);
+		if (opt == null) {
+			throw new IllegalArgumentException("Unknown option: " + name);
+		}
+		if (opt.requestLocal(true) == TelnetOption.SEND_WILL) {
+			byte[] willmsg = { IAC, WILL, (byte)opt.getOptionCode() };
+			OutputStream out = getOutputStream();
+			out.write(willmsg);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Ask the remote side to perform an option, without waiting for the
+	 * answer.  The answer is processed by the input stream like any other
+	 * negotiation.
+	 * 
+	 * @param name		the option name.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public void askOption(String name) throws IOException {
+		TelnetOption opt = getOption(name);
+		if (opt == null) {
+			throw new IllegalArgumentException("Unknown option: " + name);
+		}
+		if (opt.requestRemote(true) == TelnetOption.SEND_DO) {
+			byte[] domsg = { IAC, DO, (byte)opt.getOptionCode() };
+			OutputStream out = getOutputStream();
+			out.write(domsg);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Send a Telnet command, such as IP or AO, followed by the SYNCH signal:
+	 * IAC DM, with the DM sent as TCP urgent data, so that the host discards
+	 * its pending output.  Received data is then discarded until the host's
+	 * data mark, or its answer to a TIMING-MARK request sent after the SYNCH,
+	 * whichever comes first.
+	 * 
+	 * @param command	the command code, such as <code>IP</code> or
+	 * 					<code>AO</code>.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public void sendSynch(byte command) throws IOException {
+		// Wait for the answer to any TIMING-MARK request already sent by
+		// the latency probe, as well as our own
+		TelnetLatencyProbe probe = getLatencyProbe();
+		int marks = ((probe != null) && probe.isTimingMarkPending()) ? 2 : 1;
+		getInputStream().discardUntilMark(marks);
+		OutputStream out = getOutputStream();
+		byte[] cmdmsg = { IAC, command, IAC };
+		out.write(cmdmsg);
+		out.flush();
+		sendUrgentData(DM);
+		byte[] tmmsg = { IAC, DO, (byte)OPTION_TIMING_MARK };
+		out.write(tmmsg);
+		out.flush();
+	}
+
+	/**
+	 * Send a subnegotiation for an option.  The parameters are quoted as
+	 * needed, and the whole subnegotiation is sent in a single write, so that
+	 * it is not split by data written by another thread.
+	 * 
+	 * @param optionCode	the option code.
+	 * @param data			the parameters.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public void sendSubnegotiation(int optionCode, byte[] data) throws IOException {
+		byte[] msg = new byte[data.length * 2 + 5];
+		int n = 0;
+		msg[n++] = IAC;
+		msg[n++] = SB;
+		msg[n++] = (byte)optionCode;
+		for (byte b : data) {
+			if (b == IAC) {
+				msg[n++] = IAC;
+			}
+			msg[n++] = b;
+		}
+		msg[n++] = IAC;
+		msg[n++] = SE;
+		OutputStream out = getOutputStream();
+		out.write(msg, 0, n);
+		out.flush();
+	}
+
+	/**
+	 * Tell the host the size of the terminal, if it has changed and the NAWS
+	 * option is enabled.  The size is remembered in any case, to be sent when
+	 * the option is enabled.
+	 * 
+	 * @param width		the number of columns.
+	 * @param height	the number of rows.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public void setWindowSize(int width, int height) throws IOException {
+		TelnetOption opt = getOption(OPTION_NAWS);
+		if ((opt instanceof TelnetWindowSizeOption)
+				&& ((TelnetWindowSizeOption) opt).setWindowSize(width, height)
+				&& opt.isEnabledLocally()) {
+			sendWindowSize((TelnetWindowSizeOption) opt);
+		}
+	}
+
+	/**
+	 * Send the current window size of a NAWS option.
+	 */
+	void sendWindowSize(TelnetWindowSizeOption opt) throws IOException {
+		sendSubnegotiation(opt.getOptionCode(), opt.getSubnegotiation());
+	}
+
 	public boolean offerOption(String name) throws SocketTimeoutException, IOException {
 		TelnetOption opt = getOption(name);
 		if (opt == null) {
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.net.telnet;
+
+/**
+ * The Telnet NAWS (Negotiate About Window Size) option, as defined in
+ * RFC 1073.  The local side performs the option by sending the size of the
+ * terminal in a subnegotiation, once when the option is enabled and again
+ * each time the size changes.
+ *
+ * @see TelnetSocket#setWindowSize(int, int)
+ */
+public class TelnetWindowSizeOption extends TelnetOption {
+
+	private int width;
+	private int height;
+
+	/**
+	 * Constructor for a NAWS option with an initial window size.
+	 *
+	 * @param width		the number of columns.
+	 * @param height	the number of rows.
+	 */
+	public TelnetWindowSizeOption(int width, int height) {
+		super(TelnetConstants.OPTION_NAWS, "NAWS", true, false);
+		this.width = width;
+		this.height = height;
+	}
+
+	public synchronized int getWidth() {
+		return width;
+	}
+
+	public synchronized int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Set the window size.
+	 *
+	 * @param width		the number of columns.
+	 * @param height	the number of rows.
+	 * @return	<code>true</code> if the size changed.
+	 */
+	public synchronized boolean setWindowSize(int width, int height) {
+		if ((width == this.width) && (height == this.height)) {
+			return false;
+		}
+		this.width = width;
+		this.height = height;
+		return true;
+	}
+
+	/**
+	 * Return the parameters of the subnegotiation reporting the current
+	 * window size: the width and height as 16 bit values, high byte first.
+	 *
+	 * @return	the four parameter bytes, not yet quoted for IAC.
+	 */
+	public synchronized byte[] getSubnegotiation() {
+		byte[] data = { (byte) (width >> 8), (byte) width,
+				(byte) (height >> 8), (byte) height };
+		return data;
+	}
+}
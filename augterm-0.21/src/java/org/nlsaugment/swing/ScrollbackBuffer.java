@@ -0,0 +1,398 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.swing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * This class holds the scrollback history of a <code>TerminalPane</code>: the
+ * rows which have been scrolled off the top of the screen.  Each row is kept
+ * as a packed byte array, holding the text of the row with trailing blanks
+ * removed, two bytes per character, followed by its attributes as a list of
+ * runs.  Rows are kept in a ring buffer, so once the limit is reached the
+ * oldest row is discarded for each new one.
+ * <p>
+ * Optionally, rows which are discarded from the in-memory ring can instead be
+ * moved to a second ring in a memory-mapped file, for very long histories.
+ * Each row occupies a fixed-size slot in the file, which holds up to
+ * {@link #MAX_SPILL_COLUMNS} characters and {@link #MAX_SPILL_RUNS} attribute
+ * runs; longer rows are truncated when they are moved to the file.
+ * <p>
+ * Rows are numbered by the order in which they were added, starting from
+ * zero, so a row keeps its line number for as long as it is retained.
+ *
+ * @see org.nlsaugment.swing.TerminalPane#setScrollback(ScrollbackBuffer)
+ */
+public class ScrollbackBuffer {
+
+	/**
+	 * The attribute value for normal characters.
+	 */
+	public static final byte ATTR_PLAIN = 0;
+	/**
+	 * The attribute value for reverse video characters.
+	 */
+	public static final byte ATTR_REVERSE = 1;
+
+	/**
+	 * The maximum number of characters of a row kept in the file.
+	 */
+	public static final int MAX_SPILL_COLUMNS = 256;
+	/**
+	 * The maximum number of attribute runs of a row kept in the file.
+	 */
+	public static final int MAX_SPILL_RUNS = 16;
+
+	// Packed row layout: text length (2), run count (2), text (2 each),
+	// runs (2 + 1 each)
+	private static final int HEADER_SIZE = 4;
+	private static final int CHAR_SIZE = 2;
+	private static final int RUN_SIZE = 3;
+	private static final int SLOT_SIZE = 2 + HEADER_SIZE
+			+ MAX_SPILL_COLUMNS * CHAR_SIZE + MAX_SPILL_RUNS * RUN_SIZE;
+
+	private final byte[][] rows;
+	private int head = 0;
+	private int count = 0;
+
+	private final RandomAccessFile spillFile;
+	private final MappedByteBuffer spill;
+	private final int spillLimit;
+	private int spillHead = 0;
+	private int spillCount = 0;
+
+	private long lineCount = 0;
+
+	// Reused while packing a row
+	private byte[] packBuf = new byte[HEADER_SIZE + 256 * CHAR_SIZE];
+
+	private final ArrayList<ChangeListener> listeners = new ArrayList<ChangeListener>();
+	private final ChangeEvent changeEvent = new ChangeEvent(this);
+
+	/**
+	 * Constructor for a scrollback buffer which is kept entirely in memory.
+	 *
+	 * @param limit	the maximum number of rows retained.
+	 */
+	public ScrollbackBuffer(int limit) {
+		super();
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be positive: " + limit);
+		}
+		this.rows = new byte[limit][];
+		this.spillFile = null;
+		this.spill = null;
+		this.spillLimit = 0;
+	}
+
+	/**
+	 * Constructor for a scrollback buffer which moves older rows to a
+	 * memory-mapped file.  Any existing contents of the file are discarded.
+	 *
+	 * @param limit			the maximum number of rows retained in memory.
+	 * @param file			the file to hold older rows.
+	 * @param spillLimit	the maximum number of rows retained in the file.
+	 * @throws IOException	if the file cannot be created and mapped.
+	 */
+	public ScrollbackBuffer(int limit, File file, int spillLimit) throws IOException {
+		super();
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be positive: " + limit);
+		}
+		if ((spillLimit <= 0) || (spillLimit > (Integer.MAX_VALUE / SLOT_SIZE))) {
+			throw new IllegalArgumentException("invalid spill limit: " + spillLimit);
+		}
+		this.rows = new byte[limit][];
+		this.spillLimit = spillLimit;
+		this.spillFile = new RandomAccessFile(file, "rw");
+		boolean ok = false;
+		try {
+			long size = (long) spillLimit * SLOT_SIZE;
+			spillFile.setLength(size);
+			this.spill = spillFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			ok = true;
+		} finally {
+			if (!ok) {
+				spillFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Release the file used for older rows, if any.  The buffer should not be
+	 * used afterward.
+	 *
+	 * @throws IOException	if the file cannot be closed.
+	 */
+	public synchronized void close() throws IOException {
+		if (spillFile != null) {
+			spillFile.close();
+		}
+	}
+
+	/**
+	 * Add a listener to be notified when rows are added.  The listener is
+	 * called on the thread which adds the row, which may not be the event
+	 * dispatch thread.
+	 *
+	 * @param listener	the listener.
+	 */
+	public synchronized void addChangeListener(ChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	public synchronized void removeChangeListener(ChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Return the maximum number of rows that can be retained.
+	 *
+	 * @return	the row limit.
+	 */
+	public int getLimit() {
+		return rows.length + spillLimit;
+	}
+
+	/**
+	 * Return the number of rows currently retained.
+	 *
+	 * @return	the number of rows.
+	 */
+	public synchronized int size() {
+		return spillCount + count;
+	}
+
+	/**
+	 * Return the total number of rows that have been added, including those
+	 * which have since been discarded.  This is one more than the line number
+	 * of the newest row.
+	 *
+	 * @return	the number of rows added.
+	 */
+	public synchronized long getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * Return the line number of the oldest retained row.
+	 *
+	 * @return	the line number of the oldest row.
+	 */
+	public synchronized long getFirstLine() {
+		return lineCount - spillCount - count;
+	}
+
+	/**
+	 * Add a row.  The attributes are given per character, and are packed into
+	 * runs.
+	 *
+	 * @param text		the text of the row.
+	 * @param attr		the attribute of each character of the row, either
+	 * 					<code>ATTR_PLAIN</code> or <code>ATTR_REVERSE</code>.
+	 * @param length	the number of characters in the row.
+	 */
+	public void addRow(CharSequence text, byte[] attr, int length) {
+		ChangeListener[] notify;
+		synchronized (this) {
+			byte[] packed = pack(text, attr, length);
+			if (count == rows.length) {
+				if (spill != null) {
+					spillRow(rows[head]);
+				}
+				rows[head] = packed;
+				head = (head + 1) % rows.length;
+			} else {
+				rows[(head + count) % rows.length] = packed;
+				++count;
+			}
+			++lineCount;
+			if (listeners.isEmpty()) {
+				return;
+			}
+			notify = listeners.toArray(new ChangeListener[listeners.size()]);
+		}
+		for (ChangeListener l : notify) {
+			l.stateChanged(changeEvent);
+		}
+	}
+
+	/**
+	 * Unpack a retained row into caller-supplied arrays.  Characters beyond
+	 * the stored text are returned as blanks with <code>ATTR_PLAIN</code>.
+	 *
+	 * @param line	the line number of the row.
+	 * @param text	receives the characters of the row.
+	 * @param attr	receives the attributes of the row, or <code>null</code>.
+	 * @return	the number of characters stored for the row, not counting
+	 * 			trailing blanks, or -1 if the row is no longer retained.
+	 */
+	public synchronized int getRow(long line, char[] text, byte[] attr) {
+		long first = lineCount - spillCount - count;
+		if ((line < first) || (line >= lineCount)) {
+			return -1;
+		}
+		int index = (int) (line - first);
+		if (index < spillCount) {
+			int slot = (spillHead + index) % spillLimit;
+			int pos = slot * SLOT_SIZE;
+			int len = ((spill.get(pos) & 0xff) << 8) | (spill.get(pos + 1) & 0xff);
+			if (packBuf.length < len) {
+				packBuf = new byte[len];
+			}
+			for (int i = 0; i < len; ++i) {
+				packBuf[i] = spill.get(pos + 2 + i);
+			}
+			return unpack(packBuf, text, attr);
+		}
+		return unpack(rows[(head + index - spillCount) % rows.length], text, attr);
+	}
+
+	/**
+	 * Return the text of a retained row, without trailing blanks.
+	 *
+	 * @param line	the line number of the row.
+	 * @return	the text, or <code>null</code> if the row is no longer retained.
+	 */
+	public synchronized String getText(long line) {
+		char[] text = new char[MAX_SPILL_COLUMNS];
+		int len = getRow(line, text, null);
+		if (len < 0) {
+			return null;
+		}
+		if (len > text.length) {
+			text = new char[len];
+			getRow(line, text, null);
+		}
+		return new String(text, 0, len);
+	}
+
+	private void spillRow(byte[] packed) {
+		int slot;
+		if (spillCount == spillLimit) {
+			slot = spillHead;
+			spillHead = (spillHead + 1) % spillLimit;
+		} else {
+			slot = (spillHead + spillCount) % spillLimit;
+			++spillCount;
+		}
+
+		// Truncate the row to fit the slot if necessary
+		int textLen = ((packed[0] & 0xff) << 8) | (packed[1] & 0xff);
+		int nruns = ((packed[2] & 0xff) << 8) | (packed[3] & 0xff);
+		int keepText = Math.min(textLen, MAX_SPILL_COLUMNS);
+		int keepRuns = Math.min(nruns, MAX_SPILL_RUNS);
+		int pos = slot * SLOT_SIZE;
+		int len = HEADER_SIZE + keepText * CHAR_SIZE + keepRuns * RUN_SIZE;
+		spill.put(pos, (byte) (len >> 8));
+		spill.put(pos + 1, (byte) len);
+		spill.put(pos + 2, (byte) (keepText >> 8));
+		spill.put(pos + 3, (byte) keepText);
+		spill.put(pos + 4, (byte) (keepRuns >> 8));
+		spill.put(pos + 5, (byte) keepRuns);
+		int out = pos + 2 + HEADER_SIZE;
+		for (int i = 0; i < keepText * CHAR_SIZE; ++i) {
+			spill.put(out++, packed[HEADER_SIZE + i]);
+		}
+		int in = HEADER_SIZE + textLen * CHAR_SIZE;
+		for (int i = 0; i < keepRuns * RUN_SIZE; ++i) {
+			spill.put(out++, packed[in + i]);
+		}
+	}
+
+	private byte[] pack(CharSequence text, byte[] attr, int length) {
+		// Trim trailing plain blanks
+		while ((length > 0) && (text.charAt(length - 1) == ' ')
+				&& (attr[length - 1] == ATTR_PLAIN)) {
+			--length;
+		}
+
+		int max = HEADER_SIZE + length * (CHAR_SIZE + RUN_SIZE);
+		if (packBuf.length < max) {
+			packBuf = new byte[max];
+		}
+
+		int pos = HEADER_SIZE;
+		for (int i = 0; i < length; ++i) {
+			char ch = text.charAt(i);
+			packBuf[pos++] = (byte) (ch >> 8);
+			packBuf[pos++] = (byte) ch;
+		}
+
+		int nruns = 0;
+		int i = 0;
+		while (i < length) {
+			byte a = attr[i];
+			int start = i;
+			while ((i < length) && (attr[i] == a)) {
+				++i;
+			}
+			int runLen = i - start;
+			packBuf[pos++] = (byte) (runLen >> 8);
+			packBuf[pos++] = (byte) runLen;
+			packBuf[pos++] = a;
+			++nruns;
+		}
+
+		packBuf[0] = (byte) (length >> 8);
+		packBuf[1] = (byte) length;
+		packBuf[2] = (byte) (nruns >> 8);
+		packBuf[3] = (byte) nruns;
+
+		byte[] packed = new byte[pos];
+		System.arraycopy(packBuf, 0, packed, 0, pos);
+		return packed;
+	}
+
+	private static int unpack(byte[] packed, char[] text, byte[] attr) {
+		int textLen = ((packed[0] & 0xff) << 8) | (packed[1] & 0xff);
+		int nruns = ((packed[2] & 0xff) << 8) | (packed[3] & 0xff);
+		int n = Math.min(textLen, text.length);
+		for (int i = 0; i < n; ++i) {
+			int pos = HEADER_SIZE + i * CHAR_SIZE;
+			text[i] = (char) (((packed[pos] & 0xff) << 8) | (packed[pos + 1] & 0xff));
+		}
+		for (int i = n; i < text.length; ++i) {
+			text[i] = ' ';
+		}
+		if (attr != null) {
+			int col = 0;
+			int pos = HEADER_SIZE + textLen * CHAR_SIZE;
+			for (int r = 0; r < nruns; ++r) {
+				int runLen = ((packed[pos] & 0xff) << 8) | (packed[pos + 1] & 0xff);
+				byte a = packed[pos + 2];
+				pos += RUN_SIZE;
+				for (int j = 0; (j < runLen) && (col < attr.length); ++j) {
+					attr[col++] = a;
+				}
+			}
+			while (col < attr.length) {
+				attr[col++] = ATTR_PLAIN;
+			}
+		}
+		return textLen;
+	}
+}
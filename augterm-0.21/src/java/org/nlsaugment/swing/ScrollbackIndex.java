@@ -0,0 +1,358 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.swing;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * This class maintains a trigram index of the rows in a
+ * <code>ScrollbackBuffer</code>, for fast case-insensitive substring search.
+ * Rows are grouped into blocks of {@link #BLOCK_LINES} consecutive lines, and
+ * for each trigram the index keeps the ascending list of blocks containing it.
+ * A search intersects the lists for the trigrams of the query, and only the
+ * lines of the surviving blocks are compared with the query.
+ * <p>
+ * The index is updated as rows are added to the buffer.  Entries for blocks
+ * which the buffer has discarded are skipped by searches, and are removed in
+ * bulk once they make up half of the blocks indexed.
+ */
+public class ScrollbackIndex implements ChangeListener {
+
+	/**
+	 * The number of lines in a block of the index.
+	 */
+	public static final int BLOCK_LINES = 16;
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int INITIAL_POSTINGS = 4;
+
+	private final ScrollbackBuffer buffer;
+
+	// Open-addressed hash table from trigram to posting list number
+	private int[] keys = new int[INITIAL_CAPACITY];
+	private int[] slots = new int[INITIAL_CAPACITY];
+	private int trigramCount = 0;
+
+	// Posting lists of ascending block numbers
+	private int[][] postings = new int[INITIAL_CAPACITY][];
+	private int[] postingLength = new int[INITIAL_CAPACITY];
+	private int compactedBlock = 0;
+
+	private long nextLine = 0;
+
+	// Reused while indexing and searching
+	private char[] text = new char[ScrollbackBuffer.MAX_SPILL_COLUMNS];
+
+	/**
+	 * Constructor for an index of a scrollback buffer.  Rows which are already
+	 * in the buffer are indexed immediately.
+	 *
+	 * @param buffer	the scrollback buffer.
+	 */
+	public ScrollbackIndex(ScrollbackBuffer buffer) {
+		super();
+		this.buffer = buffer;
+		for (int i = 0; i < keys.length; ++i) {
+			keys[i] = -1;
+		}
+		buffer.addChangeListener(this);
+		update();
+	}
+
+	/**
+	 * Called by the scrollback buffer when rows are added.
+	 */
+	public void stateChanged(ChangeEvent e) {
+		update();
+	}
+
+	/**
+	 * Return the line numbers of the rows in the scrollback buffer which
+	 * contain a string, ignoring case.
+	 *
+	 * @param query		the string to look for.
+	 * @param maxLines	the maximum number of lines to return.  If there are
+	 * 					more, the newest are returned.
+	 * @return	the matching line numbers, in ascending order.
+	 */
+	public synchronized long[] search(String query, int maxLines) {
+		update();
+		String q = query.toLowerCase();
+		long first = buffer.getFirstLine();
+		long end = buffer.getLineCount();
+		long[] result = new long[Math.max(maxLines, 0)];
+		int n = 0;
+		if (q.length() == 0 || maxLines <= 0) {
+			return new long[0];
+		}
+
+		if (q.length() < 3) {
+			// Too short for the index; scan, newest first
+			for (long line = end - 1; (line >= first) && (n < maxLines); --line) {
+				if (matches(line, q)) {
+					result[n++] = line;
+				}
+			}
+		} else {
+			int[] blocks = candidates(q, (int) (first / BLOCK_LINES));
+			for (int b = blocks.length - 1; (b >= 0) && (n < maxLines); --b) {
+				long from = Math.max((long) blocks[b] * BLOCK_LINES, first);
+				long to = Math.min((long) (blocks[b] + 1) * BLOCK_LINES, end);
+				for (long line = to - 1; (line >= from) && (n < maxLines); --line) {
+					if (matches(line, q)) {
+						result[n++] = line;
+					}
+				}
+			}
+		}
+
+		// Return in ascending order
+		long[] lines = new long[n];
+		for (int i = 0; i < n; ++i) {
+			lines[i] = result[n - 1 - i];
+		}
+		return lines;
+	}
+
+	/**
+	 * Return the column at which a string occurs in a row of the scrollback
+	 * buffer, ignoring case.
+	 *
+	 * @param line	the line number of the row.
+	 * @param query	the string to look for.
+	 * @return	the column of the first occurrence, or -1 if there is none.
+	 */
+	public synchronized int indexOf(long line, String query) {
+		int len = rowText(line);
+		if (len < 0) {
+			return -1;
+		}
+		return indexOf(text, len, query.toLowerCase());
+	}
+
+	// Index any rows added since the last update
+	private synchronized void update() {
+		long end = buffer.getLineCount();
+		long first = buffer.getFirstLine();
+		if (nextLine < first) {
+			nextLine = first;
+		}
+		while (nextLine < end) {
+			int len = rowText(nextLine);
+			if (len > 0) {
+				addLine((int) (nextLine / BLOCK_LINES), len);
+			}
+			++nextLine;
+		}
+		compact((int) (first / BLOCK_LINES));
+	}
+
+	private void addLine(int block, int len) {
+		for (int i = 0; i + 2 < len; ++i) {
+			int key = trigram(text[i], text[i + 1], text[i + 2]);
+			int list = lookup(key, true);
+			int plen = postingLength[list];
+			if ((plen > 0) && (postings[list][plen - 1] == block)) {
+				continue;
+			}
+			if (plen == postings[list].length) {
+				int[] grown = new int[plen * 2];
+				System.arraycopy(postings[list], 0, grown, 0, plen);
+				postings[list] = grown;
+			}
+			postings[list][plen] = block;
+			postingLength[list] = plen + 1;
+		}
+	}
+
+	// Intersect the posting lists of the trigrams of a query, shortest first
+	private int[] candidates(String q, int firstBlock) {
+		int nlists = q.length() - 2;
+		int[] lists = new int[nlists];
+		for (int i = 0; i < nlists; ++i) {
+			lists[i] = lookup(trigram(q.charAt(i), q.charAt(i + 1), q.charAt(i + 2)), false);
+			if (lists[i] < 0) {
+				return new int[0];
+			}
+			for (int j = i; (j > 0) && (postingLength[lists[j]] < postingLength[lists[j - 1]]); --j) {
+				int t = lists[j];
+				lists[j] = lists[j - 1];
+				lists[j - 1] = t;
+			}
+		}
+
+		int[] p = postings[lists[0]];
+		int plen = postingLength[lists[0]];
+		int[] result = new int[plen];
+		int rlen = 0;
+		for (int j = 0; j < plen; ++j) {
+			if (p[j] >= firstBlock) {
+				result[rlen++] = p[j];
+			}
+		}
+		for (int i = 1; (i < nlists) && (rlen > 0); ++i) {
+			p = postings[lists[i]];
+			plen = postingLength[lists[i]];
+			int k = 0;
+			int lo = 0;
+			for (int r = 0; r < rlen; ++r) {
+				lo = find(p, lo, plen, result[r]);
+				if ((lo < plen) && (p[lo] == result[r])) {
+					result[k++] = result[r];
+				}
+			}
+			rlen = k;
+		}
+		int[] blocks = new int[rlen];
+		System.arraycopy(result, 0, blocks, 0, rlen);
+		return blocks;
+	}
+
+	// Return the index of the first entry >= block, searching from lo
+	private static int find(int[] p, int lo, int plen, int block) {
+		int step = 1;
+		int hi = lo;
+		while ((hi < plen) && (p[hi] < block)) {
+			lo = hi + 1;
+			hi += step;
+			step <<= 1;
+		}
+		hi = Math.min(hi, plen);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (p[mid] < block) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// Drop entries for discarded blocks once they are half of those indexed
+	private void compact(int firstBlock) {
+		int endBlock = (int) (nextLine / BLOCK_LINES) + 1;
+		if ((firstBlock - compactedBlock) * 2 < (endBlock - compactedBlock)) {
+			return;
+		}
+		for (int list = 0; list < trigramCount; ++list) {
+			int[] p = postings[list];
+			int plen = postingLength[list];
+			int skip = 0;
+			while ((skip < plen) && (p[skip] < firstBlock)) {
+				++skip;
+			}
+			if (skip > 0) {
+				System.arraycopy(p, skip, p, 0, plen - skip);
+				postingLength[list] = plen - skip;
+			}
+		}
+		compactedBlock = firstBlock;
+	}
+
+	private boolean matches(long line, String q) {
+		int len = rowText(line);
+		return (len >= q.length()) && (indexOf(text, len, q) >= 0);
+	}
+
+	private int rowText(long line) {
+		int len = buffer.getRow(line, text, null);
+		if (len > text.length) {
+			text = new char[len];
+			len = buffer.getRow(line, text, null);
+		}
+		return len;
+	}
+
+	private static int indexOf(char[] text, int len, String q) {
+		int qlen = q.length();
+		for (int i = 0; i + qlen <= len; ++i) {
+			int j = 0;
+			while ((j < qlen) && (Character.toLowerCase(text[i + j]) == q.charAt(j))) {
+				++j;
+			}
+			if (j == qlen) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int trigram(char c1, char c2, char c3) {
+		return (fold(c1) << 16) | (fold(c2) << 8) | fold(c3);
+	}
+
+	private static int fold(char c) {
+		c = Character.toLowerCase(c);
+		return (c > 0xff) ? 0xff : c;
+	}
+
+	// Return the posting list number for a trigram, optionally creating it
+	private int lookup(int key, boolean create) {
+		int mask = keys.length - 1;
+		int h = (key * 0x9E3779B1) >>> 7 & mask;
+		while (keys[h] != -1) {
+			if (keys[h] == key) {
+				return slots[h];
+			}
+			h = (h + 1) & mask;
+		}
+		if (!create) {
+			return -1;
+		}
+		if (trigramCount == postings.length) {
+			int[][] grownPostings = new int[trigramCount * 2][];
+			System.arraycopy(postings, 0, grownPostings, 0, trigramCount);
+			postings = grownPostings;
+			int[] grownLength = new int[trigramCount * 2];
+			System.arraycopy(postingLength, 0, grownLength, 0, trigramCount);
+			postingLength = grownLength;
+		}
+		int list = trigramCount++;
+		postings[list] = new int[INITIAL_POSTINGS];
+		postingLength[list] = 0;
+		keys[h] = key;
+		slots[h] = list;
+		if (trigramCount * 2 > keys.length) {
+			rehash();
+		}
+		return list;
+	}
+
+	private void rehash() {
+		int[] oldKeys = keys;
+		int[] oldSlots = slots;
+		keys = new int[oldKeys.length * 2];
+		slots = new int[oldKeys.length * 2];
+		for (int i = 0; i < keys.length; ++i) {
+			keys[i] = -1;
+		}
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldKeys[i] != -1) {
+				int h = (oldKeys[i] * 0x9E3779B1) >>> 7 & mask;
+				while (keys[h] != -1) {
+					h = (h + 1) & mask;
+				}
+				keys[h] = oldKeys[i];
+				slots[h] = oldSlots[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright © 2005 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.nlsaugment.swing;
+
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * This component displays the rows of a <code>ScrollbackBuffer</code>.  It is
+ * intended to be placed directly above its <code>TerminalPane</code> in the
+ * view of a <code>JScrollPane</code>, so that scrolling up from the terminal
+ * screen continues into the history.  Only the rows which are visible are
+ * painted, and they are painted directly from the packed rows, so the history
+ * adds nothing to the cost of updating the terminal screen.
+ * <p>
+ * Changes to the history are coalesced, and applied on the event dispatch
+ * thread.  If the enclosing viewport was scrolled to the bottom, it is kept
+ * there as rows are added.
+ */
+public class ScrollbackView extends JComponent {
+  private static final long serialVersionUID = 1;
+
+	private final ScrollbackBuffer buffer;
+	private final TerminalPane tpane;
+
+	private char[] text = new char[0];
+	private byte[] attr = new byte[0];
+
+	// The highlighted search result, if highlightLine >= 0
+	private long highlightLine = -1;
+	private int highlightColumn;
+	private int highlightLength;
+
+	// Set when an update has been scheduled but not yet run
+	private boolean updatePending = false;
+
+	private final Runnable updater = new Runnable() {
+		public void run() {
+			synchronized (ScrollbackView.this) {
+				updatePending = false;
+			}
+			update();
+		}
+	};
+
+	/**
+	 * Constructor for a view of a scrollback buffer.
+	 *
+	 * @param buffer	the scrollback buffer.
+	 * @param tpane		the terminal pane whose history it holds, from which the
+	 * 					font and width are taken.
+	 */
+	public ScrollbackView(ScrollbackBuffer buffer, TerminalPane tpane) {
+		super();
+		this.buffer = buffer;
+		this.tpane = tpane;
+		setOpaque(true);
+		setBackground(tpane.getBackground());
+		setForeground(tpane.getForeground());
+		setFont(new Font(tpane.getFontFamily(), Font.PLAIN, tpane.getFontSize()));
+		buffer.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				scheduleUpdate();
+			}
+		});
+	}
+
+	/**
+	 * Return the height of a row of text.
+	 *
+	 * @return	the row height in pixels.
+	 */
+	public int getRowHeight() {
+		return getFontMetrics(getFont()).getHeight();
+	}
+
+	/**
+	 * Scroll the enclosing viewport, if any, so that a row of the history is
+	 * visible.
+	 *
+	 * @param line	the line number of the row in the scrollback buffer.
+	 */
+	public void scrollToLine(long line) {
+		int index = (int) (line - buffer.getFirstLine());
+		if ((index >= 0) && (index < buffer.size())) {
+			int rh = getRowHeight();
+			scrollRectToVisible(new Rectangle(0, index * rh, 1, rh));
+		}
+	}
+
+	/**
+	 * Highlight a search result in the history, replacing any previous
+	 * highlight, and scroll it into view.
+	 *
+	 * @param line		the line number of the row in the scrollback buffer.
+	 * @param column	the column of the first character to highlight.
+	 * @param length	the number of characters to highlight.
+	 */
+	public void setHighlight(long line, int column, int length) {
+		clearHighlight();
+		highlightLine = line;
+		highlightColumn = column;
+		highlightLength = length;
+		repaintLine(line);
+		scrollToLine(line);
+	}
+
+	/**
+	 * Remove the search result highlight, if any.
+	 */
+	public void clearHighlight() {
+		if (highlightLine >= 0) {
+			repaintLine(highlightLine);
+			highlightLine = -1;
+		}
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		return new Dimension(tpane.getPreferredSize().width,
+				buffer.size() * getRowHeight());
+	}
+
+	@Override
+	public Dimension getMaximumSize() {
+		return getPreferredSize();
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		}
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+		g.setFont(getFont());
+		FontMetrics fm = g.getFontMetrics();
+		int rh = fm.getHeight();
+		int cw = fm.charWidth('m');
+		Insets margin = tpane.getInsets();
+		int columns = tpane.getColumns();
+		if (text.length < columns) {
+			text = new char[columns];
+			attr = new byte[columns];
+		}
+
+		long first = buffer.getFirstLine();
+		int size = buffer.size();
+		int from = Math.max(clip.y / rh, 0);
+		int to = Math.min((clip.y + clip.height) / rh, size - 1);
+		for (int i = from; i <= to; ++i) {
+			int len = buffer.getRow(first + i, text, attr);
+			if (len < 0) {
+				continue;
+			}
+			int y = i * rh;
+			int col = 0;
+			while (col < columns) {
+				byte a = attr[col];
+				int start = col;
+				while ((col < columns) && (attr[col] == a)) {
+					++col;
+				}
+				int x = margin.left + start * cw;
+				if (a == ScrollbackBuffer.ATTR_REVERSE) {
+					g.setColor(getForeground());
+					g.fillRect(x, y, (col - start) * cw, rh);
+					g.setColor(getBackground());
+				} else {
+					g.setColor(getForeground());
+				}
+				int end = Math.min(col, Math.max(len, start));
+				if (end > start) {
+					g.drawChars(text, start, end - start, x, y + fm.getAscent());
+				}
+			}
+			if (first + i == highlightLine) {
+				g.setXORMode(getBackground());
+				g.setColor(tpane.getSelectionColor());
+				g.fillRect(margin.left + highlightColumn * cw, y,
+						highlightLength * cw, rh);
+				g.setPaintMode();
+			}
+		}
+	}
+
+	private void repaintLine(long line) {
+		int index = (int) (line - buffer.getFirstLine());
+		if (index >= 0) {
+			int rh = getRowHeight();
+			repaint(0, index * rh, getWidth(), rh);
+		}
+	}
+
+	private void scheduleUpdate() {
+		synchronized (this) {
+			if (updatePending) {
+				return;
+			}
+			updatePending = true;
+		}
+		SwingUtilities.invokeLater(updater);
+	}
+
+	private void update() {
+		JViewport vp = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+		boolean atBottom = false;
+		if (vp != null) {
+			Rectangle r = vp.getViewRect();
+			atBottom = (r.y + r.height) >= (vp.getViewSize().height - getRowHeight());
+		}
+		revalidate();
+		repaint();
+		if (atBottom) {
+			vp.validate();
+			Dimension size = vp.getViewSize();
+			int y = Math.max(size.height - vp.getExtentSize().height, 0);
+			vp.setViewPosition(new Point(vp.getViewPosition().x, y));
+		}
+	}
+}
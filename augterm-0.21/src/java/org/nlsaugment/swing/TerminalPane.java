@@ -17,12 +17,23 @@
  */
 package org.nlsaugment.swing;
 
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 
 import javax.swing.JTextPane;
+import javax.swing.Timer;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
 import javax.swing.text.Element;
+import javax.swing.text.Segment;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
@@ -63,12 +74,64 @@ public class TerminalPane extends JTextPane {
 
 	private static final String DEFAULT_FONTFAMILY = "Monospaced";
 	private static final int DEFAULT_FONTSIZE = 16;
+	private static final Color POINTER_COLOR = new Color(0xff, 0xc0, 0x40);
+	private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+	// Longest time for which a frame holds back repainting, in milliseconds
+	private static final int FRAME_TIMEOUT = 200;
+
+	// The strings displayed for the printable ASCII characters
+	private static final String[] ASCII_GLYPHS = new String[0177 - 040];
+	static {
+		for (int i = 0; i < ASCII_GLYPHS.length; ++i) {
+			ASCII_GLYPHS[i] = Character.toString((char)(040 + i));
+		}
+	}
 
 	private String blankLine;
-	private int rows;
-	private int columns;
+	private volatile int rows;
+	private volatile int columns;
 	private Style plain;
 	private Style reverse;
+	private Style predicted;
+	private PaintObserver paintObserver;
+	private ScrollbackBuffer scrollback;
+	private Object searchHighlight;
+	private Object pointerHighlight;
+	private Dimension cellSize;
+
+	// The strings displayed for other characters, in pages of 256, built on
+	// first use for the current font.  An empty string is not displayed.
+	private String[][] glyphs = new String[256][];
+
+	// While a frame is open, repainting is held back, and the area to
+	// repaint is collected in frameDirty
+	private volatile boolean inFrame = false;
+	private final Object frameLock = new Object();
+	private Rectangle frameDirty = null;
+	private final Timer frameTimer = new Timer(FRAME_TIMEOUT, new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+			endFrame();
+		}
+	});
+
+	// Reused when saving rows to the scrollback buffer
+	private final Segment rowText = new Segment();
+	private byte[] rowAttr;
+
+	/**
+	 * An observer which is notified each time a <code>TerminalPane</code> has
+	 * been painted.  This is intended for measuring display latency.
+	 */
+	public interface PaintObserver {
+		/**
+		 * Called on the event dispatch thread after the terminal is painted.
+		 *
+		 * @param when	the <code>System.nanoTime()</code> at which painting
+		 * 				completed.
+		 */
+		public void painted(long when);
+	}
 
 	/**
 	 * Default constructor for a <code>TerminalPane</code> with <code>DEFAULT_ROWS</code>
@@ -91,6 +154,7 @@ public class TerminalPane extends JTextPane {
 		setEditable(false);
 		this.rows = rows;
 		this.columns = columns;
+		this.rowAttr = new byte[columns];
 		addStyles();
 		clear();
 		setCaretPosition(0);
@@ -103,19 +167,117 @@ public class TerminalPane extends JTextPane {
 	}
 
 	/**
-	 * Clear the terminal screen.
+	 * Set an observer to be notified each time the terminal is painted, replacing
+	 * any previous observer.
 	 *
+	 * @param observer	the observer, or <code>null</code> for none.
 	 */
-	public void clear() {
-		StyledDocument doc = getStyledDocument();
+	public void setPaintObserver(PaintObserver observer) {
+		paintObserver = observer;
+	}
+
+	/**
+	 * Set the buffer to receive rows which are scrolled off the top of a
+	 * scrolling window by {@link #scrollUp(int, int, int, int, int)}.  Only
+	 * windows which span the full width of the terminal save their rows.
+	 *
+	 * @param scrollback	the scrollback buffer, or <code>null</code> to
+	 * 						discard rows which are scrolled off.
+	 */
+	public void setScrollback(ScrollbackBuffer scrollback) {
+		this.scrollback = scrollback;
+	}
+
+	/**
+	 * Return the scrollback buffer.
+	 *
+	 * @return	the scrollback buffer, or <code>null</code> if there is none.
+	 */
+	public ScrollbackBuffer getScrollback() {
+		return scrollback;
+	}
+
+	/**
+	 * Open a frame, if one is not already open.  Until the frame is closed by
+	 * {@link #endFrame()}, changes to the terminal are not repainted, so that
+	 * a screen which the host is still drawing is not displayed half drawn.
+	 * The frame is closed anyway if it is not closed within a short time.
+	 */
+	public void beginFrame() {
+		if (inFrame) {
+			return;
+		}
+		synchronized (frameLock) {
+			if (inFrame) {
+				return;
+			}
+			inFrame = true;
+		}
+		frameTimer.setRepeats(false);
+		frameTimer.restart();
+	}
 
-		StringBuilder linebuf = new StringBuilder(columns + 1);
-		for (int i = 0; i < columns; ++i) {
-			linebuf.append(' ');
+	/**
+	 * Close the frame, if one is open, and repaint everything which has
+	 * changed since it was opened.
+	 */
+	public void endFrame() {
+		Rectangle dirty;
+		synchronized (frameLock) {
+			if (!inFrame) {
+				return;
+			}
+			inFrame = false;
+			dirty = frameDirty;
+			frameDirty = null;
+		}
+		frameTimer.stop();
+		if (dirty != null) {
+			super.repaint(0, dirty.x, dirty.y, dirty.width, dirty.height);
 		}
-		linebuf.append('\n');
+	}
 
-		blankLine = linebuf.toString();
+	@Override
+	public void repaint(long tm, int x, int y, int width, int height) {
+		if (inFrame && holdRepaint(x, y, width, height)) {
+			return;
+		}
+		super.repaint(tm, x, y, width, height);
+	}
+
+	// Add an area to be repainted when the frame is closed
+	private boolean holdRepaint(int x, int y, int width, int height) {
+		synchronized (frameLock) {
+			if (!inFrame) {
+				return false;
+			}
+			if (frameDirty == null) {
+				frameDirty = new Rectangle(x, y, width, height);
+			} else {
+				frameDirty.add(x, y);
+				frameDirty.add(x + width, y + height);
+			}
+			return true;
+		}
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		PaintObserver observer = paintObserver;
+		if (observer != null) {
+			observer.painted(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Clear the terminal screen.
+	 *
+	 */
+	public synchronized void clear() {
+		StyledDocument doc = getStyledDocument();
+
+		blankLine = spaces(columns) + '\n';
 
 		try {
 			doc.remove(0, doc.getLength());
@@ -127,6 +289,121 @@ public class TerminalPane extends JTextPane {
 		}
 	}
 
+	/**
+	 * Change the size of the terminal in rows and columns, keeping the text
+	 * and attributes of the part of the screen which is in both the old and
+	 * the new size.  The rows are changed in place: each row which is kept is
+	 * only shortened or padded with blanks, and rows are only added or
+	 * removed at the bottom, so the cost depends on the rows kept rather than
+	 * on the whole screen.
+	 *
+	 * @param newRows		the new number of rows.
+	 * @param newColumns	the new number of columns.
+	 */
+	public synchronized void setTerminalSize(int newRows, int newColumns) {
+		if ((newRows < 1) || (newColumns < 1)) {
+			throw new IllegalArgumentException("setTerminalSize(" + newRows + ", " + newColumns + ")");
+		}
+		if ((newRows == rows) && (newColumns == columns)) {
+			return;
+		}
+		clearSearchHighlight();
+		clearPointerHighlight();
+		StyledDocument doc = getStyledDocument();
+		int keep = Math.min(rows, newRows);
+		try {
+			// Drop rows off the bottom first, so that they are not reflowed
+			if (newRows < rows) {
+				doc.remove(newRows * (columns + 1), (rows - newRows) * (columns + 1));
+			}
+			if (newColumns != columns) {
+				// The rows above have already been changed to the new width
+				String pad = (newColumns > columns) ? spaces(newColumns - columns) : null;
+				for (int r = 0; r < keep; ++r) {
+					int end = r * (newColumns + 1) + Math.min(columns, newColumns);
+					if (pad != null) {
+						doc.insertString(end, pad, plain);
+					} else {
+						doc.remove(end, columns - newColumns);
+					}
+				}
+			}
+			columns = newColumns;
+			rows = newRows;
+			blankLine = spaces(columns) + '\n';
+			rowAttr = new byte[columns];
+			for (int r = keep; r < newRows; ++r) {
+				doc.insertString(doc.getLength(), blankLine, plain);
+			}
+		} catch (BadLocationException ble) {
+			System.err.println("bad location: setTerminalSize(" + newRows + ", " + newColumns + ")");
+		}
+		revalidate();
+	}
+
+	/**
+	 * Return the size of a character cell in the current font.  This is
+	 * cached until the font is changed.
+	 *
+	 * @return	the width and height of a cell in pixels.
+	 */
+	public Dimension getCellSize() {
+		Dimension size = cellSize;
+		if (size == null) {
+			FontMetrics fm = getFontMetrics(new Font(getFontFamily(), Font.PLAIN, getFontSize()));
+			size = new Dimension(fm.charWidth('m'), fm.getHeight());
+			cellSize = size;
+		}
+		return new Dimension(size);
+	}
+
+	/**
+	 * Return the string displayed for a character, or an empty string if it
+	 * is a control character.  Printable ASCII characters are displayed as
+	 * they are.  Other characters are measured once in the current font: those
+	 * which the font cannot display in a single cell, including wide
+	 * characters and surrogates, are displayed as a replacement character, so
+	 * that every character still occupies one cell of the screen.
+	 */
+	private String glyph(char ch) {
+		if ((ch >= ' ') && (ch <= '\176')) {
+			return ASCII_GLYPHS[ch - ' '];
+		}
+		String[] page = glyphs[ch >> 8];
+		if (page == null) {
+			page = new String[256];
+			glyphs[ch >> 8] = page;
+		}
+		String glyph = page[ch & 0xff];
+		if (glyph == null) {
+			if (Character.isISOControl(ch)) {
+				glyph = "";
+			} else if (fitsCell(ch)) {
+				glyph = Character.toString(ch);
+			} else {
+				glyph = Character.toString(fitsCell(REPLACEMENT_CHAR) ? REPLACEMENT_CHAR : '?');
+			}
+			page[ch & 0xff] = glyph;
+		}
+		return glyph;
+	}
+
+	private boolean fitsCell(char ch) {
+		if (Character.isSurrogate(ch)) {
+			return false;
+		}
+		Font font = new Font(getFontFamily(), Font.PLAIN, getFontSize());
+		return font.canDisplay(ch) && (getFontMetrics(font).charWidth(ch) <= getCellSize().width);
+	}
+
+	private static String spaces(int n) {
+		StringBuilder buf = new StringBuilder(n + 1);
+		for (int i = 0; i < n; ++i) {
+			buf.append(' ');
+		}
+		return buf.toString();
+	}
+
 	/**
 	 * Return the number of rows of text allowed by the current terminal size.
 	 *
@@ -181,7 +458,7 @@ public class TerminalPane extends JTextPane {
 		return StyleConstants.getFontSize(plain);
 	}
 
-	public void highlightCharacter(int row, int column) throws BadLocationException {
+	public synchronized void highlightCharacter(int row, int column) throws BadLocationException {
 		if ((row < 0) || (row >= rows) || (column < 0) || (column >= columns)) {
 			throw new BadLocationException("highlightCharacter(" + row + ", " + column + ")", 0);
 		}
@@ -190,7 +467,7 @@ public class TerminalPane extends JTextPane {
 		int pos = row * (columns + 1) + column;
 		Element ch = doc.getCharacterElement(pos);
 		AttributeSet att = ch.getAttributes();
-		if (att == reverse) {
+		if (hasStyle(att, reverse)) {
 			doc.setCharacterAttributes(pos, 1, plain, true);
 		} else {
 			doc.setCharacterAttributes(pos, 1, reverse, true);
@@ -204,7 +481,7 @@ public class TerminalPane extends JTextPane {
 	 * @throws BadLocationException	if <code>row</code> is not a valid row
 	 * address.
 	 */
-	public void eraseLine(int row) throws BadLocationException {
+	public synchronized void eraseLine(int row) throws BadLocationException {
 		if ((row < 0) || (row >= rows)) {
 			throw new BadLocationException("eraseLine: invalid line number", row);
 		}
@@ -227,7 +504,7 @@ public class TerminalPane extends JTextPane {
 	 * @throws BadLocationException	if <code>row</code> is not a valid row
 	 * address.
 	 */
-	public void insertLine(int row) throws BadLocationException {
+	public synchronized void insertLine(int row) throws BadLocationException {
 		if ((row < 0) || (row >= rows)) {
 			throw new BadLocationException("insertLine: invalid line number",
 					row);
@@ -244,10 +521,10 @@ public class TerminalPane extends JTextPane {
 
 	/**
 	 * Put a character at a specified row and column on the terminal, optionally
-	 * using reverse video mode.  Note that the character should not be a control
-	 * character such as '\n' or '\r'.  Specifying a character that does not display
-	 * as a normal printable character may result in undesirable behavior.  It is
-	 * up to the terminal emulator program to interpret control characters.
+	 * using reverse video mode.  A control character such as '\n' or '\r' is
+	 * ignored; it is up to the terminal emulator program to interpret control
+	 * characters.  A character which the font cannot display in a single cell is
+	 * shown as a replacement character.
 	 *
 	 * @param row		the row address.
 	 * @param column	the column address.
@@ -256,29 +533,204 @@ public class TerminalPane extends JTextPane {
 	 * @throws BadLocationException	if the row and column address is invalid for
 	 * the current terminal size.
 	 */
-	public void putChar(int row, int column, char ch, boolean reverse)
+	public synchronized void putChar(int row, int column, char ch, boolean reverse)
 			throws BadLocationException {
 		if ((row < 0) || (row >= rows) || (column < 0) || (column >= columns)) {
 			throw new BadLocationException("putChar(" + row + ", " + column + ", ..)", 0);
 		}
-		if ((ch < ' ') || (ch > '\176')) {
-			System.err.println("putChar: " + Integer.toOctalString((int)ch));
+		String glyph = glyph(ch);
+		if (glyph.length() == 0) {
+			return;
+		}
+		int pos = row * (columns + 1) + column;
+		StyledDocument doc = getStyledDocument();
+		doc.remove(pos, 1);
+		doc.insertString(pos, glyph, (reverse) ? this.reverse : plain);
+	}
+
+	/**
+	 * Put a tentative character at a specified row and column on the terminal.
+	 * The character is displayed with a distinct (underlined) attribute, to show
+	 * that it is a local prediction of what the host will display there.  It is
+	 * replaced by a normal {@link #putChar(int, int, char, boolean)} when the
+	 * prediction is confirmed or rolled back.
+	 *
+	 * @param row		the row address.
+	 * @param column	the column address.
+	 * @param ch		the predicted character.
+	 * @throws BadLocationException	if the row and column address is invalid for
+	 * the current terminal size.
+	 */
+	public synchronized void putPredictedChar(int row, int column, char ch)
+			throws BadLocationException {
+		if ((row < 0) || (row >= rows) || (column < 0) || (column >= columns)) {
+			throw new BadLocationException("putPredictedChar(" + row + ", " + column + ", ..)", 0);
+		}
+		String glyph = glyph(ch);
+		if (glyph.length() == 0) {
 			return;
 		}
 		int pos = row * (columns + 1) + column;
 		StyledDocument doc = getStyledDocument();
 		doc.remove(pos, 1);
-		doc.insertString(pos, Character.toString(ch), (reverse) ? this.reverse : plain);
+		doc.insertString(pos, glyph, predicted);
+	}
+
+	/**
+	 * Return the character displayed at a specified row and column.
+	 *
+	 * @param row		the row address.
+	 * @param column	the column address.
+	 * @return	the character at that position.
+	 * @throws BadLocationException	if the row and column address is invalid for
+	 * the current terminal size.
+	 */
+	public synchronized char getCharAt(int row, int column) throws BadLocationException {
+		if ((row < 0) || (row >= rows) || (column < 0) || (column >= columns)) {
+			throw new BadLocationException("getCharAt(" + row + ", " + column + ")", 0);
+		}
+		return getStyledDocument().getText(row * (columns + 1) + column, 1).charAt(0);
+	}
+
+	/**
+	 * Return the text displayed on a specified row.
+	 *
+	 * @param row	the row address.
+	 * @return	the characters of the row.
+	 * @throws BadLocationException	if the row address is invalid for the
+	 * current terminal size.
+	 */
+	public synchronized String getRowText(int row) throws BadLocationException {
+		if ((row < 0) || (row >= rows)) {
+			throw new BadLocationException("getRowText(" + row + ")", 0);
+		}
+		return getStyledDocument().getText(row * (columns + 1), columns);
+	}
+
+	/**
+	 * Return the attributes of the characters displayed on a specified row,
+	 * as <code>ScrollbackBuffer.ATTR_PLAIN</code> or
+	 * <code>ScrollbackBuffer.ATTR_REVERSE</code>.
+	 *
+	 * @param row	the row address.
+	 * @param attr	an array of at least <code>getColumns()</code> bytes, to
+	 * 				receive the attribute of each column.
+	 * @throws BadLocationException	if the row address is invalid for the
+	 * current terminal size.
+	 */
+	public synchronized void getRowAttributes(int row, byte[] attr)
+			throws BadLocationException {
+		if ((row < 0) || (row >= rows)) {
+			throw new BadLocationException("getRowAttributes(" + row + ")", 0);
+		}
+		int start = row * (columns + 1);
+		Element para = getStyledDocument().getParagraphElement(start);
+		for (int e = 0; e < para.getElementCount(); ++e) {
+			Element run = para.getElement(e);
+			byte a = hasStyle(run.getAttributes(), reverse) ? ScrollbackBuffer.ATTR_REVERSE
+					: ScrollbackBuffer.ATTR_PLAIN;
+			int from = Math.max(run.getStartOffset() - start, 0);
+			int to = Math.min(run.getEndOffset() - start, columns);
+			for (int c = from; c < to; ++c) {
+				attr[c] = a;
+			}
+		}
+	}
+
+	/**
+	 * Highlight a search result on the terminal, replacing any previous
+	 * search result highlight.  The highlight is painted over the terminal
+	 * and does not change its contents.
+	 *
+	 * @param row		the row address.
+	 * @param column	the column address.
+	 * @param length	the number of characters to highlight.
+	 * @throws BadLocationException	if the row and column address is invalid for
+	 * the current terminal size.
+	 */
+	public synchronized void setSearchHighlight(int row, int column, int length)
+			throws BadLocationException {
+		if ((row < 0) || (row >= rows) || (column < 0) || (column >= columns)) {
+			throw new BadLocationException("setSearchHighlight(" + row + ", " + column + ")", 0);
+		}
+		clearSearchHighlight();
+		int pos = row * (columns + 1) + column;
+		int end = Math.min(pos + length, row * (columns + 1) + columns);
+		Color color = getSelectionColor();
+		searchHighlight = getHighlighter().addHighlight(pos, end,
+				new DefaultHighlighter.DefaultHighlightPainter(color));
+		Rectangle r = modelToView(pos);
+		if (r != null) {
+			scrollRectToVisible(r);
+		}
+	}
+
+	/**
+	 * Remove the search result highlight, if any.
+	 */
+	public void clearSearchHighlight() {
+		if (searchHighlight != null) {
+			getHighlighter().removeHighlight(searchHighlight);
+			searchHighlight = null;
+		}
+	}
+
+	/**
+	 * Highlight the character under a pointer moved from a keyset, which has
+	 * no cursor of its own on the screen, replacing any previous pointer
+	 * highlight.
+	 *
+	 * @param row		the row address.
+	 * @param column	the column address.
+	 * @throws BadLocationException	if the row and column address is invalid for
+	 * the current terminal size.
+	 */
+	public synchronized void setPointerHighlight(int row, int column)
+			throws BadLocationException {
+		if ((row < 0) || (row >= rows) || (column < 0) || (column >= columns)) {
+			throw new BadLocationException("setPointerHighlight(" + row + ", " + column + ")", 0);
+		}
+		clearPointerHighlight();
+		int pos = row * (columns + 1) + column;
+		pointerHighlight = getHighlighter().addHighlight(pos, pos + 1,
+				new DefaultHighlighter.DefaultHighlightPainter(POINTER_COLOR));
+	}
+
+	/**
+	 * Remove the pointer highlight, if any.
+	 */
+	public void clearPointerHighlight() {
+		if (pointerHighlight != null) {
+			getHighlighter().removeHighlight(pointerHighlight);
+			pointerHighlight = null;
+		}
+	}
+
+	/**
+	 * Return whether the character at a specified row and column is displayed
+	 * in reverse video mode.
+	 *
+	 * @param row		the row address.
+	 * @param column	the column address.
+	 * @return	<code>true</code> if the character is in reverse video mode.
+	 * @throws BadLocationException	if the row and column address is invalid for
+	 * the current terminal size.
+	 */
+	public synchronized boolean isReverseAt(int row, int column) throws BadLocationException {
+		if ((row < 0) || (row >= rows) || (column < 0) || (column >= columns)) {
+			throw new BadLocationException("isReverseAt(" + row + ", " + column + ")", 0);
+		}
+		Element ch = getStyledDocument().getCharacterElement(row * (columns + 1) + column);
+		return hasStyle(ch.getAttributes(), reverse);
 	}
 
 	/**
 	 * Write a specified string to a specified row and column on the terminal,
 	 * optionally using reverse video mode.  The string is truncated if it runs
-	 * beyond the end of the specified row.  The string should not contain any
-	 * control characters such as '\n' or '\r'.  Including a character that does
-	 * not display as a normal printable character may result in undesirable
-	 * behavior.  It is up to the terminal emulator program to interpret control
-	 * characters.
+	 * beyond the end of the specified row.  Control characters such as '\n' or
+	 * '\r' are removed, and characters which the font cannot display in a single
+	 * cell are shown as a replacement character.  It is up to the terminal
+	 * emulator program to interpret control characters.
 	 *
 	 * @param row		the row address.
 	 * @param column	the column address.
@@ -288,7 +740,7 @@ public class TerminalPane extends JTextPane {
 	 * the current terminal size, but not if the string runs beyond the end of a
 	 * valid row.
 	 */
-	public void putString(int row, int column, String s, boolean reverse)
+	public synchronized void putString(int row, int column, String s, boolean reverse)
 			throws BadLocationException {
 
 		// Validate the address
@@ -297,16 +749,22 @@ public class TerminalPane extends JTextPane {
 					+ ", ..)", 0);
 		}
 
+		// Replace characters which are not displayed as they are.  The string
+		// is only copied if there are any.
 		StringBuilder sb = null;
 		for (int i = 0; i < s.length(); ++i) {
 			char ch = s.charAt(i);
-			if ((ch < ' ') || (ch > '\176')) {
-				if (sb == null) {
-					sb = new StringBuilder(s);
+			if ((ch >= ' ') && (ch <= '\176')) {
+				if (sb != null) {
+					sb.append(ch);
 				}
-				sb.deleteCharAt(i);
-				System.err.println("putString: " + Integer.toOctalString((int)ch));
+				continue;
 			}
+			if (sb == null) {
+				sb = new StringBuilder(s.length());
+				sb.append(s, 0, i);
+			}
+			sb.append(glyph(ch));
 		}
 
 		if (sb != null) {
@@ -343,7 +801,7 @@ public class TerminalPane extends JTextPane {
 	 * @throws BadLocationException	if the window specification is invalid for the
 	 * current terminal size.
 	 */
-	public void scrollDown(int top, int left, int bottom, int right, int nlines)
+	public synchronized void scrollDown(int top, int left, int bottom, int right, int nlines)
 			throws BadLocationException {
 
 /*		System.out.println("scrollDown(" + top + ", " + left + ", " + bottom + ", " +
@@ -404,7 +862,7 @@ public class TerminalPane extends JTextPane {
 	 * @throws BadLocationException	if the window specification is invalid for the
 	 * current terminal size.
 	 */
-	public void scrollUp(int top, int left, int bottom, int right, int nlines)
+	public synchronized void scrollUp(int top, int left, int bottom, int right, int nlines)
 			throws BadLocationException {
 
 /*		System.out.println("scrollUp(" + top + ", " + left + ", " + bottom + ", " +
@@ -420,6 +878,10 @@ public class TerminalPane extends JTextPane {
 				// Optimize if scrolling whole rows
 				if ((left == 0) && (right == (columns - 1))) {
 
+					if (scrollback != null) {
+						saveRows(top, Math.min(nlines, bottom - top + 1));
+					}
+
 					// Remove lines at the top
 					doc.remove(top * (columns + 1), nlines * (columns + 1));
 
@@ -458,6 +920,8 @@ public class TerminalPane extends JTextPane {
 
 	public void setFontFamily(String fontFamily) {
 		StyleConstants.setFontFamily(plain, fontFamily);
+		cellSize = null;
+		glyphs = new String[256][];
 		// TODO:
 		// Determine whether the attributes need to be set on each character
 		// again.
@@ -468,6 +932,8 @@ public class TerminalPane extends JTextPane {
 
 	public void setFontSize(int size) {
 		StyleConstants.setFontSize(plain, size);
+		cellSize = null;
+		glyphs = new String[256][];
 		// StyledDocument doc = getStyledDocument();
 	}
 
@@ -488,6 +954,23 @@ public class TerminalPane extends JTextPane {
 		reverse = doc.addStyle("reverse", plain);
 		StyleConstants.setForeground(reverse, getBackground());
 		StyleConstants.setBackground(reverse, getForeground());
+		predicted = doc.addStyle("predicted", plain);
+		StyleConstants.setUnderline(predicted, true);
+	}
+
+	// Copy rows, with their attributes, to the scrollback buffer
+	private void saveRows(int top, int nlines) throws BadLocationException {
+		StyledDocument doc = getStyledDocument();
+		for (int i = 0; i < nlines; ++i) {
+			doc.getText((top + i) * (columns + 1), columns, rowText);
+			getRowAttributes(top + i, rowAttr);
+			scrollback.addRow(rowText, rowAttr, columns);
+		}
+	}
+
+	// The document holds copies of the styles, so compare them by name
+	private static boolean hasStyle(AttributeSet att, Style style) {
+		return style.getName().equals(att.getAttribute(StyleConstants.NameAttribute));
 	}
 
 	private void validateRegion(int top, int left, int bottom, int right)
@@ -0,0 +1,95 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.nlsaugment.augterm.LatencyHistogram;
+import org.nlsaugment.event.KeysetEvent;
+import org.nlsaugment.event.KeysetListener;
+
+/**
+ * <p>Types chords as fast as possible with a SimulatorBackend and measures how many chords per second
+ * the driver recognizes and dispatches, and the latency from decoding a record to the listener
+ * receiving the typed chord. It is run with listeners called synchronously, and then through a
+ * KeysetDispatcher with each wait strategy.
+ *
+ * <p>The arguments are the number of chords, 100000 by default, and optionally a recording to replay
+ * as fast as possible instead.
+ */
+public class KeysetBenchmark {
+  private static final String[] __modes = { "synchronous", "blocking", "sleeping", "yielding", "busy spin" };
+
+  public static final void main(String[] args) throws Exception {
+    final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    final String device = SimulatorBackend.DEVICE_PREFIX + (args.length > 1 ? args[1] : "");
+    for (int mode = 0; mode < __modes.length; ++mode) {
+      run(__modes[mode], mode - 1, device, count);
+    }
+  }
+
+  /**
+   * @param waitStrategy the KeysetDispatcher wait strategy, or -1 to call listeners synchronously
+   */
+  private static void run(final String name, final int waitStrategy, final String device, final int count) throws Exception {
+    final Properties properties = new Properties();
+    properties.setProperty("keyset.device", device);
+    properties.setProperty("keyset.simulator.count", Integer.toString(count));
+    properties.setProperty("keyset.simulator.rate", "0");
+    properties.setProperty("keyset.simulator.speed", "0");
+    final LatencyHistogram latency = new LatencyHistogram(name, TimeUnit.SECONDS.toNanos(1));
+    final CountDownLatch stopped = new CountDownLatch(1);
+    final KeysetDriver driver = new KeysetDriver(new KeysetConfig(properties), new CopyOnWriteArrayList<KeysetListener>(),
+        new KeysetDriver.Observer() {
+          public void driverOpened(final KeysetDriver driver) {
+          }
+
+          public void driverStopped(final KeysetDriver driver, final Exception cause) {
+            if (cause != null) {
+              cause.printStackTrace();
+            }
+            stopped.countDown();
+          }
+        });
+    driver.register(new KeysetListener() {
+      public void keyPressed(final KeysetEvent event) {
+      }
+
+      public void keyReleased(final KeysetEvent event) {
+      }
+
+      public void keyTyped(final KeysetEvent event) {
+        latency.record(System.nanoTime() - event.getNanoTime());
+      }
+    });
+    if (waitStrategy >= 0) {
+      driver.setAsynchronous(true, waitStrategy);
+    }
+    final long start = System.nanoTime();
+    driver.start();
+    stopped.await();
+    // Let an asynchronous dispatcher deliver the last chords
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    long typed = latency.getCount();
+    while (System.nanoTime() < deadline) {
+      Thread.sleep(10);
+      if (latency.getCount() == typed) {
+        break;
+      }
+      typed = latency.getCount();
+    }
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    driver.setAsynchronous(false, 0);
+    System.out.println(name + ": " + typed + " chords in " + (long) (seconds * 1000) + " ms, "
+        + (long) (typed / seconds) + " chords/s, latency p50 " + latency.getValueAtPercentile(50) / 1000
+        + " us, p99 " + latency.getValueAtPercentile(99) / 1000 + " us, mean " + (long) latency.getMean() / 1000 + " us");
+  }
+}
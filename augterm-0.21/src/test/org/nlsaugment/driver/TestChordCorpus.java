@@ -0,0 +1,143 @@
+/**
+ * Copyright © 2006 Jonathan M. Cheyer
+ * All rights reserved.
+ *
+ * Licensed under GPL Version 2.
+ * http://www.gnu.org/licenses/gpl.html
+ */
+package org.nlsaugment.driver;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Replays a corpus of key change scripts through a TimingChordRecognizer and checks the chords it
+ * produces. Each case is one line of four fields separated by "|":
+ *
+ * <pre>
+ * name | pressWindow releaseWindow emitOnFirstRelease | changes | chords
+ * </pre>
+ *
+ * The windows are in milliseconds, with -1 for none. Each change is "+" for a press or "-" for a
+ * release, the key number, "@" and the time in milliseconds. Each chord is the numbers of its keys.
+ * Lines starting with "#" are comments. Files of further cases can be given as arguments.
+ */
+public class TestChordCorpus {
+  private static final String[] __corpus = {
+    "# the classic behaviour",
+    "single key         | 30 -1 false | +0@0 -0@80                          | 0",
+    "two keys           | 30 -1 false | +0@0 +1@10 -0@90 -1@100             | 01",
+    "release order      | 30 -1 false | +0@0 +1@10 -1@90 -0@100             | 01",
+    "repress in chord   | 30 -1 false | +0@0 +1@10 -1@50 +1@60 -0@90 -1@99  | 01",
+    "slow rollover      | 30 -1 false | +0@0 +1@10 -0@90 +2@200 -1@210 -2@300 | 012",
+    "spurious release   | 30 -1 false | -3@0 +0@10 -0@90                    | 0",
+    "repeated press     | 30 -1 false | +4@0 +4@5 -4@90                     | 4",
+    "all keys           | 30 -1 false | +0@0 +1@1 +2@2 +3@3 +4@4 -0@90 -1@91 -2@92 -3@93 -4@94 | 01234",
+    "sequence           | 30 -1 false | +2@0 -2@50 +3@100 -3@150 +0@200 +1@205 -0@260 -1@262 | 2 3 01",
+    "# emit on first release",
+    "first release      | 30 -1 true  | +0@0 +1@10 -0@90 -1@100             | 01",
+    "stale release      | 30 -1 true  | +0@0 +1@10 -0@90 +2@95 -1@100 -2@150 | 01 2",
+    "within press window| 30 -1 true  | +0@0 +1@10 -0@20 -1@100             | 01",
+    "settling           | 30 -1 true  | +0@0 +1@10 -0@20 +0@25 -1@80 -0@90  | 01",
+    "stale key held     | 30 -1 true  | +0@0 +1@10 -1@80 +2@100 -2@150 -0@200 | 01 2",
+    "# release window",
+    "fast rollover      | 30 50 false | +0@0 +1@10 -0@90 +2@200 -1@210 -2@300 | 01 2",
+    "within release win | 30 50 false | +0@0 +1@10 -0@90 +2@120 -1@130 -2@200 | 012",
+    "rollover held key  | 30 50 false | +0@0 +1@10 -0@90 +2@200 -2@260 -1@270 | 01 2",
+    "rollover repress   | 30 50 false | +0@0 +1@10 -0@90 +0@200 -1@210 -0@300 | 01 0",
+  };
+
+  private int _passed = 0;
+  private int _failed = 0;
+
+  public void run(final String line) {
+    final String trimmed = line.trim();
+    if (trimmed.length() == 0 || trimmed.startsWith("#")) {
+      return;
+    }
+    final String[] fields = trimmed.split("\\|");
+    if (fields.length != 4) {
+      throw new IllegalArgumentException("invalid case: " + line);
+    }
+    final String name = fields[0].trim();
+    final String[] options = fields[1].trim().split("\\s+");
+    final long pressWindow = Long.parseLong(options[0]);
+    final long releaseWindow = Long.parseLong(options[1]);
+    final ChordRecognizer recognizer = new TimingChordRecognizer(pressWindow * 1000,
+        releaseWindow < 0 ? TimingChordRecognizer.NO_WINDOW : releaseWindow * 1000,
+        Boolean.parseBoolean(options[2]));
+
+    final List<String> chords = new ArrayList<String>();
+    for (String change : fields[2].trim().split("\\s+")) {
+      final boolean pressed = change.charAt(0) == '+';
+      final int at = change.indexOf('@');
+      final int key = Integer.parseInt(change.substring(1, at));
+      final long micros = Long.parseLong(change.substring(at + 1)) * 1000;
+      final int chord = recognizer.keyChanged(key, pressed, micros, micros * 1000);
+      if (chord != 0) {
+        chords.add(keys(chord));
+      }
+    }
+    final String actual = join(chords);
+    final String expected = join(fields[3].trim().split("\\s+"));
+    if (actual.equals(expected)) {
+      ++this._passed;
+    } else {
+      ++this._failed;
+      System.out.println("FAILED " + name + ": expected " + expected + " but got " + actual);
+    }
+  }
+
+  private static String keys(final int chord) {
+    final StringBuilder sb = new StringBuilder();
+    for (int key = 0; key < 5; ++key) {
+      if ((chord & (1 << key)) != 0) {
+        sb.append(key);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String join(final Iterable<String> values) {
+    final StringBuilder sb = new StringBuilder();
+    for (String value : values) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(value);
+    }
+    return sb.toString();
+  }
+
+  private static String join(final String[] values) {
+    final List<String> list = new ArrayList<String>();
+    for (String value : values) {
+      list.add(value);
+    }
+    return join(list);
+  }
+
+  public static final void main(String[] args) throws Exception {
+    final TestChordCorpus test = new TestChordCorpus();
+    for (String line : __corpus) {
+      test.run(line);
+    }
+    for (String file : args) {
+      final BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          test.run(line);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    System.out.println(test._passed + " passed, " + test._failed + " failed");
+    if (test._failed > 0) {
+      System.exit(1);
+    }
+  }
+}